@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.function.Consumer;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.springframework.util.Assert;
+
+/**
+ * A {@link CustomUserRepository} that remembers the users another repository has found,
+ * so that signing in does not query the database for every factor.
+ * <p>
+ * The cache is bounded using Caffeine's frequency-based eviction. Saving through this
+ * repository drops the cached copy, and a lookup that races with a save waits for it,
+ * so a stale user is never put back. Changes made behind its back, for example by
+ * another instance, are picked up once the entry expires. Unknown emails are not
+ * cached.
+ */
+public final class CachingCustomUserRepository implements CustomUserRepository, MeterBinder {
+
+	private final CustomUserRepository delegate;
+
+	private final Cache<String, CustomUser> cache;
+
+	private Consumer<CustomUser> saveListener = (user) -> {
+	};
+
+	/**
+	 * Creates a repository that caches what the given repository returns.
+	 * @param delegate the repository that holds the users
+	 * @param maximumSize the most users to remember
+	 * @param timeToLive how long to remember a user for
+	 */
+	public CachingCustomUserRepository(CustomUserRepository delegate, long maximumSize, Duration timeToLive) {
+		Assert.notNull(delegate, "delegate cannot be null");
+		Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+		Assert.isTrue(timeToLive != null && !timeToLive.isNegative() && !timeToLive.isZero(),
+				"timeToLive must be positive");
+		this.delegate = delegate;
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(timeToLive)
+				.recordStats()
+				.build();
+	}
+
+	@Override
+	public CustomUser findCustomUserByEmail(String email) {
+		if (email == null) {
+			return null;
+		}
+		// Loading holds the entry, so an invalidation for the same email waits for it
+		return this.cache.get(email, this.delegate::findCustomUserByEmail);
+	}
+
+	@Override
+	public void save(CustomUser user) {
+		Assert.notNull(user, "user cannot be null");
+		this.delegate.save(user);
+		this.cache.invalidate(user.getEmail());
+		// The email itself may have changed; saves are rare enough to scan for the old one
+		this.cache.asMap().values().removeIf((cached) -> cached.getId() == user.getId());
+		this.saveListener.accept(user);
+	}
+
+	/**
+	 * Sets what to do once a user has been saved, such as forgetting anything derived from
+	 * their previous secrets.
+	 * @param saveListener called with each saved user
+	 */
+	public void setSaveListener(Consumer<CustomUser> saveListener) {
+		Assert.notNull(saveListener, "saveListener cannot be null");
+		this.saveListener = saveListener;
+	}
+
+	/**
+	 * Gets the hit and miss counts of the cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	public CacheStats getStats() {
+		return this.cache.stats();
+	}
+
+	/**
+	 * Publishes the cache statistics, such as {@code cache.gets}, tagged with
+	 * {@code cache=users}.
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		new CaffeineCacheMetrics(this.cache, "users", Collections.emptyList()).bindTo(registry);
+	}
+
+}
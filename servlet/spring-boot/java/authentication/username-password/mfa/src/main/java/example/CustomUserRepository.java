@@ -20,4 +20,10 @@ public interface CustomUserRepository {
 
 	CustomUser findCustomUserByEmail(String email);
 
+	/**
+	 * Adds a user, or replaces the one with the same id.
+	 * @param user the user to save
+	 */
+	void save(CustomUser user);
+
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.springframework.util.Assert;
+
+/**
+ * Holds each MFA flow's decrypted one-time password key, so that a flow decrypts the
+ * user's secret at most once however many codes are checked.
+ * <p>
+ * Keys are held by the identity of the flow's {@link MfaAuthentication}, weakly, so an
+ * entry goes away with the flow. The plaintext key is kept in memory only, never in the
+ * session, and for no longer than the given time to live even if the flow is abandoned.
+ * Only when {@link TotpVerifier} no longer holds the user's HMAC key, which it drops
+ * after the same idle time, does a flow need to decrypt at all.
+ */
+public final class FlowKeyCache {
+
+	private final Cache<MfaAuthentication, String> keys;
+
+	/**
+	 * Creates a cache for the keys of the given number of concurrent flows.
+	 * @param maximumSize the most flows to hold a key for
+	 * @param timeToLive how long to hold a key for, at most
+	 */
+	public FlowKeyCache(long maximumSize, Duration timeToLive) {
+		Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+		Assert.isTrue(timeToLive != null && !timeToLive.isNegative() && !timeToLive.isZero(),
+				"timeToLive must be positive");
+		this.keys = Caffeine.newBuilder()
+				.weakKeys()
+				.maximumSize(maximumSize)
+				.expireAfterWrite(timeToLive)
+				.build();
+	}
+
+	/**
+	 * Gets the key of the given flow, decrypting it if this is the first time it is
+	 * needed.
+	 * @param flow the flow
+	 * @param decrypt decrypts the user's secret
+	 * @return the hex-encoded key
+	 */
+	public String get(MfaAuthentication flow, Supplier<String> decrypt) {
+		Assert.notNull(flow, "flow cannot be null");
+		return this.keys.get(flow, (key) -> decrypt.get());
+	}
+
+	/**
+	 * Drops the key of the given flow, once it no longer needs one.
+	 * @param flow the flow
+	 */
+	public void evict(MfaAuthentication flow) {
+		this.keys.invalidate(flow);
+	}
+
+	public long size() {
+		this.keys.cleanUp();
+		return this.keys.estimatedSize();
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.List;
+
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link CustomUserRepository} that keeps users in a database. The table and its
+ * unique index on {@code email} are described in {@code custom-user-schema.sql}, so
+ * looking a user up by email is a single index seek.
+ */
+public final class JdbcCustomUserRepository implements CustomUserRepository {
+
+	private static final String SELECT_BY_EMAIL = "select id, email, password, secret, answer "
+			+ "from custom_user where email = ?";
+
+	private static final String UPDATE = "update custom_user set email = ?, password = ?, secret = ?, answer = ? "
+			+ "where id = ?";
+
+	private static final String INSERT = "insert into custom_user (email, password, secret, answer, id) "
+			+ "values (?, ?, ?, ?, ?)";
+
+	private static final RowMapper<CustomUser> USER_MAPPER = (rs, rowNum) -> new CustomUser(rs.getLong(1),
+			rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5));
+
+	private final JdbcOperations jdbc;
+
+	public JdbcCustomUserRepository(JdbcOperations jdbc) {
+		Assert.notNull(jdbc, "jdbc cannot be null");
+		this.jdbc = jdbc;
+	}
+
+	@Override
+	public CustomUser findCustomUserByEmail(String email) {
+		if (email == null) {
+			return null;
+		}
+		List<CustomUser> users = this.jdbc.query(SELECT_BY_EMAIL, USER_MAPPER, email);
+		return users.isEmpty() ? null : users.get(0);
+	}
+
+	@Override
+	public void save(CustomUser user) {
+		Assert.notNull(user, "user cannot be null");
+		Object[] args = { user.getEmail(), user.getPassword(), user.getSecret(), user.getAnswer(), user.getId() };
+		if (this.jdbc.update(UPDATE, args) == 0) {
+			this.jdbc.update(INSERT, args);
+		}
+	}
+
+}
@@ -31,4 +31,10 @@ public class MapCustomUserRepository implements CustomUserRepository {
 		return this.emailToCustomUser.get(email);
 	}
 
+	@Override
+	public void save(CustomUser user) {
+		this.emailToCustomUser.values().removeIf((existing) -> existing.getId() == user.getId());
+		this.emailToCustomUser.put(user.getEmail(), user);
+	}
+
 }
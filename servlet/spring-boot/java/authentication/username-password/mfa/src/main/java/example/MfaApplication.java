@@ -15,12 +15,12 @@
  */
 package example;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.security.crypto.codec.Hex;
 import org.springframework.security.crypto.encrypt.BytesEncryptor;
 
@@ -37,7 +37,8 @@ public class MfaApplication {
 	}
 
 	@Bean
-	MapCustomUserRepository userRepository(BytesEncryptor encryptor) {
+	CachingCustomUserRepository userRepository(JdbcOperations jdbc, BytesEncryptor encryptor,
+			TotpVerifier totpVerifier) {
 		// the hashed password was calculated using the following code
 		// the hash should be done up front, so malicious users cannot discover the
 		// password
@@ -63,9 +64,12 @@ public class MfaApplication {
 
 		CustomUser customUser = new CustomUser(1L, "user@example.com", encodedPassword, encrypted,
 				encodedSecurityAnswer);
-		Map<String, CustomUser> emailToCustomUser = new HashMap<>();
-		emailToCustomUser.put(customUser.getEmail(), customUser);
-		return new MapCustomUserRepository(emailToCustomUser);
+		CachingCustomUserRepository users = new CachingCustomUserRepository(new JdbcCustomUserRepository(jdbc),
+				10_000, Duration.ofMinutes(5));
+		// a new secret means a new authenticator, so the old key must not be used again
+		users.setSaveListener((user) -> totpVerifier.evictKey(user.getEmail()));
+		users.save(customUser);
+		return users;
 	}
 
 }
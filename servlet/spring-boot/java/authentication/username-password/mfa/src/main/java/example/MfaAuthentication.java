@@ -28,10 +28,13 @@ public class MfaAuthentication extends AbstractAuthenticationToken {
 
     private final Authentication first;
 
+    // 第一个因素通过的时间，用于统计整个流程的耗时
+    private final long startedAt;
+
     public MfaAuthentication(Authentication first) {
         super(Collections.emptyList());
         this.first = first;
-        System.out.println("MfaAuthentication -> ctor");
+        this.startedAt = System.currentTimeMillis();
     }
 
     @Override
@@ -46,7 +49,6 @@ public class MfaAuthentication extends AbstractAuthenticationToken {
 
     @Override
     public void eraseCredentials() {
-        System.out.println("MfaAuthentication -> eraseCredentials");
         if (this.first instanceof CredentialsContainer) {
             ((CredentialsContainer) this.first).eraseCredentials();
         }
@@ -54,14 +56,20 @@ public class MfaAuthentication extends AbstractAuthenticationToken {
 
     @Override
     public boolean isAuthenticated() {
-        System.out.println("MfaAuthentication -> isAuthenticated");
         // 自定义的 Authentication 总是返回失败
         return false;
     }
 
     public Authentication getFirst() {
-        System.out.println("MfaAuthentication -> getFirst");
         return this.first;
     }
 
+    /**
+     * Gets when the first factor was accepted.
+     * @return milliseconds since the epoch
+     */
+    public long getStartedAt() {
+        return this.startedAt;
+    }
+
 }
@@ -48,14 +48,12 @@ public class MfaAuthenticationHandler implements AuthenticationSuccessHandler, A
         SimpleUrlAuthenticationSuccessHandler successHandler = new SimpleUrlAuthenticationSuccessHandler(url);
         successHandler.setAlwaysUseDefaultTargetUrl(true);
         this.successHandler = successHandler;
-        System.out.println("MfaAuthenticationHandler -> " + url);
     }
 
     @Override
     public void onAuthenticationFailure(HttpServletRequest request, HttpServletResponse response,
                                         AuthenticationException exception) throws IOException, ServletException {
 
-        System.out.println("MfaAuthenticationHandler -> onAuthenticationFailure");
         Authentication anonymous = new AnonymousAuthenticationToken("key", "anonymousUser",
                 AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS"));
         // 如果前一次登录失败了
@@ -67,7 +65,6 @@ public class MfaAuthenticationHandler implements AuthenticationSuccessHandler, A
     @Override
     public void onAuthenticationSuccess(HttpServletRequest request, HttpServletResponse response,
                                         Authentication authentication) throws IOException, ServletException {
-        System.out.println("MfaAuthenticationHandler -> onAuthenticationSuccess");
         // 登录成功，将凭据保存，继续传递到下一个页面
         saveMfaAuthentication(request, response, authentication);
     }
@@ -75,9 +72,11 @@ public class MfaAuthenticationHandler implements AuthenticationSuccessHandler, A
     private void saveMfaAuthentication(HttpServletRequest request, HttpServletResponse response,
                                        Authentication authentication) throws IOException, ServletException {
 
-        System.out.println("MfaAuthenticationHandler -> saveMfaAuthentication");
         // 将凭据信息，保存到上下文中
-        SecurityContextHolder.getContext().setAuthentication(new MfaAuthentication(authentication));
+        // 已经是 MfaAuthentication 时（后续的因素）直接沿用，以保留流程的开始时间
+        MfaAuthentication mfaAuthentication = (authentication instanceof MfaAuthentication)
+                ? (MfaAuthentication) authentication : new MfaAuthentication(authentication);
+        SecurityContextHolder.getContext().setAuthentication(mfaAuthentication);
         // 此时，会执行跳转（因为 successHandler 是一个 SimpleUrlAuthenticationSuccessHandler）
         this.successHandler.onAuthenticationSuccess(request, response, authentication);
     }
@@ -16,11 +16,13 @@
 
 package example;
 
+import java.io.IOException;
 import java.security.SecureRandom;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.crypto.codec.Hex;
@@ -38,6 +40,14 @@ public class MfaController {
 
     private final MfaService mfaService;
 
+    private final MfaThrottle throttle;
+
+    private final MfaMetrics metrics;
+
+    private final FlowKeyCache flowKeys;
+
+    private final MfaAuthenticationHandler secondFactorHandler = new MfaAuthenticationHandler("/third-factor");
+
     private final BytesEncryptor encryptor;
 
     private final PasswordEncoder encoder;
@@ -52,10 +62,14 @@ public class MfaController {
 
     private final String failedAuthenticationSecurityAnswer;
 
-    public MfaController(MfaService mfaService, BytesEncryptor encryptor, PasswordEncoder encoder,
-                         AuthenticationSuccessHandler successHandler, AuthenticationFailureHandler failureHandler) {
+    public MfaController(MfaService mfaService, MfaThrottle throttle, MfaMetrics metrics, FlowKeyCache flowKeys,
+                         BytesEncryptor encryptor, PasswordEncoder encoder, AuthenticationSuccessHandler successHandler,
+                         AuthenticationFailureHandler failureHandler) {
 
         this.mfaService = mfaService;
+        this.throttle = throttle;
+        this.metrics = metrics;
+        this.flowKeys = flowKeys;
         this.encryptor = encryptor;
         this.encoder = encoder;
         this.successHandler = successHandler;
@@ -73,13 +87,21 @@ public class MfaController {
     @PostMapping("/second-factor")
     public void processSecondFactor(@RequestParam("code") String code, MfaAuthentication authentication,
                                     HttpServletRequest request, HttpServletResponse response) throws Exception {
-        MfaAuthenticationHandler customHandler = new MfaAuthenticationHandler("/third-factor");
-        String secret = getSecret(authentication);
-        if (this.mfaService.check(secret, code)) {
+        if (!tryAcquire(authentication, request, response)) {
+            return;
+        }
+        long start = this.metrics.start();
+        // 用户的密钥已缓存时，不需要解密
+        boolean success = this.mfaService.check(getUsername(authentication), getStoredSecret(authentication),
+                () -> getSecret(authentication), code);
+        this.metrics.record(MfaMetrics.Stage.SECOND_FACTOR, start, success);
+        if (success) {
             // 使用自定义的 Handler 处理到下一步
-            customHandler.onAuthenticationSuccess(request, response, authentication.getFirst());
+            this.secondFactorHandler.onAuthenticationSuccess(request, response, authentication);
         } else {
-            customHandler.onAuthenticationFailure(request, response, new BadCredentialsException("bad credentials"));
+            this.flowKeys.evict(authentication);
+            this.secondFactorHandler.onAuthenticationFailure(request, response,
+                    new BadCredentialsException("bad credentials"));
         }
     }
 
@@ -91,8 +113,17 @@ public class MfaController {
     @PostMapping("/third-factor")
     public void processThirdFactor(@RequestParam("answer") String answer, MfaAuthentication authentication,
                                    HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if (!tryAcquire(authentication, request, response)) {
+            return;
+        }
+        long start = this.metrics.start();
         String encodedAnswer = getAnswer(authentication);
-        if (this.encoder.matches(answer, encodedAnswer)) {
+        boolean success = this.encoder.matches(answer, encodedAnswer);
+        this.metrics.record(MfaMetrics.Stage.THIRD_FACTOR, start, success);
+        // 流程结束，不再需要解密后的密钥
+        this.flowKeys.evict(authentication);
+        if (success) {
+            this.metrics.recordCompletion(authentication.getStartedAt());
             SecurityContextHolder.getContext().setAuthentication(authentication.getFirst());
             // SavedRequestAwareAuthenticationSuccessHandler
             // 获取第一次提交时的 Authentication： authentication.getFirst()
@@ -103,16 +134,43 @@ public class MfaController {
         }
     }
 
-    private String getSecret(MfaAuthentication authentication) throws Exception {
+    // checked before anything is decrypted or hashed, so rejected attempts cost next to nothing
+    private boolean tryAcquire(MfaAuthentication authentication, HttpServletRequest request,
+                               HttpServletResponse response) throws IOException {
+        if (this.throttle.tryAcquire(getUsername(authentication), request.getRemoteAddr())) {
+            return true;
+        }
+        response.sendError(HttpStatus.TOO_MANY_REQUESTS.value());
+        return false;
+    }
+
+    private String getSecret(MfaAuthentication authentication) {
         if (authentication.getPrincipal() instanceof CustomUser) {
             CustomUser user = (CustomUser) authentication.getPrincipal();
-            byte[] bytes = Hex.decode(user.getSecret());
-            return new String(this.encryptor.decrypt(bytes));
+            // 同一个流程只解密一次
+            return this.flowKeys.get(authentication,
+                    () -> new String(this.encryptor.decrypt(Hex.decode(user.getSecret()))));
         }
         // earlier factor failed
         return this.failedAuthenticationSecret;
     }
 
+    private String getStoredSecret(MfaAuthentication authentication) {
+        if (authentication.getPrincipal() instanceof CustomUser) {
+            return ((CustomUser) authentication.getPrincipal()).getSecret();
+        }
+        // earlier factor failed
+        return null;
+    }
+
+    private String getUsername(MfaAuthentication authentication) {
+        if (authentication.getPrincipal() instanceof CustomUser) {
+            return ((CustomUser) authentication.getPrincipal()).getEmail();
+        }
+        // earlier factor failed, so there is no code to protect from replay
+        return null;
+    }
+
     private String getAnswer(MfaAuthentication authentication) {
         if (authentication.getPrincipal() instanceof CustomUser) {
             CustomUser user = (CustomUser) authentication.getPrincipal();
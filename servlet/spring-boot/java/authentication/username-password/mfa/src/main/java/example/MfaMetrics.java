@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Times each stage of the MFA flow, counts its successes and failures, and times whole
+ * flows from the first factor being accepted to the last one.
+ * <p>
+ * Recording is a couple of {@link LongAdder} increments, which the registry reads only
+ * when it publishes. When disabled, {@link #start()} does not even read the clock.
+ * Stages are published as {@code mfa.stage}, tagged with the stage and the outcome, and
+ * whole flows as {@code mfa.completion}.
+ */
+public final class MfaMetrics implements MeterBinder {
+
+	/**
+	 * A step of the MFA flow.
+	 */
+	public enum Stage {
+
+		/**
+		 * Username and password.
+		 */
+		FIRST_FACTOR("first-factor"),
+
+		/**
+		 * One-time password, including decrypting the user's key.
+		 */
+		SECOND_FACTOR("totp"),
+
+		/**
+		 * Security answer.
+		 */
+		THIRD_FACTOR("security-answer");
+
+		private final String tag;
+
+		Stage(String tag) {
+			this.tag = tag;
+		}
+
+	}
+
+	private final boolean enabled;
+
+	// Indexed by stage, then by 1 for success and 0 for failure
+	private final Stats[][] stages = new Stats[Stage.values().length][2];
+
+	private final Stats completions = new Stats();
+
+	public MfaMetrics(boolean enabled) {
+		this.enabled = enabled;
+		for (Stats[] outcomes : this.stages) {
+			outcomes[0] = new Stats();
+			outcomes[1] = new Stats();
+		}
+	}
+
+	/**
+	 * Marks the start of a stage.
+	 * @return the value to pass to {@link #record(Stage, long, boolean)}
+	 */
+	public long start() {
+		return this.enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the end of a stage.
+	 * @param stage the stage
+	 * @param start the value returned by {@link #start()}
+	 * @param success whether the factor was accepted
+	 */
+	public void record(Stage stage, long start, boolean success) {
+		if (this.enabled) {
+			this.stages[stage.ordinal()][success ? 1 : 0].add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records a flow in which every factor was accepted.
+	 * @param startedAt when the first factor was accepted, in milliseconds since the epoch
+	 */
+	public void recordCompletion(long startedAt) {
+		if (this.enabled) {
+			this.completions.add(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - startedAt));
+		}
+	}
+
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	public long getCount(Stage stage, boolean success) {
+		return this.stages[stage.ordinal()][success ? 1 : 0].count.sum();
+	}
+
+	public long getCompletionCount() {
+		return this.completions.count.sum();
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		if (!this.enabled) {
+			return;
+		}
+		for (Stage stage : Stage.values()) {
+			register(registry, stage, "failure", this.stages[stage.ordinal()][0]);
+			register(registry, stage, "success", this.stages[stage.ordinal()][1]);
+		}
+		FunctionTimer.builder("mfa.completion", this.completions, Stats::count, Stats::totalNanos,
+				TimeUnit.NANOSECONDS)
+				.description("Time from the first factor being accepted to the last")
+				.register(registry);
+	}
+
+	private static void register(MeterRegistry registry, Stage stage, String outcome, Stats stats) {
+		FunctionTimer.builder("mfa.stage", stats, Stats::count, Stats::totalNanos, TimeUnit.NANOSECONDS)
+				.description("Time spent checking an MFA factor")
+				.tag("stage", stage.tag)
+				.tag("outcome", outcome)
+				.register(registry);
+	}
+
+	private static final class Stats {
+
+		private final LongAdder count = new LongAdder();
+
+		private final LongAdder totalNanos = new LongAdder();
+
+		void add(long nanos) {
+			this.count.increment();
+			this.totalNanos.add(nanos);
+		}
+
+		long count() {
+			return this.count.sum();
+		}
+
+		double totalNanos() {
+			return this.totalNanos.sum();
+		}
+
+	}
+
+}
@@ -16,22 +16,29 @@
 
 package example;
 
-import java.security.GeneralSecurityException;
-
-import com.j256.twofactorauth.TimeBasedOneTimePasswordUtil;
+import java.util.function.Supplier;
 
 import org.springframework.stereotype.Service;
 
 @Service
 public class MfaService {
 
-	public boolean check(String hexKey, String code) {
-		try {
-			return TimeBasedOneTimePasswordUtil.validateCurrentNumberHex(hexKey, Integer.parseInt(code), 10000);
-		}
-		catch (GeneralSecurityException ex) {
-			throw new IllegalArgumentException(ex);
-		}
+	private final TotpVerifier verifier;
+
+	public MfaService(TotpVerifier verifier) {
+		this.verifier = verifier;
+	}
+
+	/**
+	 * Checks a second-factor code, which can only be used once.
+	 * @param username the user, or {@code null} if an earlier factor failed
+	 * @param secret the user's key as stored
+	 * @param hexKey supplies the user's key, hex-encoded, if it has to be decrypted
+	 * @param code the code the user entered
+	 * @return whether the code is correct
+	 */
+	public boolean check(String username, String secret, Supplier<String> hexKey, String code) {
+		return this.verifier.verify(username, secret, hexKey, code);
 	}
 
 }
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import org.springframework.util.Assert;
+
+/**
+ * Limits how many second- and third-factor attempts each user, and each client address,
+ * can make within a sliding window.
+ * <p>
+ * It is consulted before any key is decrypted or answer hashed, so that an attacker who
+ * is over the limit cannot make the application spend CPU on their guesses. Attempts are
+ * counted in {@link StripedSlidingWindowCounter}s, so memory use is fixed up front. The
+ * counters are sized from how many users and addresses are expected to make attempts
+ * within a window; far more than that, and users start to share counters often enough to
+ * be throttled early.
+ */
+public final class MfaThrottle implements MeterBinder {
+
+	// Each key collides with another in a row about a quarter of the time at the expected
+	// load, and has to collide in both rows to be counted too high
+	private static final int COUNTERS_PER_KEY = 4;
+
+	private static final int MAXIMUM_EXPECTED_KEYS = (1 << 24) / COUNTERS_PER_KEY;
+
+	private final StripedSlidingWindowCounter users;
+
+	private final StripedSlidingWindowCounter addresses;
+
+	private final int userLimit;
+
+	private final int addressLimit;
+
+	private final LongAdder allowed = new LongAdder();
+
+	private final LongAdder rejectedByUser = new LongAdder();
+
+	private final LongAdder rejectedByAddress = new LongAdder();
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Creates a throttle.
+	 * @param userLimit the most attempts per user within the window
+	 * @param addressLimit the most attempts per client address within the window
+	 * @param window the length of the window
+	 * @param expectedUsers how many users are expected to make attempts within a window
+	 * @param expectedAddresses how many client addresses are expected to make attempts
+	 * within a window
+	 */
+	public MfaThrottle(int userLimit, int addressLimit, Duration window, int expectedUsers, int expectedAddresses) {
+		Assert.isTrue(userLimit > 0, "userLimit must be positive");
+		Assert.isTrue(addressLimit > 0, "addressLimit must be positive");
+		Assert.notNull(window, "window cannot be null");
+		Assert.isTrue(expectedUsers > 0 && expectedUsers <= MAXIMUM_EXPECTED_KEYS,
+				"expectedUsers must be between 1 and " + MAXIMUM_EXPECTED_KEYS);
+		Assert.isTrue(expectedAddresses > 0 && expectedAddresses <= MAXIMUM_EXPECTED_KEYS,
+				"expectedAddresses must be between 1 and " + MAXIMUM_EXPECTED_KEYS);
+		this.users = new StripedSlidingWindowCounter(expectedUsers * COUNTERS_PER_KEY, window.toMillis());
+		this.addresses = new StripedSlidingWindowCounter(expectedAddresses * COUNTERS_PER_KEY, window.toMillis());
+		this.userLimit = userLimit;
+		this.addressLimit = addressLimit;
+	}
+
+	/**
+	 * Counts an attempt, and tells whether it may go ahead. Rejected attempts count too,
+	 * up to one past the limit, so a client that keeps trying stays throttled. An attempt
+	 * from an address that is over its limit does not count against the user, so that
+	 * one address cannot lock users out.
+	 * @param username the user, or {@code null} if an earlier factor failed
+	 * @param remoteAddress the client's address
+	 * @return {@code false} if the user or the address is over its limit
+	 */
+	public boolean tryAcquire(String username, String remoteAddress) {
+		long now = this.clock.millis();
+		boolean addressAllowed = this.addresses.increment(remoteAddress, now, this.addressLimit + 1L)
+				<= this.addressLimit;
+		boolean userAllowed = username == null || !addressAllowed
+				|| this.users.increment(username, now, this.userLimit + 1L) <= this.userLimit;
+		if (!addressAllowed) {
+			this.rejectedByAddress.increment();
+		}
+		else if (!userAllowed) {
+			this.rejectedByUser.increment();
+		}
+		else {
+			this.allowed.increment();
+		}
+		return addressAllowed && userAllowed;
+	}
+
+	/**
+	 * Forgets every attempt.
+	 */
+	public void clear() {
+		this.users.clear();
+		this.addresses.clear();
+	}
+
+	/**
+	 * Publishes {@code mfa.throttle.attempts}, tagged with whether each attempt was
+	 * allowed or, if not, which limit it hit.
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		register(registry, this.allowed, "allowed");
+		register(registry, this.rejectedByUser, "rejected-user");
+		register(registry, this.rejectedByAddress, "rejected-address");
+	}
+
+	private static void register(MeterRegistry registry, LongAdder counter, String result) {
+		FunctionCounter.builder("mfa.throttle.attempts", counter, LongAdder::sum)
+				.description("Second- and third-factor attempts")
+				.tag("result", result)
+				.register(registry);
+	}
+
+	public long getAllowedCount() {
+		return this.allowed.sum();
+	}
+
+	public long getRejectedCount() {
+		return this.rejectedByUser.sum() + this.rejectedByAddress.sum();
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+}
@@ -16,15 +16,21 @@
 
 package example;
 
+import java.time.Duration;
+
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.authorization.AuthorizationDecision;
 import org.springframework.security.authorization.AuthorizationManager;
 import org.springframework.security.config.annotation.ObjectPostProcessor;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.crypto.encrypt.AesBytesEncryptor;
 import org.springframework.security.crypto.factory.PasswordEncoderFactories;
 import org.springframework.security.crypto.keygen.KeyGenerators;
@@ -42,11 +48,18 @@ public class SecurityConfig {
 
     @Bean
     SecurityFilterChain web(HttpSecurity http,
-                            AuthorizationManager<RequestAuthorizationContext> mfaAuthorizationManager) throws Exception {
+                            AuthorizationManager<RequestAuthorizationContext> mfaAuthorizationManager,
+                            UserDetailsService userDetailsService, MfaMetrics mfaMetrics) throws Exception {
 
         MfaAuthenticationHandler mfaAuthenticationHandler = new MfaAuthenticationHandler("/second-factor");
 
+        // the same provider Spring Boot would set up, wrapped to time the first factor
+        DaoAuthenticationProvider provider = new DaoAuthenticationProvider();
+        provider.setUserDetailsService(userDetailsService);
+        provider.setPasswordEncoder(encoder());
+
         http
+                .authenticationManager(new TimedAuthenticationManager(new ProviderManager(provider), mfaMetrics))
                 .authorizeHttpRequests(authorize -> authorize
                         .mvcMatchers("/second-factor", "/third-factor").access(mfaAuthorizationManager)
                         // 由于浏览器会自动加载 favicon.ico，如果不设置允许，将会每次都跳转到登录页面
@@ -86,6 +99,41 @@ public class SecurityConfig {
         return new AesBytesEncryptor(key, KeyGenerators.secureRandom(12), AesBytesEncryptor.CipherAlgorithm.GCM);
     }
 
+    // for the second-factor
+    @Bean
+    UsedCodeStore usedCodeStore() {
+        return new UsedCodeStore(100_000);
+    }
+
+    // for the second-factor
+    @Bean
+    TotpVerifier totpVerifier(UsedCodeStore usedCodeStore) {
+        // the same tolerance for clock drift as TimeBasedOneTimePasswordUtil used;
+        // keys of users who have not signed in for as long as a flow lasts are dropped
+        return new TotpVerifier(usedCodeStore, Duration.ofSeconds(10), Duration.ofMinutes(5));
+    }
+
+    // for the second-factor
+    @Bean
+    FlowKeyCache flowKeyCache() {
+        // about as long as anyone takes to find their phone
+        return new FlowKeyCache(100_000, Duration.ofMinutes(5));
+    }
+
+    // for the second and third factors
+    @Bean
+    MfaThrottle mfaThrottle() {
+        // each sign-in takes two attempts, one per factor; sized for 10,000 users and
+        // addresses signing in within the window, which takes about 4 MB
+        return new MfaThrottle(10, 100, Duration.ofMinutes(15), 10_000, 10_000);
+    }
+
+    // for every factor; timing can be switched off with mfa.metrics.enabled=false
+    @Bean
+    MfaMetrics mfaMetrics(@Value("${mfa.metrics.enabled:true}") boolean enabled) {
+        return new MfaMetrics(enabled);
+    }
+
     // for the third-factor
     @Bean
     PasswordEncoder encoder() {
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * Approximate per-key attempt counts over a sliding window, in a fixed amount of memory
+ * and without locks.
+ * <p>
+ * Keys are hashed onto a table of counters, two rows deep, and a key's count is the
+ * smaller of its two counters, as in a count-min sketch. Keys that share counters can
+ * only make each other's counts too high, never too low, so nobody gets more attempts
+ * than the limit. Each counter keeps the current and the previous fixed window, and the
+ * sliding count weighs the previous window by how much of it still overlaps. A counter is
+ * a single {@code long} holding the window number and the count, updated by
+ * compare-and-set. Counters stop at a cap just above the limit, so a key that keeps
+ * trying raises its neighbours' counts no further than that, and its own count decays in
+ * the next window as if it had stopped at the limit.
+ */
+final class StripedSlidingWindowCounter {
+
+	private static final int ROWS = 2;
+
+	private final AtomicLongArray slots;
+
+	private final int width;
+
+	private final long windowMillis;
+
+	/**
+	 * Creates a counter.
+	 * @param width the number of counters per row, rounded up to a power of two
+	 * @param windowMillis the length of the window
+	 */
+	StripedSlidingWindowCounter(int width, long windowMillis) {
+		Assert.isTrue(width > 0 && width <= (1 << 24), "width must be between 1 and 2^24");
+		Assert.isTrue(windowMillis > 0, "windowMillis must be positive");
+		int powerOfTwo = 1;
+		while (powerOfTwo < width) {
+			powerOfTwo <<= 1;
+		}
+		this.width = powerOfTwo;
+		this.windowMillis = windowMillis;
+		// Two slots per counter: one for even windows and one for odd windows
+		this.slots = new AtomicLongArray(ROWS * this.width * 2);
+	}
+
+	/**
+	 * Counts an attempt for the key.
+	 * @param key the key
+	 * @param now the current time, in milliseconds
+	 * @param cap the most attempts each counter holds per window
+	 * @return the number of attempts in the sliding window, including this one
+	 */
+	long increment(String key, long now, long cap) {
+		long window = now / this.windowMillis;
+		double overlap = 1 - (double) (now % this.windowMillis) / this.windowMillis;
+		int hash = key.hashCode();
+		long estimate = Long.MAX_VALUE;
+		for (int row = 0; row < ROWS; row++) {
+			int counter = row * this.width + (hash & (this.width - 1));
+			long current = increment(slot(counter, window), window, cap);
+			long previous = count(slot(counter, window - 1), window - 1);
+			estimate = Math.min(estimate, current + (long) (previous * overlap));
+			hash = mix(hash);
+		}
+		return estimate;
+	}
+
+	void clear() {
+		for (int i = 0; i < this.slots.length(); i++) {
+			this.slots.set(i, 0);
+		}
+	}
+
+	private static int slot(int counter, long window) {
+		return counter * 2 + (int) (window & 1);
+	}
+
+	private long increment(int slot, long window, long cap) {
+		long windowBits = (window & 0xffffffffL) << 32;
+		long limit = Math.min(cap, 0xffffffffL);
+		while (true) {
+			long value = this.slots.get(slot);
+			long count = ((value & 0xffffffff00000000L) == windowBits) ? value & 0xffffffffL : 0;
+			if (count >= limit) {
+				return count;
+			}
+			if (this.slots.compareAndSet(slot, value, windowBits | (count + 1))) {
+				return count + 1;
+			}
+		}
+	}
+
+	private long count(int slot, long window) {
+		long value = this.slots.get(slot);
+		return ((value >>> 32) == (window & 0xffffffffL)) ? value & 0xffffffffL : 0;
+	}
+
+	/**
+	 * Derives the next row's hash (the MurmurHash3 finalizer), so that keys which collide
+	 * in one row are unlikely to collide in the other.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash;
+	}
+
+}
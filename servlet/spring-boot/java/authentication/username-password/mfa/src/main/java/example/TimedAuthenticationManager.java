@@ -0,0 +1,52 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+
+/**
+ * An {@link AuthenticationManager} that times the first factor.
+ */
+public class TimedAuthenticationManager implements AuthenticationManager {
+
+	private final AuthenticationManager delegate;
+
+	private final MfaMetrics metrics;
+
+	public TimedAuthenticationManager(AuthenticationManager delegate, MfaMetrics metrics) {
+		this.delegate = delegate;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public Authentication authenticate(Authentication authentication) throws AuthenticationException {
+		long start = this.metrics.start();
+		boolean success = false;
+		try {
+			Authentication result = this.delegate.authenticate(authentication);
+			success = true;
+			return result;
+		}
+		finally {
+			this.metrics.record(MfaMetrics.Stage.FIRST_FACTOR, start, success);
+		}
+	}
+
+}
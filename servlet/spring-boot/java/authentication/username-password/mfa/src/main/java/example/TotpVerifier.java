@@ -0,0 +1,229 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.function.Supplier;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.util.Assert;
+
+/**
+ * Verifies time-based one-time passwords (RFC 6238) as generated by Google
+ * Authenticator: six digits, HMAC-SHA1 and 30-second time-steps.
+ * <p>
+ * Each user's key is kept between attempts, for as long as they keep using it within the
+ * given idle time, and each thread reuses one {@link Mac}, so an attempt costs a few HMACs
+ * and neither decrypting nor decoding the key. A cached key is only used with the stored
+ * secret it was decrypted from, so a user who enrolls again is never checked against
+ * their old key. Every time-step in the window is checked, whether or not an earlier one
+ * matched, so the time taken does not reveal which step a code was for. Codes are single
+ * use, see {@link UsedCodeStore}.
+ */
+public final class TotpVerifier {
+
+	private static final long TIME_STEP_MILLIS = 30_000;
+
+	private static final int MAXIMUM_CACHED_KEYS = 10_000;
+
+	private static final ThreadLocal<HmacSha1> HMAC = ThreadLocal.withInitial(HmacSha1::new);
+
+	private final Cache<String, CachedKey> keys;
+
+	private final UsedCodeStore usedCodes;
+
+	private final long allowedDriftMillis;
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Creates a verifier.
+	 * @param usedCodes where to record the codes that have been used
+	 * @param allowedDrift how far the authenticator's clock may be from this one
+	 * @param keyIdleTime how long to keep a user's key after their last attempt
+	 */
+	public TotpVerifier(UsedCodeStore usedCodes, Duration allowedDrift, Duration keyIdleTime) {
+		Assert.notNull(usedCodes, "usedCodes cannot be null");
+		Assert.isTrue(allowedDrift != null && !allowedDrift.isNegative(), "allowedDrift cannot be negative");
+		Assert.isTrue(keyIdleTime != null && !keyIdleTime.isNegative() && !keyIdleTime.isZero(),
+				"keyIdleTime must be positive");
+		this.usedCodes = usedCodes;
+		this.allowedDriftMillis = allowedDrift.toMillis();
+		this.keys = Caffeine.newBuilder()
+				.maximumSize(MAXIMUM_CACHED_KEYS)
+				.expireAfterAccess(keyIdleTime)
+				.build();
+	}
+
+	/**
+	 * Checks a code, and uses it up if it is correct.
+	 * @param username the user, or {@code null} if they are not known, in which case the
+	 * key is neither cached nor is the code recorded
+	 * @param secret the user's key as stored, for example encrypted, which identifies the
+	 * key without revealing it
+	 * @param hexKey supplies the user's key, hex-encoded; only called if it is not cached
+	 * @param code the code the user entered
+	 * @return whether the code is correct and has not been used before
+	 */
+	public boolean verify(String username, String secret, Supplier<String> hexKey, String code) {
+		Assert.notNull(hexKey, "hexKey cannot be null");
+		int number = parse(code);
+		if (number < 0) {
+			return false;
+		}
+		long now = this.clock.millis();
+		long firstStep = Math.floorDiv(now - this.allowedDriftMillis, TIME_STEP_MILLIS);
+		long lastStep = Math.floorDiv(now + this.allowedDriftMillis, TIME_STEP_MILLIS);
+		long matchedStep = matchingStep(key(username, secret, hexKey), number, firstStep, lastStep);
+		if (matchedStep < 0) {
+			return false;
+		}
+		return username == null || this.usedCodes.markUsed(username, matchedStep, firstStep);
+	}
+
+	private long matchingStep(SecretKeySpec key, int number, long firstStep, long lastStep) {
+		HmacSha1 hmac = HMAC.get();
+		hmac.init(key);
+		long matchedStep = -1;
+		for (long step = firstStep; step <= lastStep; step++) {
+			int difference = hmac.code(step) ^ number;
+			// All ones when the codes are equal, without branching on the comparison
+			long mask = ((long) ((difference | -difference) >>> 31)) - 1;
+			matchedStep = (step & mask) | (matchedStep & ~mask);
+		}
+		return matchedStep;
+	}
+
+	private SecretKeySpec key(String username, String secret, Supplier<String> hexKey) {
+		if (username == null || secret == null) {
+			return new SecretKeySpec(Hex.decode(hexKey.get()), "HmacSHA1");
+		}
+		CachedKey cached = this.keys.getIfPresent(username);
+		if (cached != null && cached.secret.equals(secret)) {
+			return cached.key;
+		}
+		// A different secret means the user has enrolled again
+		cached = new CachedKey(secret, new SecretKeySpec(Hex.decode(hexKey.get()), "HmacSHA1"));
+		this.keys.put(username, cached);
+		return cached.key;
+	}
+
+	/**
+	 * Forgets a user's key, for example when they enroll a new authenticator.
+	 * @param username the user
+	 */
+	public void evictKey(String username) {
+		this.keys.invalidate(username);
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private static int parse(String code) {
+		// Leading zeros are allowed to be missing, as they are when a code is handled as a number
+		if (code == null || code.isEmpty() || code.length() > 6) {
+			return -1;
+		}
+		int number = 0;
+		for (int i = 0; i < code.length(); i++) {
+			int digit = Character.digit(code.charAt(i), 10);
+			if (digit < 0) {
+				return -1;
+			}
+			number = number * 10 + digit;
+		}
+		return number;
+	}
+
+	private static final class CachedKey {
+
+		private final String secret;
+
+		private final SecretKeySpec key;
+
+		CachedKey(String secret, SecretKeySpec key) {
+			this.secret = secret;
+			this.key = key;
+		}
+
+	}
+
+	/**
+	 * A thread's {@link Mac}, along with buffers for its input and output.
+	 */
+	private static final class HmacSha1 {
+
+		private final Mac mac;
+
+		private final byte[] counter = new byte[8];
+
+		private final byte[] hash;
+
+		HmacSha1() {
+			try {
+				this.mac = Mac.getInstance("HmacSHA1");
+			}
+			catch (GeneralSecurityException ex) {
+				throw new IllegalStateException("HmacSHA1 not available", ex);
+			}
+			this.hash = new byte[this.mac.getMacLength()];
+		}
+
+		void init(SecretKeySpec key) {
+			try {
+				this.mac.init(key);
+			}
+			catch (InvalidKeyException ex) {
+				throw new IllegalArgumentException(ex);
+			}
+		}
+
+		int code(long step) {
+			for (int i = 7; i >= 0; i--) {
+				this.counter[i] = (byte) step;
+				step >>>= 8;
+			}
+			this.mac.update(this.counter);
+			try {
+				this.mac.doFinal(this.hash, 0);
+			}
+			catch (ShortBufferException ex) {
+				throw new IllegalStateException(ex);
+			}
+			// Dynamic truncation, as in RFC 4226
+			int offset = this.hash[this.hash.length - 1] & 0xf;
+			int binary = ((this.hash[offset] & 0x7f) << 24) | ((this.hash[offset + 1] & 0xff) << 16)
+					| ((this.hash[offset + 2] & 0xff) << 8) | (this.hash[offset + 3] & 0xff);
+			return binary % 1_000_000;
+		}
+
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.util.Assert;
+
+/**
+ * Remembers which time-step each user last signed in with, so that a one-time password
+ * cannot be used twice.
+ * <p>
+ * Only the latest step is kept per user: a code is accepted only if it is for a later
+ * step than the last accepted one, which also rejects older codes that are still within
+ * the window. Entries are dropped once their step has left the window, and the store
+ * holds at most {@code maximumSize} users; when it is full of live entries it refuses
+ * new users rather than forgetting codes that could then be replayed.
+ */
+public final class UsedCodeStore {
+
+	private final Map<String, Long> lastUsedSteps = new ConcurrentHashMap<>();
+
+	private final int maximumSize;
+
+	public UsedCodeStore(int maximumSize) {
+		Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+		this.maximumSize = maximumSize;
+	}
+
+	/**
+	 * Records that a user has signed in with the code for a time-step.
+	 * @param username the user
+	 * @param timeStep the time-step the code was for
+	 * @param oldestLiveStep the oldest time-step still within the window, used to expire
+	 * entries
+	 * @return {@code false} if the code, or a later one, has already been used
+	 */
+	public boolean markUsed(String username, long timeStep, long oldestLiveStep) {
+		Assert.notNull(username, "username cannot be null");
+		if (this.lastUsedSteps.size() >= this.maximumSize && !this.lastUsedSteps.containsKey(username)) {
+			removeExpired(oldestLiveStep);
+			if (this.lastUsedSteps.size() >= this.maximumSize) {
+				return false;
+			}
+		}
+		while (true) {
+			Long lastUsed = this.lastUsedSteps.putIfAbsent(username, timeStep);
+			if (lastUsed == null) {
+				return true;
+			}
+			if (lastUsed >= timeStep) {
+				return false;
+			}
+			if (this.lastUsedSteps.replace(username, lastUsed, timeStep)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the users whose last code has left the window.
+	 * @param oldestLiveStep the oldest time-step still within the window
+	 */
+	public void removeExpired(long oldestLiveStep) {
+		this.lastUsedSteps.values().removeIf((step) -> step < oldestLiveStep);
+	}
+
+	public void clear() {
+		this.lastUsedSteps.clear();
+	}
+
+	public int size() {
+		return this.lastUsedSteps.size();
+	}
+
+}
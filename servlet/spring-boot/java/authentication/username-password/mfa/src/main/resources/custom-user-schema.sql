@@ -0,0 +1,9 @@
+create table custom_user (
+	id bigint not null primary key,
+	email varchar(256) not null,
+	password varchar(256) not null,
+	secret varchar(512) not null,
+	answer varchar(256) not null
+);
+
+create unique index custom_user_email on custom_user (email);
@@ -15,23 +15,32 @@
  */
 package example;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
 import javax.servlet.http.HttpSession;
 
 import com.j256.twofactorauth.TimeBasedOneTimePasswordUtil;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestBuilders.formLogin;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.csrf;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.redirectedUrl;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
  * @author Rob Winch
@@ -45,6 +54,31 @@ public class MfaApplicationTests {
 	@Autowired
 	private MockMvc mockMvc;
 
+	@Autowired
+	private UsedCodeStore usedCodes;
+
+	@Autowired
+	private MfaThrottle throttle;
+
+	@Autowired
+	private MfaMetrics metrics;
+
+	@Autowired
+	private FlowKeyCache flowKeys;
+
+	@Autowired
+	private CustomUserRepository users;
+
+	@Autowired
+	private PasswordEncoder encoder;
+
+	@BeforeEach
+	void forgetEarlierAttempts() {
+		// each test signs in with the current code, which can otherwise only be used once
+		this.usedCodes.clear();
+		this.throttle.clear();
+	}
+
 	@Test
 	void mfaWhenAllFactorsSucceedMatchesThenWorks() throws Exception {
 		
@@ -185,4 +219,218 @@ public class MfaApplicationTests {
 		
 	}
 
+	@Test
+	void mfaWhenCodeReusedThenRedirects() throws Exception {
+
+		Integer code = TimeBasedOneTimePasswordUtil.generateCurrentNumberHex(hexKey);
+		for (String expectedUrl : new String[] { "/", "/login?error" }) {
+			MvcResult result = this.mockMvc.perform(formLogin()
+					.user("user@example.com")
+					.password("password"))
+					.andExpect(redirectedUrl("/second-factor"))
+					.andReturn();
+
+			HttpSession session = result.getRequest().getSession();
+
+			this.mockMvc.perform(post("/second-factor")
+					.session((MockHttpSession) session)
+					.param("code", String.valueOf(code))
+					.with(csrf()))
+					.andExpect(redirectedUrl("/third-factor"));
+
+			this.mockMvc.perform(post("/third-factor")
+					.session((MockHttpSession) session)
+					.param("answer", "smith")
+					.with(csrf()))
+					.andExpect(redirectedUrl(expectedUrl));
+		}
+
+	}
+
+	@Test
+	void mfaWhenTooManyAttemptsThenRejectsBeforeChecking() throws Exception {
+
+		for (int attempt = 0; attempt <= 10; attempt++) {
+			MvcResult result = this.mockMvc.perform(formLogin()
+					.user("user@example.com")
+					.password("password"))
+					.andExpect(redirectedUrl("/second-factor"))
+					.andReturn();
+
+			HttpSession session = result.getRequest().getSession();
+
+			Integer code = TimeBasedOneTimePasswordUtil.generateCurrentNumberHex(hexKey);
+			if (attempt < 10) {
+				this.mockMvc.perform(post("/second-factor")
+						.session((MockHttpSession) session)
+						.param("code", String.valueOf(code - 1))
+						.with(csrf()))
+						.andExpect(redirectedUrl("/third-factor"));
+			}
+			else {
+				long checked = checkCount(MfaMetrics.Stage.SECOND_FACTOR);
+				long cachedKeys = this.flowKeys.size();
+				this.mockMvc.perform(post("/second-factor")
+						.session((MockHttpSession) session)
+						.param("code", String.valueOf(code))
+						.with(csrf()))
+						.andExpect(status().isTooManyRequests());
+				// neither checked nor decrypted; abandoned flows may have been collected meanwhile
+				assertThat(checkCount(MfaMetrics.Stage.SECOND_FACTOR)).isEqualTo(checked);
+				assertThat(this.flowKeys.size()).isLessThanOrEqualTo(cachedKeys);
+			}
+		}
+
+	}
+
+	@Test
+	void mfaWhenTooManySecurityAnswersThenRejectsBeforeHashing() throws Exception {
+
+		MvcResult result = this.mockMvc.perform(formLogin()
+				.user("user@example.com")
+				.password("password"))
+				.andExpect(redirectedUrl("/second-factor"))
+				.andReturn();
+
+		HttpSession session = result.getRequest().getSession();
+
+		Integer code = TimeBasedOneTimePasswordUtil.generateCurrentNumberHex(hexKey);
+		this.mockMvc.perform(post("/second-factor")
+				.session((MockHttpSession) session)
+				.param("code", String.valueOf(code))
+				.with(csrf()))
+				.andExpect(redirectedUrl("/third-factor"));
+
+		// the second factor was the first of ten attempts
+		for (int attempt = 1; attempt < 10; attempt++) {
+			this.mockMvc.perform(post("/third-factor")
+					.session((MockHttpSession) session)
+					.param("answer", "wilson")
+					.with(csrf()))
+					.andExpect(redirectedUrl("/login?error"));
+		}
+
+		long checked = checkCount(MfaMetrics.Stage.THIRD_FACTOR);
+		this.mockMvc.perform(post("/third-factor")
+				.session((MockHttpSession) session)
+				.param("answer", "smith")
+				.with(csrf()))
+				.andExpect(status().isTooManyRequests());
+		assertThat(checkCount(MfaMetrics.Stage.THIRD_FACTOR)).isEqualTo(checked);
+
+	}
+
+	@Test
+	void mfaWhenAddressOverLimitThenUserAttemptsNotUsedUp() {
+
+		for (int attempt = 0; attempt < 100; attempt++) {
+			assertThat(this.throttle.tryAcquire(null, "192.0.2.1")).isTrue();
+		}
+		// an attacker's address keeps guessing at the user's factors
+		for (int attempt = 0; attempt < 50; attempt++) {
+			assertThat(this.throttle.tryAcquire("user@example.com", "192.0.2.1")).isFalse();
+		}
+
+		for (int attempt = 0; attempt < 10; attempt++) {
+			assertThat(this.throttle.tryAcquire("user@example.com", "192.0.2.2")).isTrue();
+		}
+		assertThat(this.throttle.tryAcquire("user@example.com", "192.0.2.2")).isFalse();
+
+	}
+
+	@Test
+	void mfaWhenUserKeptTryingThenThrottledOnlyAsIfStoppedAtLimit() {
+
+		// the start of a window, so that half of it overlaps 22.5 minutes later
+		Instant start = Instant.parse("2021-01-01T00:00:00Z");
+		try {
+			this.throttle.setClock(Clock.fixed(start, ZoneOffset.UTC));
+			for (int attempt = 0; attempt < 1000; attempt++) {
+				this.throttle.tryAcquire("user@example.com", "192.0.2.1");
+			}
+
+			// half of the capped count of 11 is still in the window, not half of 1000
+			this.throttle.setClock(Clock.fixed(start.plus(Duration.ofMinutes(22).plusSeconds(30)), ZoneOffset.UTC));
+			assertThat(this.throttle.tryAcquire("user@example.com", "192.0.2.3")).isTrue();
+		}
+		finally {
+			this.throttle.setClock(Clock.systemUTC());
+		}
+
+	}
+
+	private long checkCount(MfaMetrics.Stage stage) {
+		return this.metrics.getCount(stage, true) + this.metrics.getCount(stage, false);
+	}
+
+	@Test
+	void mfaWhenAllFactorsSucceedThenRecordsEveryStage() throws Exception {
+
+		long firstFactors = this.metrics.getCount(MfaMetrics.Stage.FIRST_FACTOR, true);
+		long secondFactors = this.metrics.getCount(MfaMetrics.Stage.SECOND_FACTOR, true);
+		long thirdFactors = this.metrics.getCount(MfaMetrics.Stage.THIRD_FACTOR, true);
+		long completions = this.metrics.getCompletionCount();
+
+		MvcResult result = this.mockMvc.perform(formLogin()
+				.user("user@example.com")
+				.password("password"))
+				.andExpect(redirectedUrl("/second-factor"))
+				.andReturn();
+
+		HttpSession session = result.getRequest().getSession();
+
+		Integer code = TimeBasedOneTimePasswordUtil.generateCurrentNumberHex(hexKey);
+		this.mockMvc.perform(post("/second-factor")
+				.session((MockHttpSession) session)
+				.param("code", String.valueOf(code))
+				.with(csrf()))
+				.andExpect(redirectedUrl("/third-factor"));
+
+		this.mockMvc.perform(post("/third-factor")
+				.session((MockHttpSession) session)
+				.param("answer", "smith")
+				.with(csrf()))
+				.andExpect(redirectedUrl("/"));
+
+		assertThat(this.metrics.getCount(MfaMetrics.Stage.FIRST_FACTOR, true)).isEqualTo(firstFactors + 1);
+		assertThat(this.metrics.getCount(MfaMetrics.Stage.SECOND_FACTOR, true)).isEqualTo(secondFactors + 1);
+		assertThat(this.metrics.getCount(MfaMetrics.Stage.THIRD_FACTOR, true)).isEqualTo(thirdFactors + 1);
+		assertThat(this.metrics.getCompletionCount()).isEqualTo(completions + 1);
+
+	}
+
+	@Test
+	void mfaWhenSecurityAnswerChangedThenUsesNewAnswer() throws Exception {
+
+		CustomUser user = this.users.findCustomUserByEmail("user@example.com");
+		this.users.save(new CustomUser(user.getId(), user.getEmail(), user.getPassword(), user.getSecret(),
+				this.encoder.encode("wilson")));
+		try {
+			MvcResult result = this.mockMvc.perform(formLogin()
+					.user("user@example.com")
+					.password("password"))
+					.andExpect(redirectedUrl("/second-factor"))
+					.andReturn();
+
+			HttpSession session = result.getRequest().getSession();
+
+			Integer code = TimeBasedOneTimePasswordUtil.generateCurrentNumberHex(hexKey);
+			this.mockMvc.perform(post("/second-factor")
+					.session((MockHttpSession) session)
+					.param("code", String.valueOf(code))
+					.with(csrf()))
+					.andExpect(redirectedUrl("/third-factor"));
+
+			this.mockMvc.perform(post("/third-factor")
+					.session((MockHttpSession) session)
+					.param("answer", "wilson")
+					.with(csrf()))
+					.andExpect(redirectedUrl("/"));
+		}
+		finally {
+			this.users.save(user);
+		}
+
+	}
+
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.Collection;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtGrantedAuthoritiesConverter;
+
+/**
+ * Measures how many bytes converting a token's scope to authorities allocates, with the
+ * default {@link JwtGrantedAuthoritiesConverter} and with
+ * {@link CachingJwtGrantedAuthoritiesConverter}.
+ * <p>
+ * Run with <code>./gradlew benchmark</code>. The number of conversions is read from
+ * <code>jwt.benchmark.iterations</code>. Allocation is read from the HotSpot thread MX
+ * bean, so the benchmark needs a HotSpot-based JVM.
+ */
+public class AuthorityConversionBenchmark {
+
+	private static final int ITERATIONS = Integer.getInteger("jwt.benchmark.iterations", 1_000_000);
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	@Test
+	void bytesPerConversion() {
+		Jwt jwt = Jwt.withTokenValue("token")
+				.header("alg", "ES256")
+				.subject("user")
+				.issuedAt(Instant.now())
+				.expiresAt(Instant.now().plusSeconds(900))
+				.claim("scope", "app message:read message:write")
+				.build();
+		report("default", new JwtGrantedAuthoritiesConverter(), jwt);
+		report("caching", new CachingJwtGrantedAuthoritiesConverter(), jwt);
+	}
+
+	private static void report(String name, Converter<Jwt, Collection<GrantedAuthority>> converter, Jwt jwt) {
+		convert(converter, jwt);
+		long threadId = Thread.currentThread().getId();
+		long before = THREADS.getThreadAllocatedBytes(threadId);
+		long sink = convert(converter, jwt);
+		long allocated = THREADS.getThreadAllocatedBytes(threadId) - before;
+		System.out.printf("%-8s %,10.1f bytes/conversion (%d)%n", name, (double) allocated / ITERATIONS, sink);
+	}
+
+	private static long convert(Converter<Jwt, Collection<GrantedAuthority>> converter, Jwt jwt) {
+		long authorities = 0;
+		for (int i = 0; i < ITERATIONS; i++) {
+			authorities += converter.convert(jwt).size();
+		}
+		return authorities;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+
+/**
+ * Measures the time and the bytes allocated to decode a token with
+ * {@link KeyRotatingJwtDecoder}, through Nimbus and through the known-header fast path,
+ * for each {@link JwtSigningAlgorithm}.
+ * <p>
+ * Every decode is of the same token, as when a client repeats its token on every request,
+ * but without the cache that {@link CachingJwtDecoder} would put in front. Run with
+ * <code>./gradlew benchmark</code>. The number of decodes is read from
+ * <code>jwt.benchmark.iterations</code>. Allocation is read from the HotSpot thread MX
+ * bean, so the benchmark needs a HotSpot-based JVM.
+ */
+public class TokenDecodingBenchmark {
+
+	private static final int ITERATIONS = Integer.getInteger("jwt.benchmark.iterations", 1_000_000) / 10;
+
+	private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory
+			.getThreadMXBean();
+
+	@Test
+	void bytesPerDecode() throws Exception {
+		for (JwtSigningAlgorithm algorithm : JwtSigningAlgorithm.values()) {
+			SigningKeys keys = new SigningKeys(algorithm, Duration.ofHours(10));
+			String token = sign(keys);
+			for (boolean fastPath : new boolean[] { false, true }) {
+				KeyRotatingJwtDecoder decoder = new KeyRotatingJwtDecoder(keys);
+				decoder.setKnownHeaderFastPath(fastPath);
+				decode(decoder, token);
+				long threadId = Thread.currentThread().getId();
+				long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+				long started = System.nanoTime();
+				decode(decoder, token);
+				long elapsed = System.nanoTime() - started;
+				long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+				System.out.printf("%-6s %-10s %,10.0f decodes/s %,10.0f bytes/decode%n", algorithm,
+						fastPath ? "fast path" : "nimbus", ITERATIONS / (elapsed / 1e9), (double) allocated / ITERATIONS);
+			}
+		}
+	}
+
+	private static String sign(SigningKeys keys) {
+		Instant now = Instant.now();
+		JwtClaimsSet claims = JwtClaimsSet.builder()
+				.issuer("self")
+				.issuedAt(now)
+				.expiresAt(now.plusSeconds(900))
+				.subject("user")
+				.id(UUID.randomUUID().toString())
+				.claim("scope", "app")
+				.build();
+		return new KeyRotatingJwtEncoder(keys).encode(JwtEncoderParameters.from(claims)).getTokenValue();
+	}
+
+	private static void decode(KeyRotatingJwtDecoder decoder, String token) {
+		for (int i = 0; i < ITERATIONS; i++) {
+			decoder.decode(token);
+		}
+	}
+
+}
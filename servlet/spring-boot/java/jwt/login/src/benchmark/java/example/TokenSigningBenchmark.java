@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+
+import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtEncoder;
+import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+
+/**
+ * Measures how many tokens per second {@link KeyRotatingJwtEncoder} signs with each
+ * {@link JwtSigningAlgorithm}, on a single thread and so on one core.
+ * <p>
+ * Run with <code>./gradlew benchmark</code>. The time spent per algorithm is read from
+ * <code>jwt.benchmark.warmup-seconds</code> and <code>jwt.benchmark.seconds</code>.
+ */
+public class TokenSigningBenchmark {
+
+	private static final Duration WARMUP = Duration.ofSeconds(Long.getLong("jwt.benchmark.warmup-seconds", 2));
+
+	private static final Duration MEASUREMENT = Duration.ofSeconds(Long.getLong("jwt.benchmark.seconds", 5));
+
+	@Test
+	void tokensPerSecond() throws Exception {
+		for (JwtSigningAlgorithm algorithm : JwtSigningAlgorithm.values()) {
+			JwtEncoder encoder = new KeyRotatingJwtEncoder(new SigningKeys(algorithm, Duration.ofHours(10)));
+			sign(encoder, WARMUP);
+			long tokens = sign(encoder, MEASUREMENT);
+			System.out.printf("%-6s %,12.0f tokens/s%n", algorithm, tokens / (MEASUREMENT.toNanos() / 1e9));
+		}
+	}
+
+	private static long sign(JwtEncoder encoder, Duration duration) {
+		long deadline = System.nanoTime() + duration.toNanos();
+		long tokens = 0;
+		while (System.nanoTime() < deadline) {
+			Instant now = Instant.now();
+			JwtClaimsSet claims = JwtClaimsSet.builder()
+					.issuer("self")
+					.issuedAt(now)
+					.expiresAt(now.plusSeconds(36000L))
+					.subject("user")
+					.claim("scope", "app")
+					.build();
+			encoder.encode(JwtEncoderParameters.from(claims));
+			tokens++;
+		}
+		return tokens;
+	}
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.util.Assert;
+
+/**
+ * A Bloom filter over strings, which answers "definitely not present" without touching
+ * anything but a few bits.
+ * <p>
+ * Adding is thread-safe and lock-free. Entries cannot be removed, so callers that need to
+ * forget entries build a new filter instead.
+ */
+final class BloomFilter {
+
+	private final AtomicLongArray bits;
+
+	private final int bitCount;
+
+	private final int hashCount;
+
+	/**
+	 * Creates a filter sized for the given number of entries.
+	 * @param expectedInsertions how many entries the filter should hold
+	 * @param falsePositiveProbability the rate of false positives once it holds them
+	 */
+	BloomFilter(int expectedInsertions, double falsePositiveProbability) {
+		Assert.isTrue(expectedInsertions > 0, "expectedInsertions must be positive");
+		Assert.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1,
+				"falsePositiveProbability must be between 0 and 1");
+		double ln2 = Math.log(2);
+		long bitCount = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (ln2 * ln2));
+		// Round up to whole words, and keep the index arithmetic within an int
+		this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, (bitCount + 63) & ~63L));
+		this.hashCount = Math.max(1, (int) Math.round((double) this.bitCount / expectedInsertions * ln2));
+		this.bits = new AtomicLongArray(this.bitCount >>> 6);
+	}
+
+	void add(String value) {
+		int hash1 = value.hashCode();
+		int hash2 = mix(hash1);
+		for (int i = 0; i < this.hashCount; i++) {
+			int bit = index(hash1 + i * hash2);
+			long mask = 1L << bit;
+			int word = bit >>> 6;
+			long current = this.bits.get(word);
+			while ((current & mask) == 0 && !this.bits.compareAndSet(word, current, current | mask)) {
+				current = this.bits.get(word);
+			}
+		}
+	}
+
+	/**
+	 * Tells whether the value might have been added.
+	 * @param value the value
+	 * @return {@code false} if the value has definitely not been added
+	 */
+	boolean mightContain(String value) {
+		int hash1 = value.hashCode();
+		int hash2 = mix(hash1);
+		for (int i = 0; i < this.hashCount; i++) {
+			int bit = index(hash1 + i * hash2);
+			if ((this.bits.get(bit >>> 6) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int index(int hash) {
+		return (hash & Integer.MAX_VALUE) % this.bitCount;
+	}
+
+	/**
+	 * Derives a second hash from the first (the MurmurHash3 finalizer), for double
+	 * hashing. Strings with equal hash codes collide in every position, which only costs
+	 * a lookup in the exact set.
+	 */
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		return hash | 1;
+	}
+
+}
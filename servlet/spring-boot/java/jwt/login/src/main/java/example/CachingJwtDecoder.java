@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2TokenValidatorResult;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.jwt.JwtValidationException;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link JwtDecoder} that remembers the tokens another decoder has already verified,
+ * so that a client presenting the same token on every request pays for signature
+ * verification once.
+ * <p>
+ * Entries are keyed by the SHA-256 digest of the token and expire when the token does.
+ * Only tokens that decoded successfully are cached, so forged tokens cannot fill the
+ * cache, and the cache is bounded using Caffeine's frequency-based eviction. Tokens
+ * without an {@code exp} claim are never cached.
+ * <p>
+ * A cached token is accepted even if its signing key is dropped from
+ * {@link SigningKeys} first, so the grace period should be at least as long as tokens
+ * live. Checks whose outcome can change while a token lives, such as revocation, belong
+ * in {@link #setJwtValidator(OAuth2TokenValidator)}, which runs on every call.
+ */
+public final class CachingJwtDecoder implements JwtDecoder, MeterBinder {
+
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+	});
+
+	private final JwtDecoder delegate;
+
+	private final Cache<TokenDigest, Jwt> cache;
+
+	private OAuth2TokenValidator<Jwt> jwtValidator = (jwt) -> OAuth2TokenValidatorResult.success();
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Creates a decoder that caches what the given decoder returns.
+	 * @param delegate the decoder that verifies and validates tokens
+	 * @param maximumSize the most tokens to remember
+	 */
+	public CachingJwtDecoder(JwtDecoder delegate, long maximumSize) {
+		Assert.notNull(delegate, "delegate cannot be null");
+		Assert.isTrue(maximumSize > 0, "maximumSize must be positive");
+		this.delegate = delegate;
+		this.cache = Caffeine.newBuilder()
+				.maximumSize(maximumSize)
+				.expireAfter(new ExpiresWithToken())
+				.recordStats()
+				.build();
+	}
+
+	@Override
+	public Jwt decode(String token) throws JwtException {
+		Assert.notNull(token, "token cannot be null");
+		TokenDigest digest = new TokenDigest(token);
+		Jwt jwt = this.cache.getIfPresent(digest);
+		if (jwt == null) {
+			// Failures propagate and leave nothing behind
+			jwt = this.delegate.decode(token);
+			if (jwt.getExpiresAt() != null) {
+				this.cache.put(digest, jwt);
+			}
+		}
+		OAuth2TokenValidatorResult validation = this.jwtValidator.validate(jwt);
+		if (validation.hasErrors()) {
+			OAuth2Error error = validation.getErrors().iterator().next();
+			throw new JwtValidationException(
+					"An error occurred while attempting to decode the Jwt: " + error.getDescription(),
+					validation.getErrors());
+		}
+		return jwt;
+	}
+
+	/**
+	 * Gets the hit and miss counts of the cache.
+	 * @return a snapshot of the cache statistics
+	 */
+	public CacheStats getStats() {
+		return this.cache.stats();
+	}
+
+	/**
+	 * Publishes the cache statistics, such as {@code cache.gets}, tagged with
+	 * {@code cache=jwt}.
+	 */
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		new CaffeineCacheMetrics(this.cache, "jwt", Collections.emptyList()).bindTo(registry);
+	}
+
+	/**
+	 * Use this {@link Jwt} Validator on every token, cached or not, in addition to the
+	 * validation done by the delegate
+	 * @param jwtValidator - the Jwt Validator to use
+	 */
+	public void setJwtValidator(OAuth2TokenValidator<Jwt> jwtValidator) {
+		Assert.notNull(jwtValidator, "jwtValidator cannot be null");
+		this.jwtValidator = jwtValidator;
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private final class ExpiresWithToken implements Expiry<TokenDigest, Jwt> {
+
+		@Override
+		public long expireAfterCreate(TokenDigest key, Jwt jwt, long currentTime) {
+			Instant now = CachingJwtDecoder.this.clock.instant();
+			Duration remaining = Duration.between(now, jwt.getExpiresAt());
+			return remaining.isNegative() ? 0 : saturatedNanos(remaining);
+		}
+
+		@Override
+		public long expireAfterUpdate(TokenDigest key, Jwt jwt, long currentTime, long currentDuration) {
+			return expireAfterCreate(key, jwt, currentTime);
+		}
+
+		@Override
+		public long expireAfterRead(TokenDigest key, Jwt jwt, long currentTime, long currentDuration) {
+			return currentDuration;
+		}
+
+		private long saturatedNanos(Duration duration) {
+			try {
+				return duration.toNanos();
+			}
+			catch (ArithmeticException ex) {
+				return Long.MAX_VALUE;
+			}
+		}
+
+	}
+
+	private static final class TokenDigest {
+
+		private final byte[] bytes;
+
+		private final int hashCode;
+
+		TokenDigest(String token) {
+			this.bytes = SHA256.get().digest(token.getBytes(StandardCharsets.UTF_8));
+			this.hashCode = Arrays.hashCode(this.bytes);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof TokenDigest && Arrays.equals(this.bytes, ((TokenDigest) obj).bytes);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+
+	}
+
+}
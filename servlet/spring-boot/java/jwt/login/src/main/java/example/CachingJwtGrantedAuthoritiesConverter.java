@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtGrantedAuthoritiesConverter;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Converts the {@code scope} (or {@code scp}) claim of a {@link Jwt} to authorities,
+ * like {@link JwtGrantedAuthoritiesConverter}, but remembers the result for each distinct
+ * scope string.
+ * <p>
+ * A client presents the same scope on every request, so after the first request
+ * conversion is a single map lookup that allocates nothing. Each authority is also
+ * interned, so equal authorities from different scope strings are the same object. Both
+ * caches stop growing once they hold {@code maximumSize} entries; conversions beyond that
+ * still work, they are just not remembered.
+ */
+public final class CachingJwtGrantedAuthoritiesConverter implements Converter<Jwt, Collection<GrantedAuthority>> {
+
+	private static final String[] WELL_KNOWN_AUTHORITIES_CLAIM_NAMES = { "scope", "scp" };
+
+	private final Map<String, List<GrantedAuthority>> authoritiesByScope = new ConcurrentHashMap<>();
+
+	private final Map<String, GrantedAuthority> authorities = new ConcurrentHashMap<>();
+
+	private final int maximumSize;
+
+	private String authorityPrefix = "SCOPE_";
+
+	public CachingJwtGrantedAuthoritiesConverter() {
+		this(1024);
+	}
+
+	/**
+	 * Creates a converter.
+	 * @param maximumSize the most scope strings, and separately the most authorities, to
+	 * remember
+	 */
+	public CachingJwtGrantedAuthoritiesConverter(int maximumSize) {
+		Assert.isTrue(maximumSize >= 0, "maximumSize cannot be negative");
+		this.maximumSize = maximumSize;
+	}
+
+	@Override
+	public Collection<GrantedAuthority> convert(Jwt jwt) {
+		for (String claimName : WELL_KNOWN_AUTHORITIES_CLAIM_NAMES) {
+			Object scope = jwt.getClaims().get(claimName);
+			if (scope instanceof String) {
+				return convert((String) scope);
+			}
+			if (scope instanceof Collection) {
+				// Rare enough in this sample to convert each time, but still interned
+				List<GrantedAuthority> result = new ArrayList<>();
+				for (Object name : (Collection<?>) scope) {
+					result.add(authority(name.toString()));
+				}
+				return result;
+			}
+		}
+		return Collections.emptyList();
+	}
+
+	private List<GrantedAuthority> convert(String scope) {
+		List<GrantedAuthority> result = this.authoritiesByScope.get(scope);
+		if (result != null) {
+			return result;
+		}
+		if (!StringUtils.hasText(scope)) {
+			return Collections.emptyList();
+		}
+		List<GrantedAuthority> converted = new ArrayList<>();
+		for (String name : scope.split(" ")) {
+			if (!name.isEmpty()) {
+				converted.add(authority(name));
+			}
+		}
+		result = Collections.unmodifiableList(converted);
+		if (this.authoritiesByScope.size() < this.maximumSize) {
+			this.authoritiesByScope.putIfAbsent(scope, result);
+		}
+		return result;
+	}
+
+	private GrantedAuthority authority(String name) {
+		GrantedAuthority authority = this.authorities.get(name);
+		if (authority != null) {
+			return authority;
+		}
+		authority = new SimpleGrantedAuthority(this.authorityPrefix + name);
+		if (this.authorities.size() < this.maximumSize) {
+			GrantedAuthority existing = this.authorities.putIfAbsent(name, authority);
+			return (existing != null) ? existing : authority;
+		}
+		return authority;
+	}
+
+	/**
+	 * Sets the prefix to use for authorities, {@code SCOPE_} by default. Must be set
+	 * before the first conversion.
+	 * @param authorityPrefix the prefix, which may be empty
+	 */
+	public void setAuthorityPrefix(String authorityPrefix) {
+		Assert.notNull(authorityPrefix, "authorityPrefix cannot be null");
+		this.authorityPrefix = authorityPrefix;
+	}
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jose.util.JSONObjectUtils;
+
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtClaimNames;
+
+/**
+ * Decodes compact JWS tokens whose header has been seen, and verified, before.
+ * <p>
+ * Tokens signed with the same key have byte-for-byte the same header, so once Nimbus has
+ * parsed and verified one of them the header segment alone identifies the key. Tokens
+ * that start with a known header skip header parsing, are verified with a
+ * {@link Signature} that each thread keeps for the key, and have their payload parsed
+ * once, straight into the claims of the {@link Jwt}. Anything else is left to the caller.
+ * <p>
+ * {@link Jwt} copies its claims when it is created, so claims cannot be materialized
+ * lazily; parsing them in a single pass is the closest equivalent.
+ */
+final class CompactJwsDecoder {
+
+	private static final String DECODING_ERROR_MESSAGE_TEMPLATE = "An error occurred while attempting to decode the Jwt: %s";
+
+	private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+	private static final int MAXIMUM_KNOWN_HEADERS = 16;
+
+	private final SigningKeys keys;
+
+	// Copied on write; there are only ever a few, and they change once per rotation
+	private volatile KnownHeader[] knownHeaders = new KnownHeader[0];
+
+	CompactJwsDecoder(SigningKeys keys) {
+		this.keys = keys;
+	}
+
+	/**
+	 * Decodes and verifies a token, without validating its claims.
+	 * @param token the token
+	 * @return the decoded token, or {@code null} if its header is not known
+	 */
+	Jwt decode(String token) {
+		int firstDot = token.indexOf('.');
+		int secondDot = (firstDot > 0) ? token.indexOf('.', firstDot + 1) : -1;
+		if (secondDot < 0 || token.indexOf('.', secondDot + 1) >= 0) {
+			return null;
+		}
+		KnownHeader header = find(token, firstDot);
+		if (header == null) {
+			return null;
+		}
+		if (this.keys.getKey(header.keyId) == null) {
+			// The key's grace period is over
+			forget(header);
+			return null;
+		}
+		byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+		try {
+			if (!header.verify(bytes, secondDot, token)) {
+				throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Invalid signature"));
+			}
+			Map<String, Object> claims = parseClaims(bytes, firstDot, secondDot);
+			return new Jwt(token, (Instant) claims.get(JwtClaimNames.IAT), (Instant) claims.get(JwtClaimNames.EXP),
+					header.headers, claims);
+		}
+		catch (GeneralSecurityException | JOSEException | ParseException | IllegalArgumentException
+				| ClassCastException ex) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Malformed token"), ex);
+		}
+	}
+
+	/**
+	 * Remembers the header of a token that has just been verified, so that later tokens
+	 * with the same header take the fast path.
+	 * @param header the parsed header
+	 * @param key the key the token was verified with
+	 */
+	synchronized void remember(JWSHeader header, SigningKeys.SigningKey key) throws GeneralSecurityException,
+			JOSEException {
+		String segment = header.getParsedBase64URL().toString();
+		KnownHeader[] knownHeaders = this.knownHeaders;
+		if (knownHeaders.length >= MAXIMUM_KNOWN_HEADERS) {
+			return;
+		}
+		for (KnownHeader known : knownHeaders) {
+			if (known.segment.equals(segment)) {
+				return;
+			}
+		}
+		KnownHeader known = new KnownHeader(segment, header, key, this.keys.getAlgorithm());
+		KnownHeader[] updated = Arrays.copyOf(knownHeaders, knownHeaders.length + 1);
+		updated[knownHeaders.length] = known;
+		this.knownHeaders = updated;
+	}
+
+	private KnownHeader find(String token, int length) {
+		for (KnownHeader header : this.knownHeaders) {
+			if (header.segment.length() == length && token.startsWith(header.segment)) {
+				return header;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void forget(KnownHeader header) {
+		this.knownHeaders = Arrays.stream(this.knownHeaders).filter((known) -> known != header)
+				.toArray(KnownHeader[]::new);
+	}
+
+	private static Map<String, Object> parseClaims(byte[] bytes, int firstDot, int secondDot) throws ParseException {
+		ByteBuffer payload = DECODER.decode(ByteBuffer.wrap(bytes, firstDot + 1, secondDot - firstDot - 1));
+		Map<String, Object> claims = JSONObjectUtils.parse(new String(payload.array(),
+				payload.arrayOffset() + payload.position(), payload.remaining(), StandardCharsets.UTF_8));
+		// The same conversions MappedJwtClaimSetConverter makes for the registered claims
+		toInstant(claims, JwtClaimNames.EXP);
+		toInstant(claims, JwtClaimNames.IAT);
+		toInstant(claims, JwtClaimNames.NBF);
+		Object audience = claims.get(JwtClaimNames.AUD);
+		if (audience instanceof String) {
+			claims.put(JwtClaimNames.AUD, Collections.singletonList(audience));
+		}
+		return claims;
+	}
+
+	private static void toInstant(Map<String, Object> claims, String name) {
+		Object value = claims.get(name);
+		if (value instanceof Number) {
+			claims.put(name, Instant.ofEpochSecond(((Number) value).longValue()));
+		}
+	}
+
+	private static final class KnownHeader {
+
+		private final String segment;
+
+		private final String keyId;
+
+		private final JWSHeader header;
+
+		private final Map<String, Object> headers;
+
+		private final JwtSigningAlgorithm algorithm;
+
+		private final SigningKeys.SigningKey key;
+
+		// Null when the algorithm has to be verified by Nimbus
+		private final ThreadLocal<Signature> signatures;
+
+		KnownHeader(String segment, JWSHeader header, SigningKeys.SigningKey key, JwtSigningAlgorithm algorithm)
+				throws GeneralSecurityException, JOSEException {
+			this.segment = segment;
+			this.keyId = key.getKeyId();
+			this.header = header;
+			this.headers = Collections.unmodifiableMap(header.toJSONObject());
+			this.algorithm = algorithm;
+			this.key = key;
+			this.signatures = (algorithm.createVerifyingSignature(key.getJwk()) != null)
+					? ThreadLocal.withInitial(this::createSignature) : null;
+		}
+
+		boolean verify(byte[] token, int secondDot, String value) throws GeneralSecurityException, JOSEException {
+			if (this.signatures == null) {
+				byte[] signingInput = Arrays.copyOf(token, secondDot);
+				return this.key.getVerifier().verify(this.header, signingInput,
+						new Base64URL(value.substring(secondDot + 1)));
+			}
+			ByteBuffer decoded = DECODER.decode(ByteBuffer.wrap(token, secondDot + 1, token.length - secondDot - 1));
+			byte[] signatureBytes = decoded.array();
+			if (decoded.arrayOffset() + decoded.position() != 0 || decoded.remaining() != signatureBytes.length) {
+				signatureBytes = Arrays.copyOfRange(signatureBytes, decoded.arrayOffset() + decoded.position(),
+						decoded.arrayOffset() + decoded.position() + decoded.remaining());
+			}
+			signatureBytes = this.algorithm.toJcaSignature(signatureBytes);
+			Signature signature = this.signatures.get();
+			try {
+				signature.update(token, 0, secondDot);
+				return signature.verify(signatureBytes);
+			}
+			catch (SignatureException ex) {
+				// The signature may be left half-way through a verification
+				this.signatures.remove();
+				throw ex;
+			}
+		}
+
+		private Signature createSignature() {
+			try {
+				return this.algorithm.createVerifyingSignature(this.key.getJwk());
+			}
+			catch (GeneralSecurityException | JOSEException ex) {
+				throw new IllegalStateException("Failed to create a signature for key " + this.keyId, ex);
+			}
+		}
+
+	}
+
+}
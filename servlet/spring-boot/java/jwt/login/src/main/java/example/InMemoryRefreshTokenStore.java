@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RefreshTokenStore} that keeps tokens in memory.
+ * <p>
+ * The subject and scope are held once per family rather than once per token, and a used
+ * token is remembered only until it would have expired, since presenting it after that is
+ * rejected anyway.
+ */
+public final class InMemoryRefreshTokenStore implements RefreshTokenStore {
+
+	private final Map<String, Family> active = new ConcurrentHashMap<>();
+
+	private final Map<String, UsedToken> used = new ConcurrentHashMap<>();
+
+	private Clock clock = Clock.systemUTC();
+
+	@Override
+	public void save(RefreshToken token) {
+		Assert.notNull(token, "token cannot be null");
+		this.active.put(token.getId(), new Family(token));
+	}
+
+	@Override
+	public RefreshToken rotate(String id, String successorId, Instant successorExpiresAt) {
+		Assert.notNull(id, "id cannot be null");
+		Assert.hasText(successorId, "successorId cannot be empty");
+		Assert.notNull(successorExpiresAt, "successorExpiresAt cannot be null");
+		Instant now = this.clock.instant();
+		Family family = this.active.get(id);
+		if (family == null) {
+			revokeIfUsed(id);
+			return null;
+		}
+		synchronized (family) {
+			if (family.revoked || !id.equals(family.tokenId)) {
+				// Lost a race with another rotation or a revocation
+				return null;
+			}
+			this.active.remove(id);
+			if (!now.isBefore(family.expiresAt)) {
+				family.revoked = true;
+				return null;
+			}
+			this.used.put(id, new UsedToken(family, family.expiresAt));
+			Instant expiresAt = successorExpiresAt.isBefore(family.familyExpiresAt) ? successorExpiresAt
+					: family.familyExpiresAt;
+			family.tokenId = successorId;
+			family.expiresAt = expiresAt;
+			this.active.put(successorId, family);
+			return new RefreshToken(successorId, family.familyId, family.subject, family.scope, expiresAt,
+					family.familyExpiresAt);
+		}
+	}
+
+	private void revokeIfUsed(String id) {
+		UsedToken token = this.used.get(id);
+		if (token == null) {
+			return;
+		}
+		Family family = token.family;
+		synchronized (family) {
+			family.revoked = true;
+			this.active.remove(family.tokenId);
+		}
+	}
+
+	@Override
+	@Scheduled(fixedDelayString = "${jwt.refresh-token.purge-interval:PT1H}")
+	public void removeExpired() {
+		Instant now = this.clock.instant();
+		this.active.values().removeIf((family) -> !now.isBefore(family.expiresAt));
+		this.used.values().removeIf((token) -> !now.isBefore(token.expiresAt));
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private static final class Family {
+
+		private final String familyId;
+
+		private final String subject;
+
+		private final String scope;
+
+		private final Instant familyExpiresAt;
+
+		private volatile String tokenId;
+
+		private volatile Instant expiresAt;
+
+		private volatile boolean revoked;
+
+		Family(RefreshToken token) {
+			this.familyId = token.getFamilyId();
+			this.subject = token.getSubject();
+			this.scope = token.getScope();
+			this.familyExpiresAt = token.getFamilyExpiresAt();
+			this.tokenId = token.getId();
+			this.expiresAt = token.getExpiresAt();
+		}
+
+	}
+
+	private static final class UsedToken {
+
+		private final Family family;
+
+		private final Instant expiresAt;
+
+		UsedToken(Family family, Instant expiresAt) {
+			this.family = family;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
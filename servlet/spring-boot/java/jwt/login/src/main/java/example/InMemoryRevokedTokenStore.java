@@ -0,0 +1,81 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RevokedTokenStore} that keeps revocations in memory, which suits a single
+ * instance of the application.
+ */
+public final class InMemoryRevokedTokenStore implements RevokedTokenStore {
+
+	private final Map<String, Revocation> revocations = new ConcurrentHashMap<>();
+
+	private Clock clock = Clock.systemUTC();
+
+	@Override
+	public void save(String tokenId, Instant expiresAt) {
+		Assert.hasText(tokenId, "tokenId cannot be empty");
+		Assert.notNull(expiresAt, "expiresAt cannot be null");
+		this.revocations.put(tokenId, new Revocation(this.clock.instant(), expiresAt));
+	}
+
+	@Override
+	public Map<String, Instant> findRevokedSince(Instant instant) {
+		Assert.notNull(instant, "instant cannot be null");
+		Map<String, Instant> revoked = new HashMap<>();
+		this.revocations.forEach((tokenId, revocation) -> {
+			if (!revocation.revokedAt.isBefore(instant)) {
+				revoked.put(tokenId, revocation.expiresAt);
+			}
+		});
+		return revoked;
+	}
+
+	@Override
+	public void removeExpired() {
+		Instant now = this.clock.instant();
+		this.revocations.values().removeIf((revocation) -> !now.isBefore(revocation.expiresAt));
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private static final class Revocation {
+
+		private final Instant revokedAt;
+
+		private final Instant expiresAt;
+
+		Revocation(Instant revokedAt, Instant expiresAt) {
+			this.revokedAt = revokedAt;
+			this.expiresAt = expiresAt;
+		}
+
+	}
+
+}
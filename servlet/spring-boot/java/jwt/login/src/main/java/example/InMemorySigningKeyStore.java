@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nimbusds.jose.jwk.JWK;
+
+import org.springframework.util.Assert;
+
+/**
+ * A {@link SigningKeyStore} that keeps keys in memory, which suits a single instance of
+ * the application. Every instance that uses one signs with keys of its own, which the
+ * others reject.
+ */
+public final class InMemorySigningKeyStore implements SigningKeyStore {
+
+	private final List<StoredKey> keys = new ArrayList<>();
+
+	@Override
+	public synchronized void save(JwtSigningAlgorithm algorithm, JWK key, Instant activatedAt) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(key, "key cannot be null");
+		Assert.notNull(activatedAt, "activatedAt cannot be null");
+		int index = this.keys.size();
+		while (index > 0 && this.keys.get(index - 1).activatedAt.isAfter(activatedAt)) {
+			index--;
+		}
+		this.keys.add(index, new StoredKey(algorithm, key, activatedAt));
+	}
+
+	@Override
+	public synchronized Map<JWK, Instant> findActivatedSince(JwtSigningAlgorithm algorithm, Instant instant) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(instant, "instant cannot be null");
+		Map<JWK, Instant> keys = new LinkedHashMap<>();
+		for (StoredKey key : this.keys) {
+			if (key.algorithm == algorithm && !key.activatedAt.isBefore(instant)) {
+				keys.put(key.jwk, key.activatedAt);
+			}
+		}
+		return keys;
+	}
+
+	@Override
+	public synchronized void removeRetiredBefore(JwtSigningAlgorithm algorithm, Instant instant) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(instant, "instant cannot be null");
+		// A key is retired when the next one starts signing
+		Instant latest = null;
+		for (StoredKey key : this.keys) {
+			if (key.algorithm == algorithm && key.activatedAt.isBefore(instant)) {
+				latest = key.activatedAt;
+			}
+		}
+		if (latest != null) {
+			Instant successor = latest;
+			this.keys.removeIf((key) -> key.algorithm == algorithm && key.activatedAt.isBefore(successor));
+		}
+	}
+
+	private static final class StoredKey {
+
+		private final JwtSigningAlgorithm algorithm;
+
+		private final JWK jwk;
+
+		private final Instant activatedAt;
+
+		StoredKey(JwtSigningAlgorithm algorithm, JWK jwk, Instant activatedAt) {
+			this.algorithm = algorithm;
+			this.jwk = jwk;
+			this.activatedAt = activatedAt;
+		}
+
+	}
+
+}
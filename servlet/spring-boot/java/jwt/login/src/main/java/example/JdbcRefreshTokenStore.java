@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.List;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RefreshTokenStore} that keeps tokens in a database, so that they survive a
+ * restart and can be shared by several instances. The tables are described in
+ * {@code refresh-token-schema.sql}.
+ * <p>
+ * Each family is a single row holding the id of its current token. Rotation first records
+ * the presented token as used, whose primary key lets only one of two concurrent
+ * rotations through, and then moves the family on with a conditional update. There is
+ * no moment when a token has been replaced but is not known to be used, so a second use
+ * always revokes the family, even without a transaction around the two statements.
+ */
+public final class JdbcRefreshTokenStore implements RefreshTokenStore {
+
+	private static final String SELECT_FAMILY_BY_TOKEN_ID = "select token_id, family_id, subject, scope, expires_at, "
+			+ "family_expires_at from refresh_token_family where token_id = ?";
+
+	private static final String INSERT_FAMILY = "insert into refresh_token_family "
+			+ "(token_id, family_id, subject, scope, expires_at, family_expires_at) values (?, ?, ?, ?, ?, ?)";
+
+	private static final String UPDATE_FAMILY_TOKEN = "update refresh_token_family set token_id = ?, expires_at = ? "
+			+ "where family_id = ? and token_id = ?";
+
+	private static final String DELETE_FAMILY = "delete from refresh_token_family where family_id = ?";
+
+	private static final String DELETE_EXPIRED_FAMILIES = "delete from refresh_token_family where expires_at <= ?";
+
+	private static final String SELECT_USED_FAMILY_ID = "select family_id from refresh_token_used where token_id = ?";
+
+	private static final String INSERT_USED = "insert into refresh_token_used (token_id, family_id, expires_at) "
+			+ "values (?, ?, ?)";
+
+	private static final String DELETE_EXPIRED_USED = "delete from refresh_token_used where expires_at <= ?";
+
+	private static final RowMapper<RefreshToken> TOKEN_MAPPER = (rs, rowNum) -> new RefreshToken(rs.getString(1),
+			rs.getString(2), rs.getString(3), rs.getString(4), rs.getTimestamp(5).toInstant(),
+			rs.getTimestamp(6).toInstant());
+
+	private final JdbcOperations jdbc;
+
+	private Clock clock = Clock.systemUTC();
+
+	public JdbcRefreshTokenStore(JdbcOperations jdbc) {
+		Assert.notNull(jdbc, "jdbc cannot be null");
+		this.jdbc = jdbc;
+	}
+
+	@Override
+	public void save(RefreshToken token) {
+		Assert.notNull(token, "token cannot be null");
+		this.jdbc.update(INSERT_FAMILY, token.getId(), token.getFamilyId(), token.getSubject(), token.getScope(),
+				Timestamp.from(token.getExpiresAt()), Timestamp.from(token.getFamilyExpiresAt()));
+	}
+
+	@Override
+	public RefreshToken rotate(String id, String successorId, Instant successorExpiresAt) {
+		Assert.notNull(id, "id cannot be null");
+		Assert.hasText(successorId, "successorId cannot be empty");
+		Assert.notNull(successorExpiresAt, "successorExpiresAt cannot be null");
+		List<RefreshToken> tokens = this.jdbc.query(SELECT_FAMILY_BY_TOKEN_ID, TOKEN_MAPPER, id);
+		if (tokens.isEmpty()) {
+			revokeIfUsed(id);
+			return null;
+		}
+		RefreshToken token = tokens.get(0);
+		if (token.isExpired(this.clock.instant())) {
+			return null;
+		}
+		try {
+			this.jdbc.update(INSERT_USED, id, token.getFamilyId(), Timestamp.from(token.getExpiresAt()));
+		}
+		catch (DuplicateKeyException ex) {
+			// Another rotation got there first
+			return null;
+		}
+		Instant expiresAt = successorExpiresAt.isBefore(token.getFamilyExpiresAt()) ? successorExpiresAt
+				: token.getFamilyExpiresAt();
+		if (this.jdbc.update(UPDATE_FAMILY_TOKEN, successorId, Timestamp.from(expiresAt), token.getFamilyId(),
+				id) == 0) {
+			// The family was revoked in the meantime
+			return null;
+		}
+		return new RefreshToken(successorId, token.getFamilyId(), token.getSubject(), token.getScope(), expiresAt,
+				token.getFamilyExpiresAt());
+	}
+
+	private void revokeIfUsed(String id) {
+		List<String> familyIds = this.jdbc.queryForList(SELECT_USED_FAMILY_ID, String.class, id);
+		for (String familyId : familyIds) {
+			this.jdbc.update(DELETE_FAMILY, familyId);
+		}
+	}
+
+	@Override
+	@Scheduled(fixedDelayString = "${jwt.refresh-token.purge-interval:PT1H}")
+	public void removeExpired() {
+		Timestamp now = Timestamp.from(this.clock.instant());
+		this.jdbc.update(DELETE_EXPIRED_FAMILIES, now);
+		this.jdbc.update(DELETE_EXPIRED_USED, now);
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+}
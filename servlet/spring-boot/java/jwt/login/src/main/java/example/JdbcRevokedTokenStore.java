@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link RevokedTokenStore} that keeps revocations in a database shared by every
+ * instance of the application. The table is described in
+ * {@code revoked-token-schema.sql}.
+ */
+public final class JdbcRevokedTokenStore implements RevokedTokenStore {
+
+	private static final String INSERT_REVOKED = "insert into revoked_token (token_id, revoked_at, expires_at) "
+			+ "values (?, ?, ?)";
+
+	private static final String SELECT_REVOKED_SINCE = "select token_id, expires_at from revoked_token "
+			+ "where revoked_at >= ?";
+
+	private static final String DELETE_EXPIRED = "delete from revoked_token where expires_at <= ?";
+
+	private final JdbcOperations jdbc;
+
+	private Clock clock = Clock.systemUTC();
+
+	public JdbcRevokedTokenStore(JdbcOperations jdbc) {
+		Assert.notNull(jdbc, "jdbc cannot be null");
+		this.jdbc = jdbc;
+	}
+
+	@Override
+	public void save(String tokenId, Instant expiresAt) {
+		Assert.hasText(tokenId, "tokenId cannot be empty");
+		Assert.notNull(expiresAt, "expiresAt cannot be null");
+		try {
+			this.jdbc.update(INSERT_REVOKED, tokenId, Timestamp.from(this.clock.instant()), Timestamp.from(expiresAt));
+		}
+		catch (DuplicateKeyException ex) {
+			// Already revoked
+		}
+	}
+
+	@Override
+	public Map<String, Instant> findRevokedSince(Instant instant) {
+		Assert.notNull(instant, "instant cannot be null");
+		Map<String, Instant> revoked = new HashMap<>();
+		RowCallbackHandler collector = (rs) -> revoked.put(rs.getString(1), rs.getTimestamp(2).toInstant());
+		this.jdbc.query(SELECT_REVOKED_SINCE, collector, Timestamp.from(instant));
+		return revoked;
+	}
+
+	@Override
+	public void removeExpired() {
+		this.jdbc.update(DELETE_EXPIRED, Timestamp.from(this.clock.instant()));
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+}
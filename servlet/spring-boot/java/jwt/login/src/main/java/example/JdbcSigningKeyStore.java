@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.nimbusds.jose.jwk.JWK;
+
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link SigningKeyStore} that keeps keys in a database shared by every instance of the
+ * application. The table is described in {@code signing-key-schema.sql}.
+ * <p>
+ * Private keys are stored as they are, so the table must be protected like the keys
+ * themselves.
+ */
+public final class JdbcSigningKeyStore implements SigningKeyStore {
+
+	private static final String INSERT_KEY = "insert into signing_key (key_id, algorithm, jwk, activated_at) "
+			+ "values (?, ?, ?, ?)";
+
+	private static final String SELECT_ACTIVATED_SINCE = "select jwk, activated_at from signing_key "
+			+ "where algorithm = ? and activated_at >= ? order by activated_at, key_id";
+
+	// A key is retired when the next one starts signing
+	private static final String DELETE_RETIRED = "delete from signing_key where algorithm = ? and activated_at < "
+			+ "(select max(activated_at) from signing_key where algorithm = ? and activated_at < ?)";
+
+	private final JdbcOperations jdbc;
+
+	public JdbcSigningKeyStore(JdbcOperations jdbc) {
+		Assert.notNull(jdbc, "jdbc cannot be null");
+		this.jdbc = jdbc;
+	}
+
+	@Override
+	public void save(JwtSigningAlgorithm algorithm, JWK key, Instant activatedAt) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(key, "key cannot be null");
+		Assert.notNull(activatedAt, "activatedAt cannot be null");
+		try {
+			this.jdbc.update(INSERT_KEY, key.getKeyID(), algorithm.name(), key.toJSONString(),
+					Timestamp.from(activatedAt));
+		}
+		catch (DuplicateKeyException ex) {
+			// Another instance started with the same configured key
+		}
+	}
+
+	@Override
+	public Map<JWK, Instant> findActivatedSince(JwtSigningAlgorithm algorithm, Instant instant) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(instant, "instant cannot be null");
+		Map<JWK, Instant> keys = new LinkedHashMap<>();
+		RowCallbackHandler collector = (rs) -> keys.put(parse(rs.getString(1)), rs.getTimestamp(2).toInstant());
+		this.jdbc.query(SELECT_ACTIVATED_SINCE, collector, algorithm.name(), Timestamp.from(instant));
+		return keys;
+	}
+
+	@Override
+	public void removeRetiredBefore(JwtSigningAlgorithm algorithm, Instant instant) {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(instant, "instant cannot be null");
+		this.jdbc.update(DELETE_RETIRED, algorithm.name(), algorithm.name(), Timestamp.from(instant));
+	}
+
+	private static JWK parse(String json) {
+		try {
+			return JWK.parse(json);
+		}
+		catch (ParseException ex) {
+			throw new DataRetrievalFailureException("Unreadable signing key", ex);
+		}
+	}
+
+}
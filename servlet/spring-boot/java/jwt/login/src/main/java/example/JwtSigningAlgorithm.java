@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.Signature;
+import java.util.Arrays;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.ECDSAVerifier;
+import com.nimbusds.jose.crypto.Ed25519Signer;
+import com.nimbusds.jose.crypto.Ed25519Verifier;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.crypto.impl.ECDSA;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.gen.ECKeyGenerator;
+import com.nimbusds.jose.jwk.gen.OctetKeyPairGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+
+import org.springframework.security.oauth2.jose.jws.JwsAlgorithm;
+
+/**
+ * The algorithms tokens can be signed with, from the slowest to sign to the fastest.
+ *
+ * @see SigningKeys
+ */
+public enum JwtSigningAlgorithm implements JwsAlgorithm {
+
+	/**
+	 * RSASSA-PKCS1-v1_5 with SHA-256 and a 2048-bit key. Cheap to verify, but by far the
+	 * most expensive to sign.
+	 */
+	RS256 {
+
+		@Override
+		JWK generateKey(String keyId) throws JOSEException {
+			return new RSAKeyGenerator(RSAKeyGenerator.MIN_KEY_SIZE_BITS).keyID(keyId).keyUse(KeyUse.SIGNATURE)
+					.algorithm(JWSAlgorithm.RS256).generate();
+		}
+
+		@Override
+		JWSSigner createSigner(JWK key) throws JOSEException {
+			return new RSASSASigner(key.toRSAKey());
+		}
+
+		@Override
+		JWSVerifier createVerifier(JWK key) throws JOSEException {
+			return new RSASSAVerifier(key.toRSAKey());
+		}
+
+		@Override
+		Signature createVerifyingSignature(JWK key) throws JOSEException, GeneralSecurityException {
+			Signature signature = Signature.getInstance("SHA256withRSA");
+			signature.initVerify(key.toRSAKey().toRSAPublicKey());
+			return signature;
+		}
+
+	},
+
+	/**
+	 * ECDSA with the P-256 curve and SHA-256.
+	 */
+	ES256 {
+
+		@Override
+		JWK generateKey(String keyId) throws JOSEException {
+			return new ECKeyGenerator(Curve.P_256).keyID(keyId).keyUse(KeyUse.SIGNATURE).algorithm(JWSAlgorithm.ES256)
+					.generate();
+		}
+
+		@Override
+		JWSSigner createSigner(JWK key) throws JOSEException {
+			return new ECDSASigner(key.toECKey());
+		}
+
+		@Override
+		JWSVerifier createVerifier(JWK key) throws JOSEException {
+			return new ECDSAVerifier(key.toECKey());
+		}
+
+		@Override
+		Signature createVerifyingSignature(JWK key) throws JOSEException, GeneralSecurityException {
+			Signature signature = Signature.getInstance("SHA256withECDSA");
+			signature.initVerify(key.toECKey().toECPublicKey());
+			return signature;
+		}
+
+		@Override
+		byte[] toJcaSignature(byte[] signature) throws JOSEException {
+			// JWS carries R and S side by side, where the JCA expects DER
+			if (signature.length != 64) {
+				throw new JOSEException("Invalid ES256 signature length");
+			}
+			// As ECDSAVerifier does, since some JDKs accept out-of-range values
+			if (!isScalar(Arrays.copyOfRange(signature, 0, 32)) || !isScalar(Arrays.copyOfRange(signature, 32, 64))) {
+				throw new JOSEException("Invalid ES256 signature");
+			}
+			return ECDSA.transcodeSignatureToDER(signature);
+		}
+
+		private boolean isScalar(byte[] value) {
+			BigInteger scalar = new BigInteger(1, value);
+			return scalar.signum() > 0 && scalar.compareTo(P_256_ORDER) < 0;
+		}
+
+	},
+
+	/**
+	 * EdDSA with the Ed25519 curve.
+	 */
+	EdDSA {
+
+		@Override
+		JWK generateKey(String keyId) throws JOSEException {
+			return new OctetKeyPairGenerator(Curve.Ed25519).keyID(keyId).keyUse(KeyUse.SIGNATURE)
+					.algorithm(JWSAlgorithm.EdDSA).generate();
+		}
+
+		@Override
+		JWSSigner createSigner(JWK key) throws JOSEException {
+			return new Ed25519Signer(key.toOctetKeyPair());
+		}
+
+		@Override
+		JWSVerifier createVerifier(JWK key) throws JOSEException {
+			return new Ed25519Verifier(key.toOctetKeyPair().toPublicJWK());
+		}
+
+	};
+
+	private static final BigInteger P_256_ORDER = Curve.P_256.toECParameterSpec().getOrder();
+
+	@Override
+	public String getName() {
+		return name();
+	}
+
+	JWSAlgorithm toJwsAlgorithm() {
+		return JWSAlgorithm.parse(name());
+	}
+
+	abstract JWK generateKey(String keyId) throws JOSEException;
+
+	abstract JWSSigner createSigner(JWK key) throws JOSEException;
+
+	abstract JWSVerifier createVerifier(JWK key) throws JOSEException;
+
+	/**
+	 * Creates a JCA {@link Signature} that verifies with the given key. Unlike a
+	 * {@link JWSVerifier}, which looks up a new {@link Signature} for every token, it can
+	 * be reused by one thread for as many tokens as it likes.
+	 * @param key the key
+	 * @return the signature, or {@code null} if the JCA cannot verify this algorithm on
+	 * every supported JDK, in which case the {@link JWSVerifier} has to be used
+	 */
+	Signature createVerifyingSignature(JWK key) throws JOSEException, GeneralSecurityException {
+		return null;
+	}
+
+	/**
+	 * Converts a JWS signature to the format the JCA expects.
+	 * @param signature the decoded signature from the token
+	 * @return the signature to pass to {@link Signature#verify(byte[])}
+	 */
+	byte[] toJcaSignature(byte[] signature) throws JOSEException {
+		return signature;
+	}
+
+}
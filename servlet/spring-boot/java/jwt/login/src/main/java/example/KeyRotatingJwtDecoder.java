@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.security.GeneralSecurityException;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Map;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jwt.SignedJWT;
+
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2TokenValidatorResult;
+import org.springframework.security.oauth2.jwt.BadJwtException;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
+import org.springframework.security.oauth2.jwt.JwtException;
+import org.springframework.security.oauth2.jwt.JwtValidationException;
+import org.springframework.security.oauth2.jwt.JwtValidators;
+import org.springframework.security.oauth2.jwt.MappedJwtClaimSetConverter;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link JwtDecoder} that verifies tokens against the key named by their {@code kid},
+ * as long as that key is still in {@link SigningKeys}.
+ * <p>
+ * Nimbus can only verify Ed25519 signatures with an {@code Ed25519Verifier}, which its
+ * default key selection never creates, so keys are looked up here instead of through a
+ * {@code JWSKeySelector}.
+ * <p>
+ * Once a token has been verified this way, later tokens with the same header are decoded
+ * by a {@link CompactJwsDecoder}, unless {@link #setKnownHeaderFastPath(boolean)} turns
+ * that off.
+ */
+public final class KeyRotatingJwtDecoder implements JwtDecoder {
+
+	private static final String DECODING_ERROR_MESSAGE_TEMPLATE = "An error occurred while attempting to decode the Jwt: %s";
+
+	private final SigningKeys keys;
+
+	private final Converter<Map<String, Object>, Map<String, Object>> claimSetConverter = MappedJwtClaimSetConverter
+			.withDefaults(Collections.emptyMap());
+
+	private final CompactJwsDecoder compactJwsDecoder;
+
+	private OAuth2TokenValidator<Jwt> jwtValidator = JwtValidators.createDefault();
+
+	private boolean knownHeaderFastPath = true;
+
+	public KeyRotatingJwtDecoder(SigningKeys keys) {
+		Assert.notNull(keys, "keys cannot be null");
+		this.keys = keys;
+		this.compactJwsDecoder = new CompactJwsDecoder(keys);
+	}
+
+	@Override
+	public Jwt decode(String token) throws JwtException {
+		Jwt result = this.knownHeaderFastPath ? this.compactJwsDecoder.decode(token) : null;
+		if (result == null) {
+			result = parse(token);
+		}
+		OAuth2TokenValidatorResult validation = this.jwtValidator.validate(result);
+		if (validation.hasErrors()) {
+			OAuth2Error error = validation.getErrors().iterator().next();
+			throw new JwtValidationException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, error.getDescription()),
+					validation.getErrors());
+		}
+		return result;
+	}
+
+	private Jwt parse(String token) {
+		SignedJWT jwt = verify(token);
+		Map<String, Object> claims;
+		try {
+			claims = this.claimSetConverter.convert(jwt.getJWTClaimsSet().getClaims());
+		}
+		catch (ParseException ex) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, ex.getMessage()), ex);
+		}
+		JWSHeader header = jwt.getHeader();
+		return Jwt.withTokenValue(token)
+				.headers((headers) -> headers.putAll(header.toJSONObject()))
+				.claims((claimSet) -> claimSet.putAll(claims))
+				.build();
+	}
+
+	private SignedJWT verify(String token) {
+		SignedJWT jwt;
+		try {
+			jwt = SignedJWT.parse(token);
+		}
+		catch (ParseException ex) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Malformed token"), ex);
+		}
+		JWSHeader header = jwt.getHeader();
+		if (!this.keys.getAlgorithm().toJwsAlgorithm().equals(header.getAlgorithm())) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Unsupported algorithm"));
+		}
+		SigningKeys.SigningKey key = (header.getKeyID() != null) ? this.keys.getKey(header.getKeyID()) : null;
+		if (key == null) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Unknown signing key"));
+		}
+		try {
+			if (!jwt.verify(key.getVerifier())) {
+				throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, "Invalid signature"));
+			}
+			if (this.knownHeaderFastPath) {
+				this.compactJwsDecoder.remember(header, key);
+			}
+		}
+		catch (JOSEException | GeneralSecurityException ex) {
+			throw new BadJwtException(String.format(DECODING_ERROR_MESSAGE_TEMPLATE, ex.getMessage()), ex);
+		}
+		return jwt;
+	}
+
+	/**
+	 * Whether to decode tokens whose header has already been verified with a
+	 * {@link CompactJwsDecoder}, rather than with Nimbus. Defaults to {@code true}.
+	 * @param knownHeaderFastPath whether to use the fast path
+	 */
+	public void setKnownHeaderFastPath(boolean knownHeaderFastPath) {
+		this.knownHeaderFastPath = knownHeaderFastPath;
+	}
+
+	/**
+	 * Use this {@link Jwt} Validator
+	 * @param jwtValidator - the Jwt Validator to use
+	 */
+	public void setJwtValidator(OAuth2TokenValidator<Jwt> jwtValidator) {
+		Assert.notNull(jwtValidator, "jwtValidator cannot be null");
+		this.jwtValidator = jwtValidator;
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.net.URL;
+import java.time.Instant;
+import java.util.Date;
+import java.util.Map;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtEncoder;
+import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+import org.springframework.security.oauth2.jwt.JwtEncodingException;
+import org.springframework.util.Assert;
+
+/**
+ * A {@link JwtEncoder} that signs with the current key of a {@link SigningKeys}, using
+ * the signer created for that key rather than a new one per token.
+ * <p>
+ * The header is always derived from the key, so any {@code JwsHeader} in the parameters
+ * is ignored.
+ */
+public final class KeyRotatingJwtEncoder implements JwtEncoder {
+
+	private final SigningKeys keys;
+
+	public KeyRotatingJwtEncoder(SigningKeys keys) {
+		Assert.notNull(keys, "keys cannot be null");
+		this.keys = keys;
+	}
+
+	@Override
+	public Jwt encode(JwtEncoderParameters parameters) throws JwtEncodingException {
+		Assert.notNull(parameters, "parameters cannot be null");
+		SigningKeys.SigningKey key = this.keys.getCurrentKey();
+		JWSHeader header = new JWSHeader.Builder(this.keys.getAlgorithm().toJwsAlgorithm())
+				.type(JOSEObjectType.JWT)
+				.keyID(key.getKeyId())
+				.build();
+		JwtClaimsSet claims = parameters.getClaims();
+		JWTClaimsSet.Builder builder = new JWTClaimsSet.Builder();
+		for (Map.Entry<String, Object> claim : claims.getClaims().entrySet()) {
+			builder.claim(claim.getKey(), toJson(claim.getValue()));
+		}
+		SignedJWT jwt = new SignedJWT(header, builder.build());
+		try {
+			jwt.sign(key.getSigner());
+		}
+		catch (JOSEException ex) {
+			throw new JwtEncodingException("An error occurred while attempting to encode the Jwt: " + ex.getMessage(),
+					ex);
+		}
+		return new Jwt(jwt.serialize(), claims.getIssuedAt(), claims.getExpiresAt(), header.toJSONObject(),
+				claims.getClaims());
+	}
+
+	private static Object toJson(Object value) {
+		if (value instanceof Instant) {
+			// Nimbus writes dates as seconds since the epoch
+			return Date.from((Instant) value);
+		}
+		if (value instanceof URL) {
+			return value.toString();
+		}
+		return value;
+	}
+
+}
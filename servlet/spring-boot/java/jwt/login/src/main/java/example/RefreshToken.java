@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Instant;
+
+import org.springframework.util.Assert;
+
+/**
+ * A refresh token as kept by a {@link RefreshTokenStore}.
+ * <p>
+ * Stores never see the token itself, only its id, which is a digest of it. Each token
+ * belongs to a family that starts when the user logs in with their password; refreshing
+ * replaces the family's token with a new one. A family expires a fixed time after the
+ * login, however often it is refreshed, so that no token outlives it.
+ */
+public final class RefreshToken {
+
+	private final String id;
+
+	private final String familyId;
+
+	private final String subject;
+
+	private final String scope;
+
+	private final Instant expiresAt;
+
+	private final Instant familyExpiresAt;
+
+	public RefreshToken(String id, String familyId, String subject, String scope, Instant expiresAt,
+			Instant familyExpiresAt) {
+		Assert.hasText(id, "id cannot be empty");
+		Assert.hasText(familyId, "familyId cannot be empty");
+		Assert.hasText(subject, "subject cannot be empty");
+		Assert.notNull(scope, "scope cannot be null");
+		Assert.notNull(expiresAt, "expiresAt cannot be null");
+		Assert.notNull(familyExpiresAt, "familyExpiresAt cannot be null");
+		Assert.isTrue(!expiresAt.isAfter(familyExpiresAt), "expiresAt cannot be after familyExpiresAt");
+		this.id = id;
+		this.familyId = familyId;
+		this.subject = subject;
+		this.scope = scope;
+		this.expiresAt = expiresAt;
+		this.familyExpiresAt = familyExpiresAt;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public String getFamilyId() {
+		return this.familyId;
+	}
+
+	public String getSubject() {
+		return this.subject;
+	}
+
+	/**
+	 * Gets the scope granted at login, which refreshed access tokens carry unchanged.
+	 * @return the space-separated scope
+	 */
+	public String getScope() {
+		return this.scope;
+	}
+
+	public Instant getExpiresAt() {
+		return this.expiresAt;
+	}
+
+	/**
+	 * Gets when the token's family expires, which no token in it can outlive.
+	 * @return the instant
+	 */
+	public Instant getFamilyExpiresAt() {
+		return this.familyExpiresAt;
+	}
+
+	public boolean isExpired(Instant now) {
+		return !now.isBefore(this.expiresAt);
+	}
+
+	@Override
+	public String toString() {
+		return "RefreshToken[familyId='" + this.familyId + "'; subject='" + this.subject + "'; expiresAt='"
+				+ this.expiresAt + "']";
+	}
+
+}
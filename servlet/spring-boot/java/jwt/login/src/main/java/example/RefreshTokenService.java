@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+
+import org.springframework.util.Assert;
+
+/**
+ * Issues refresh tokens and exchanges them for their successors.
+ * <p>
+ * A refresh token is 256 random bits. Only its SHA-256 digest is handed to the
+ * {@link RefreshTokenStore}, so the store cannot leak usable tokens.
+ */
+public final class RefreshTokenService {
+
+	private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+	private final SecureRandom random = new SecureRandom();
+
+	private final RefreshTokenStore store;
+
+	private final Duration timeToLive;
+
+	private final Duration familyTimeToLive;
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Creates the service.
+	 * @param store where to keep tokens
+	 * @param timeToLive how long each token can be used for; refreshing starts a new
+	 * period
+	 * @param familyTimeToLive how long after the login refreshing stops, after which the
+	 * user has to log in again
+	 */
+	public RefreshTokenService(RefreshTokenStore store, Duration timeToLive, Duration familyTimeToLive) {
+		Assert.notNull(store, "store cannot be null");
+		Assert.notNull(timeToLive, "timeToLive cannot be null");
+		Assert.isTrue(!timeToLive.isNegative() && !timeToLive.isZero(), "timeToLive must be positive");
+		Assert.notNull(familyTimeToLive, "familyTimeToLive cannot be null");
+		Assert.isTrue(familyTimeToLive.compareTo(timeToLive) >= 0, "familyTimeToLive cannot be less than timeToLive");
+		this.store = store;
+		this.timeToLive = timeToLive;
+		this.familyTimeToLive = familyTimeToLive;
+	}
+
+	/**
+	 * Issues the first token of a new family, after the user has logged in.
+	 * @param subject the user
+	 * @param scope the scope to carry over to refreshed access tokens
+	 * @return the token
+	 */
+	public IssuedRefreshToken issue(String subject, String scope) {
+		String value = generateValue();
+		Instant now = this.clock.instant();
+		RefreshToken token = new RefreshToken(digest(value), UUID.randomUUID().toString(), subject, scope,
+				now.plus(this.timeToLive), now.plus(this.familyTimeToLive));
+		this.store.save(token);
+		return new IssuedRefreshToken(value, token);
+	}
+
+	/**
+	 * Uses a token, issuing its successor.
+	 * @param value the token presented by the client
+	 * @return the successor, or {@code null} if the presented token cannot be used
+	 */
+	public IssuedRefreshToken refresh(String value) {
+		Assert.notNull(value, "value cannot be null");
+		String successor = generateValue();
+		RefreshToken token = this.store.rotate(digest(value), digest(successor),
+				this.clock.instant().plus(this.timeToLive));
+		return (token != null) ? new IssuedRefreshToken(successor, token) : null;
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private String generateValue() {
+		byte[] bytes = new byte[32];
+		this.random.nextBytes(bytes);
+		return ENCODER.encodeToString(bytes);
+	}
+
+	private static String digest(String value) {
+		try {
+			MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+			return ENCODER.encodeToString(sha256.digest(value.getBytes(StandardCharsets.UTF_8)));
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+	}
+
+	/**
+	 * A token that has just been issued, which is the only time its value is known.
+	 */
+	public static final class IssuedRefreshToken {
+
+		private final String value;
+
+		private final RefreshToken token;
+
+		private IssuedRefreshToken(String value, RefreshToken token) {
+			this.value = value;
+			this.token = token;
+		}
+
+		public String getValue() {
+			return this.value;
+		}
+
+		public RefreshToken getToken() {
+			return this.token;
+		}
+
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Instant;
+
+/**
+ * Keeps the refresh tokens that are still usable, and the ones that have been used.
+ * <p>
+ * Refresh tokens are single use: {@link #rotate(String, String, Instant)} replaces a
+ * token with its successor. Presenting a token that has already been used means it has
+ * leaked, so the whole family is revoked.
+ */
+public interface RefreshTokenStore {
+
+	/**
+	 * Stores the first token of a new family.
+	 * @param token the token
+	 */
+	void save(RefreshToken token);
+
+	/**
+	 * Replaces a token with its successor, atomically, so that at most one caller can use
+	 * a given token. If the token has already been used, its family is revoked.
+	 * @param id the id of the presented token
+	 * @param successorId the id of the token to issue in its place
+	 * @param successorExpiresAt when the successor expires, unless its family expires
+	 * first
+	 * @return the successor, or {@code null} if the presented token is unknown, expired,
+	 * revoked or already used
+	 */
+	RefreshToken rotate(String id, String successorId, Instant successorExpiresAt);
+
+	/**
+	 * Forgets tokens that have expired, whether they were used or not.
+	 */
+	void removeExpired();
+
+}
@@ -18,28 +18,25 @@ package example;
 
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
+import java.time.Duration;
 
+import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.jwk.JWK;
-import com.nimbusds.jose.jwk.JWKSet;
 import com.nimbusds.jose.jwk.RSAKey;
-import com.nimbusds.jose.jwk.source.ImmutableJWKSet;
-import com.nimbusds.jose.jwk.source.JWKSource;
-import com.nimbusds.jose.proc.SecurityContext;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.jdbc.core.JdbcOperations;
 import org.springframework.security.config.Customizer;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
-import org.springframework.security.config.annotation.web.configurers.oauth2.server.resource.OAuth2ResourceServerConfigurer;
 import org.springframework.security.config.http.SessionCreationPolicy;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtEncoder;
-import org.springframework.security.oauth2.jwt.NimbusJwtDecoder;
-import org.springframework.security.oauth2.jwt.NimbusJwtEncoder;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
 import org.springframework.security.oauth2.server.resource.web.BearerTokenAuthenticationEntryPoint;
 import org.springframework.security.oauth2.server.resource.web.access.BearerTokenAccessDeniedHandler;
 import org.springframework.security.provisioning.InMemoryUserDetailsManager;
@@ -58,16 +55,43 @@ public class RestConfig extends WebSecurityConfigurerAdapter {
 	@Value("${jwt.private.key}")
 	RSAPrivateKey priv;
 
+	@Value("${jwt.signing.algorithm:RS256}")
+	JwtSigningAlgorithm algorithm;
+
+	@Value("${jwt.signing.grace-period:PT10H}")
+	Duration gracePeriod;
+
+	@Value("${jwt.refresh-token.time-to-live:PT10H}")
+	Duration refreshTokenTimeToLive;
+
+	@Value("${jwt.refresh-token.family-time-to-live:P7D}")
+	Duration refreshTokenFamilyTimeToLive;
+
+	@Value("${jwt.revocation.expected-revocations:100000}")
+	int expectedRevocations;
+
+	@Value("${jwt.revocation.false-positive-probability:0.01}")
+	double falsePositiveProbability;
+
+	@Value("${jwt.decoder.cache.maximum-size:10000}")
+	long decoderCacheSize;
+
+	@Value("${jwt.decoder.known-header-fast-path:true}")
+	boolean knownHeaderFastPath;
+
 	@Override
 	protected void configure(HttpSecurity http) throws Exception {
 		
 		http
 			.authorizeHttpRequests((authorize) -> authorize
+				.antMatchers("/.well-known/jwks.json", "/token/refresh").permitAll()
 				.anyRequest().authenticated()
 			)
-			.csrf((csrf) -> csrf.ignoringAntMatchers("/token"))
+			.csrf((csrf) -> csrf.ignoringAntMatchers("/token", "/token/refresh", "/token/revoke"))
 			.httpBasic(Customizer.withDefaults())
-			.oauth2ResourceServer(OAuth2ResourceServerConfigurer::jwt)
+			.oauth2ResourceServer((oauth2) -> oauth2
+				.jwt((jwt) -> jwt.jwtAuthenticationConverter(jwtAuthenticationConverter()))
+			)
 			.sessionManagement((session) -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
 			.exceptionHandling((exceptions) -> exceptions
 				.authenticationEntryPoint(new BearerTokenAuthenticationEntryPoint())
@@ -89,15 +113,64 @@ public class RestConfig extends WebSecurityConfigurerAdapter {
 	}
 
 	@Bean
-	JwtDecoder jwtDecoder() {
-		return NimbusJwtDecoder.withPublicKey(this.key).build();
+	SigningKeyStore signingKeyStore(ObjectProvider<JdbcOperations> jdbc) {
+		// Without a database, each instance signs with keys of its own that the others reject
+		JdbcOperations operations = jdbc.getIfAvailable();
+		return (operations != null) ? new JdbcSigningKeyStore(operations) : new InMemorySigningKeyStore();
+	}
+
+	@Bean
+	SigningKeys signingKeys(SigningKeyStore signingKeyStore) throws JOSEException {
+		// The configured RSA key signs until the first rotation, unless the store has newer keys
+		JWK initialKey = (this.algorithm != JwtSigningAlgorithm.RS256) ? null
+				: new RSAKey.Builder(this.key).privateKey(this.priv).keyIDFromThumbprint().build();
+		return new SigningKeys(this.algorithm, this.gracePeriod, initialKey, signingKeyStore);
+	}
+
+	@Bean
+	CachingJwtDecoder jwtDecoder(SigningKeys signingKeys, TokenDenyList tokenDenyList) {
+		KeyRotatingJwtDecoder verifier = new KeyRotatingJwtDecoder(signingKeys);
+		verifier.setKnownHeaderFastPath(this.knownHeaderFastPath);
+		CachingJwtDecoder jwtDecoder = new CachingJwtDecoder(verifier, this.decoderCacheSize);
+		// Revocation can happen after a token is cached, so it is checked on every request
+		jwtDecoder.setJwtValidator(new RevokedTokenValidator(tokenDenyList));
+		return jwtDecoder;
+	}
+
+	@Bean
+	JwtAuthenticationConverter jwtAuthenticationConverter() {
+		JwtAuthenticationConverter converter = new JwtAuthenticationConverter();
+		converter.setJwtGrantedAuthoritiesConverter(new CachingJwtGrantedAuthoritiesConverter());
+		return converter;
+	}
+
+	@Bean
+	JwtEncoder jwtEncoder(SigningKeys signingKeys) {
+		return new KeyRotatingJwtEncoder(signingKeys);
+	}
+
+	@Bean
+	RefreshTokenStore refreshTokenStore(ObjectProvider<JdbcOperations> jdbc) {
+		// Tokens are only persisted when the application has a database
+		JdbcOperations operations = jdbc.getIfAvailable();
+		return (operations != null) ? new JdbcRefreshTokenStore(operations) : new InMemoryRefreshTokenStore();
+	}
+
+	@Bean
+	RefreshTokenService refreshTokenService(RefreshTokenStore refreshTokenStore) {
+		return new RefreshTokenService(refreshTokenStore, this.refreshTokenTimeToLive,
+				this.refreshTokenFamilyTimeToLive);
+	}
+
+	@Bean
+	RevokedTokenStore revokedTokenStore(ObjectProvider<JdbcOperations> jdbc) {
+		JdbcOperations operations = jdbc.getIfAvailable();
+		return (operations != null) ? new JdbcRevokedTokenStore(operations) : new InMemoryRevokedTokenStore();
 	}
 
 	@Bean
-	JwtEncoder jwtEncoder() {
-		JWK jwk = new RSAKey.Builder(this.key).privateKey(this.priv).build();
-		JWKSource<SecurityContext> jwks = new ImmutableJWKSet<>(new JWKSet(jwk));
-		return new NimbusJwtEncoder(jwks);
+	TokenDenyList tokenDenyList(RevokedTokenStore revokedTokenStore) {
+		return new TokenDenyList(revokedTokenStore, this.expectedRevocations, this.falsePositiveProbability);
 	}
 
 }
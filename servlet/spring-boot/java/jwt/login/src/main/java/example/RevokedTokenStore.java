@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Keeps the ids ({@code jti}) of revoked access tokens, so that every instance of the
+ * application can learn about revocations made by the others.
+ * <p>
+ * A revocation only needs to be kept until the token expires, after which the token is
+ * rejected anyway.
+ *
+ * @see TokenDenyList
+ */
+public interface RevokedTokenStore {
+
+	/**
+	 * Records that a token has been revoked.
+	 * @param tokenId the token's {@code jti}
+	 * @param expiresAt when the token expires
+	 */
+	void save(String tokenId, Instant expiresAt);
+
+	/**
+	 * Finds the tokens revoked since the given instant.
+	 * @param instant the cut-off, or {@link Instant#EPOCH} for every revocation
+	 * @return the ids of the tokens, mapped to when they expire
+	 */
+	Map<String, Instant> findRevokedSince(Instant instant);
+
+	/**
+	 * Forgets revocations of tokens that have expired.
+	 */
+	void removeExpired();
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import org.springframework.security.oauth2.core.OAuth2Error;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.core.OAuth2TokenValidator;
+import org.springframework.security.oauth2.core.OAuth2TokenValidatorResult;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.util.Assert;
+
+/**
+ * Rejects tokens whose {@code jti} is on the {@link TokenDenyList}. Tokens without a
+ * {@code jti} cannot be revoked, so they pass.
+ */
+public final class RevokedTokenValidator implements OAuth2TokenValidator<Jwt> {
+
+	private static final OAuth2Error REVOKED = new OAuth2Error(OAuth2ErrorCodes.INVALID_TOKEN,
+			"The token has been revoked", null);
+
+	private final TokenDenyList denyList;
+
+	public RevokedTokenValidator(TokenDenyList denyList) {
+		Assert.notNull(denyList, "denyList cannot be null");
+		this.denyList = denyList;
+	}
+
+	@Override
+	public OAuth2TokenValidatorResult validate(Jwt jwt) {
+		String tokenId = jwt.getId();
+		if (tokenId != null && this.denyList.isRevoked(tokenId)) {
+			return OAuth2TokenValidatorResult.failure(REVOKED);
+		}
+		return OAuth2TokenValidatorResult.success();
+	}
+
+}
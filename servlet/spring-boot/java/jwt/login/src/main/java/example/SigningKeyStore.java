@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.time.Instant;
+import java.util.Map;
+
+import com.nimbusds.jose.jwk.JWK;
+
+/**
+ * Keeps the keys tokens are signed with, private halves included, so that every instance
+ * of the application signs with the same keys and can verify the tokens the others sign.
+ * <p>
+ * Keys are listed in the order they started signing. A key is retired as soon as a newer
+ * one starts signing, and only needs to be kept while it still verifies tokens.
+ *
+ * @see SigningKeys
+ */
+public interface SigningKeyStore {
+
+	/**
+	 * Records a key that has started signing.
+	 * @param algorithm the algorithm the key signs with
+	 * @param key the key, including its private half
+	 * @param activatedAt when the key started signing
+	 */
+	void save(JwtSigningAlgorithm algorithm, JWK key, Instant activatedAt);
+
+	/**
+	 * Finds the keys that started signing since the given instant.
+	 * @param algorithm the algorithm the keys sign with
+	 * @param instant the cut-off, or {@link Instant#EPOCH} for every key
+	 * @return the keys, mapped to when they started signing, oldest first
+	 */
+	Map<JWK, Instant> findActivatedSince(JwtSigningAlgorithm algorithm, Instant instant);
+
+	/**
+	 * Forgets keys that were retired before the given instant.
+	 * @param algorithm the algorithm the keys sign with
+	 * @param instant the cut-off
+	 */
+	void removeRetiredBefore(JwtSigningAlgorithm algorithm, Instant instant);
+
+}
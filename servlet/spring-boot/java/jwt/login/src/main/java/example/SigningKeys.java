@@ -0,0 +1,294 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.jwk.JWKSet;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+/**
+ * The keys tokens are signed and verified with.
+ * <p>
+ * Tokens are always signed with the current key. {@link #rotate()} replaces it with a
+ * freshly generated one, but the old key keeps verifying tokens for a grace period, which
+ * should be at least as long as tokens live. Each key has its own {@code kid}, so that
+ * verification never has to try more than one key.
+ * <p>
+ * Keys are written to a {@link SigningKeyStore}, and those started by other instances
+ * are picked up by {@link #synchronize()}, or as soon as a token signed with one of them
+ * arrives. The newest key is the current one everywhere, so every instance that shares
+ * the store signs with the same key once it has synchronized, and verifies the tokens
+ * the others sign. Instances each rotate on their own schedule, which only means keys
+ * are replaced more often than the rotation interval.
+ *
+ * @see JwtSigningAlgorithm
+ */
+public final class SigningKeys {
+
+	// Covers clock differences between instances, since keys are found by time
+	private static final Duration SYNCHRONIZATION_OVERLAP = Duration.ofMinutes(1);
+
+	// Tokens with made-up kids should not send every request to the store
+	private static final Duration UNKNOWN_KEY_SYNCHRONIZATION_INTERVAL = Duration.ofSeconds(1);
+
+	private final JwtSigningAlgorithm algorithm;
+
+	private final Duration gracePeriod;
+
+	private final SigningKeyStore store;
+
+	private final Map<String, SigningKey> keys = new ConcurrentHashMap<>();
+
+	private Clock clock = Clock.systemUTC();
+
+	private volatile SigningKey current;
+
+	private volatile Instant synchronizedAt = Instant.EPOCH;
+
+	public SigningKeys(JwtSigningAlgorithm algorithm, Duration gracePeriod) throws JOSEException {
+		this(algorithm, gracePeriod, null);
+	}
+
+	public SigningKeys(JwtSigningAlgorithm algorithm, Duration gracePeriod, JWK initialKey) throws JOSEException {
+		this(algorithm, gracePeriod, initialKey, new InMemorySigningKeyStore());
+	}
+
+	/**
+	 * Creates the keys, starting with those already in the store, or with the given key
+	 * if there are none.
+	 * @param algorithm the algorithm to sign with
+	 * @param gracePeriod how long a key keeps verifying tokens once it has been rotated
+	 * @param initialKey the key to sign with until the first rotation, or {@code null} to
+	 * generate one
+	 * @param store where keys are shared
+	 * @throws JOSEException if a key cannot be used with the algorithm
+	 */
+	public SigningKeys(JwtSigningAlgorithm algorithm, Duration gracePeriod, JWK initialKey, SigningKeyStore store)
+			throws JOSEException {
+		Assert.notNull(algorithm, "algorithm cannot be null");
+		Assert.notNull(gracePeriod, "gracePeriod cannot be null");
+		Assert.isTrue(!gracePeriod.isNegative(), "gracePeriod cannot be negative");
+		Assert.notNull(store, "store cannot be null");
+		this.algorithm = algorithm;
+		this.gracePeriod = gracePeriod;
+		this.store = store;
+		synchronize();
+		if (this.current == null) {
+			activate((initialKey != null) ? initialKey : generateKey());
+		}
+	}
+
+	/**
+	 * Starts signing with a new key, and forgets keys whose grace period is over, here and
+	 * in the store.
+	 * @throws JOSEException if the new key could not be generated
+	 */
+	@Scheduled(fixedDelayString = "${jwt.signing.rotation-interval:P1D}",
+			initialDelayString = "${jwt.signing.rotation-interval:P1D}")
+	public synchronized void rotate() throws JOSEException {
+		activate(generateKey());
+		Instant now = this.clock.instant();
+		this.store.removeRetiredBefore(this.algorithm, now.minus(this.gracePeriod));
+		this.keys.values().removeIf((key) -> key.isExpired(now));
+	}
+
+	/**
+	 * Picks up keys started by other instances.
+	 * @throws JOSEException if a key in the store cannot be used with the algorithm
+	 */
+	@Scheduled(fixedDelayString = "${jwt.signing.synchronization-interval:PT5S}")
+	public synchronized void synchronize() throws JOSEException {
+		Instant now = this.clock.instant();
+		Instant since = this.synchronizedAt.equals(Instant.EPOCH) ? Instant.EPOCH
+				: this.synchronizedAt.minus(SYNCHRONIZATION_OVERLAP);
+		for (Map.Entry<JWK, Instant> key : this.store.findActivatedSince(this.algorithm, since).entrySet()) {
+			add(key.getKey(), key.getValue());
+		}
+		this.keys.values().removeIf((key) -> key.isExpired(now));
+		this.synchronizedAt = now;
+	}
+
+	private JWK generateKey() throws JOSEException {
+		return this.algorithm.generateKey(UUID.randomUUID().toString());
+	}
+
+	private synchronized void activate(JWK jwk) throws JOSEException {
+		Assert.hasText(jwk.getKeyID(), "Signing keys must have a kid");
+		Instant now = this.clock.instant();
+		SigningKey current = this.current;
+		if (current != null && !now.isAfter(current.activatedAt)) {
+			// The newest key is the current one, so a new key has to be newer, even to a database
+			now = current.activatedAt.plusMillis(1);
+		}
+		this.store.save(this.algorithm, jwk, now);
+		add(jwk, now);
+	}
+
+	private synchronized void add(JWK jwk, Instant activatedAt) throws JOSEException {
+		if (this.keys.containsKey(jwk.getKeyID())) {
+			return;
+		}
+		SigningKey key = new SigningKey(jwk, this.algorithm.createSigner(jwk), this.algorithm.createVerifier(jwk),
+				activatedAt);
+		// Each key is retired by the first one to start signing after it
+		for (SigningKey other : this.keys.values()) {
+			if (other.activatedAt.isBefore(activatedAt)) {
+				other.retire(activatedAt);
+			}
+			else if (other.activatedAt.isAfter(activatedAt)) {
+				key.retire(other.activatedAt);
+			}
+		}
+		this.keys.put(jwk.getKeyID(), key);
+		if (this.current == null || activatedAt.isAfter(this.current.activatedAt)) {
+			this.current = key;
+		}
+	}
+
+	public JwtSigningAlgorithm getAlgorithm() {
+		return this.algorithm;
+	}
+
+	/**
+	 * Gets the key to sign new tokens with.
+	 * @return the current key
+	 */
+	public SigningKey getCurrentKey() {
+		return this.current;
+	}
+
+	/**
+	 * Gets the key to verify a token with.
+	 * @param keyId the {@code kid} from the token's header
+	 * @return the key, or {@code null} if there is no such key or its grace period is over
+	 */
+	public SigningKey getKey(String keyId) {
+		SigningKey key = this.keys.get(keyId);
+		if (key == null) {
+			// Another instance may have started signing with it since the last synchronization
+			key = synchronizeForUnknownKey(keyId);
+		}
+		return (key != null && !key.isExpired(this.clock.instant())) ? key : null;
+	}
+
+	private SigningKey synchronizeForUnknownKey(String keyId) {
+		if (!this.clock.instant().isAfter(this.synchronizedAt.plus(UNKNOWN_KEY_SYNCHRONIZATION_INTERVAL))) {
+			return null;
+		}
+		synchronized (this) {
+			if (this.clock.instant().isAfter(this.synchronizedAt.plus(UNKNOWN_KEY_SYNCHRONIZATION_INTERVAL))) {
+				try {
+					synchronize();
+				}
+				catch (JOSEException ex) {
+					throw new IllegalStateException("Unusable signing key in the store", ex);
+				}
+			}
+			return this.keys.get(keyId);
+		}
+	}
+
+	/**
+	 * Gets the public half of every key that still verifies tokens, for publishing as a
+	 * JWK Set.
+	 * @return the public keys, the current one first
+	 */
+	public JWKSet getPublicKeys() {
+		Instant now = this.clock.instant();
+		SigningKey current = this.current;
+		List<JWK> keys = new ArrayList<>();
+		keys.add(current.jwk.toPublicJWK());
+		for (SigningKey key : this.keys.values()) {
+			if (key != current && !key.isExpired(now)) {
+				keys.add(key.jwk.toPublicJWK());
+			}
+		}
+		return new JWKSet(keys);
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	/**
+	 * A key along with the signer and verifier for it, which are created once.
+	 */
+	public final class SigningKey {
+
+		private final JWK jwk;
+
+		private final JWSSigner signer;
+
+		private final JWSVerifier verifier;
+
+		private final Instant activatedAt;
+
+		private volatile Instant retiredAt;
+
+		private SigningKey(JWK jwk, JWSSigner signer, JWSVerifier verifier, Instant activatedAt) {
+			this.jwk = jwk;
+			this.signer = signer;
+			this.verifier = verifier;
+			this.activatedAt = activatedAt;
+		}
+
+		public String getKeyId() {
+			return this.jwk.getKeyID();
+		}
+
+		public JWK getJwk() {
+			return this.jwk;
+		}
+
+		public JWSSigner getSigner() {
+			return this.signer;
+		}
+
+		public JWSVerifier getVerifier() {
+			return this.verifier;
+		}
+
+		private void retire(Instant instant) {
+			Instant retiredAt = this.retiredAt;
+			if (retiredAt == null || instant.isBefore(retiredAt)) {
+				this.retiredAt = instant;
+			}
+		}
+
+		private boolean isExpired(Instant now) {
+			Instant retiredAt = this.retiredAt;
+			return retiredAt != null && now.isAfter(retiredAt.plus(SigningKeys.this.gracePeriod));
+		}
+
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package example;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
+
+/**
+ * The ids ({@code jti}) of revoked access tokens that have not expired yet.
+ * <p>
+ * Almost every token checked has not been revoked, so lookups go to a {@link BloomFilter}
+ * first, and only reach the exact set of ids when the filter reports a possible match.
+ * Revocations are written through to a {@link RevokedTokenStore}, and those made by other
+ * instances are picked up by {@link #synchronize()}. Ids are forgotten once their token
+ * expires, at which point the filter is rebuilt, since entries cannot be removed from it.
+ */
+public final class TokenDenyList {
+
+	// Covers clock differences between instances, since revocations are found by time
+	private static final Duration SYNCHRONIZATION_OVERLAP = Duration.ofMinutes(1);
+
+	private final RevokedTokenStore store;
+
+	private final int expectedRevocations;
+
+	private final double falsePositiveProbability;
+
+	private final Map<String, Instant> revoked = new ConcurrentHashMap<>();
+
+	private volatile BloomFilter filter;
+
+	private Instant synchronizedAt = Instant.EPOCH;
+
+	private Clock clock = Clock.systemUTC();
+
+	/**
+	 * Creates the deny list and loads the revocations already in the store.
+	 * @param store where revocations are shared
+	 * @param expectedRevocations how many unexpired revocations to size the filter for
+	 * @param falsePositiveProbability how often the filter may send a token that has not
+	 * been revoked to the exact set
+	 */
+	public TokenDenyList(RevokedTokenStore store, int expectedRevocations, double falsePositiveProbability) {
+		Assert.notNull(store, "store cannot be null");
+		this.store = store;
+		this.expectedRevocations = expectedRevocations;
+		this.falsePositiveProbability = falsePositiveProbability;
+		this.filter = new BloomFilter(expectedRevocations, falsePositiveProbability);
+		synchronize();
+	}
+
+	/**
+	 * Revokes a token.
+	 * @param tokenId the token's {@code jti}
+	 * @param expiresAt when the token expires
+	 */
+	public void revoke(String tokenId, Instant expiresAt) {
+		this.store.save(tokenId, expiresAt);
+		add(tokenId, expiresAt);
+	}
+
+	public boolean isRevoked(String tokenId) {
+		return this.filter.mightContain(tokenId) && this.revoked.containsKey(tokenId);
+	}
+
+	/**
+	 * Picks up revocations made by other instances.
+	 */
+	@Scheduled(fixedDelayString = "${jwt.revocation.synchronization-interval:PT5S}")
+	public void synchronize() {
+		Instant now = this.clock.instant();
+		Instant since = this.synchronizedAt.equals(Instant.EPOCH) ? Instant.EPOCH
+				: this.synchronizedAt.minus(SYNCHRONIZATION_OVERLAP);
+		this.store.findRevokedSince(since).forEach(this::add);
+		this.synchronizedAt = now;
+	}
+
+	/**
+	 * Forgets the tokens that have expired, here and in the store.
+	 */
+	@Scheduled(fixedDelayString = "${jwt.revocation.purge-interval:PT1H}")
+	public void removeExpired() {
+		Instant now = this.clock.instant();
+		synchronized (this) {
+			this.revoked.values().removeIf((expiresAt) -> !now.isBefore(expiresAt));
+			// Leave room to grow, so that a burst of revocations does not degrade the filter
+			BloomFilter filter = new BloomFilter(Math.max(this.expectedRevocations, this.revoked.size() * 2),
+					this.falsePositiveProbability);
+			this.revoked.keySet().forEach(filter::add);
+			this.filter = filter;
+		}
+		this.store.removeExpired();
+	}
+
+	public void setClock(Clock clock) {
+		Assert.notNull(clock, "clock cannot be null");
+		this.clock = clock;
+	}
+
+	private synchronized void add(String tokenId, Instant expiresAt) {
+		if (expiresAt.isAfter(this.clock.instant())) {
+			// Into the exact set first, so that the filter never points at a missing id
+			this.revoked.put(tokenId, expiresAt);
+			this.filter.add(tokenId);
+		}
+	}
+
+}
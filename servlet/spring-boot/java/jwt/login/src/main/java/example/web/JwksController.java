@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package example.web;
+
+import java.util.Map;
+
+import example.SigningKeys;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * A controller that publishes the keys tokens can be verified with.
+ */
+@RestController
+public class JwksController {
+
+	@Autowired
+	SigningKeys keys;
+
+	@GetMapping("/.well-known/jwks.json")
+	public Map<String, Object> jwks() {
+		return this.keys.getPublicKeys().toJSONObject();
+	}
+
+}
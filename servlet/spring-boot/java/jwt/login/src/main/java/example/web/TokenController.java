@@ -16,20 +16,44 @@
 
 package example.web;
 
+import java.time.Duration;
 import java.time.Instant;
-import java.util.stream.Collectors;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import example.RefreshToken;
+import example.RefreshTokenService;
+import example.RefreshTokenService.IssuedRefreshToken;
+import example.TokenDenyList;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.core.OAuth2ErrorCodes;
+import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.security.oauth2.jwt.JwtClaimsSet;
+import org.springframework.security.oauth2.jwt.JwtDecoder;
 import org.springframework.security.oauth2.jwt.JwtEncoder;
 import org.springframework.security.oauth2.jwt.JwtEncoderParameters;
+import org.springframework.security.oauth2.jwt.JwtException;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 /**
  * A controller for the token resource.
+ * <p>
+ * Logging in with a password issues a short-lived access token. Clients that ask for
+ * JSON also get a refresh token, which {@code /token/refresh} exchanges for a new pair
+ * without checking the password again. Access tokens carry a {@code jti}, so that
+ * {@code /token/revoke} can revoke them before they expire.
  *
  * @author Josh Cummings
  */
@@ -39,19 +63,94 @@ public class TokenController {
 	@Autowired
 	JwtEncoder encoder;
 
+	@Autowired
+	JwtDecoder decoder;
+
+	@Autowired
+	RefreshTokenService refreshTokens;
+
+	@Autowired
+	TokenDenyList denyList;
+
+	@Value("${jwt.access-token.time-to-live:PT15M}")
+	Duration accessTokenTimeToLive;
+
 	@PostMapping("/token")
 	public String token(Authentication authentication) {
+		return accessToken(authentication.getName(), scope(authentication));
+	}
+
+	@PostMapping(path = "/token", produces = MediaType.APPLICATION_JSON_VALUE)
+	public Map<String, Object> tokenResponse(Authentication authentication) {
+		return tokenResponse(this.refreshTokens.issue(authentication.getName(), scope(authentication)));
+	}
+
+	@PostMapping(path = "/token/refresh", produces = MediaType.APPLICATION_JSON_VALUE)
+	public ResponseEntity<Map<String, Object>> refresh(@RequestParam("refresh_token") String refreshToken) {
+		IssuedRefreshToken issued = this.refreshTokens.refresh(refreshToken);
+		if (issued == null) {
+			return ResponseEntity.badRequest()
+					.body(Collections.singletonMap("error", OAuth2ErrorCodes.INVALID_GRANT));
+		}
+		return ResponseEntity.ok(tokenResponse(issued));
+	}
+
+	/**
+	 * Revokes one of the caller's access tokens before it expires. As in RFC 7009, tokens
+	 * that are already invalid are accepted without error.
+	 */
+	@PostMapping("/token/revoke")
+	public ResponseEntity<Void> revoke(@RequestParam("token") String token, Authentication authentication) {
+		Jwt jwt;
+		try {
+			jwt = this.decoder.decode(token);
+		}
+		catch (JwtException ex) {
+			return ResponseEntity.ok().build();
+		}
+		if (!authentication.getName().equals(jwt.getSubject())) {
+			return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+		}
+		if (jwt.getId() != null) {
+			this.denyList.revoke(jwt.getId(), jwt.getExpiresAt());
+		}
+		return ResponseEntity.ok().build();
+	}
+
+	private Map<String, Object> tokenResponse(IssuedRefreshToken issued) {
+		RefreshToken token = issued.getToken();
+		Map<String, Object> response = new LinkedHashMap<>();
+		response.put("access_token", accessToken(token.getSubject(), token.getScope()));
+		response.put("token_type", "Bearer");
+		response.put("expires_in", this.accessTokenTimeToLive.getSeconds());
+		response.put("refresh_token", issued.getValue());
+		return response;
+	}
+
+	private String scope(Authentication authentication) {
+		Collection<? extends GrantedAuthority> authorities = authentication.getAuthorities();
+		if (authorities.size() == 1) {
+			// The common case, which needs no joining
+			return authorities.iterator().next().getAuthority();
+		}
+		StringBuilder scope = new StringBuilder();
+		for (GrantedAuthority authority : authorities) {
+			if (scope.length() > 0) {
+				scope.append(' ');
+			}
+			scope.append(authority.getAuthority());
+		}
+		return scope.toString();
+	}
+
+	private String accessToken(String subject, String scope) {
 		Instant now = Instant.now();
-		long expiry = 36000L;
-		
-		String scope = authentication.getAuthorities().stream()
-				.map(GrantedAuthority::getAuthority)
-				.collect(Collectors.joining(" "));
 		JwtClaimsSet claims = JwtClaimsSet.builder()
 				.issuer("self")
 				.issuedAt(now)
-				.expiresAt(now.plusSeconds(expiry))
-				.subject(authentication.getName())
+				.expiresAt(now.plus(this.accessTokenTimeToLive))
+				.subject(subject)
+				.id(UUID.randomUUID().toString())
 				.claim("scope", scope)
 				.build();
 		
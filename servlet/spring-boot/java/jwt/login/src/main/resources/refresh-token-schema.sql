@@ -0,0 +1,16 @@
+create table refresh_token_family (
+	family_id varchar(36) not null primary key,
+	token_id varchar(64) not null unique,
+	subject varchar(256) not null,
+	scope varchar(1000) not null,
+	expires_at timestamp not null,
+	family_expires_at timestamp not null
+);
+
+create table refresh_token_used (
+	token_id varchar(64) not null primary key,
+	family_id varchar(36) not null,
+	expires_at timestamp not null
+);
+
+create index refresh_token_used_expires_at on refresh_token_used (expires_at);
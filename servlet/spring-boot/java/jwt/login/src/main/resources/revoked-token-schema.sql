@@ -0,0 +1,7 @@
+create table revoked_token (
+	token_id varchar(64) not null primary key,
+	revoked_at timestamp not null,
+	expires_at timestamp not null
+);
+
+create index revoked_token_revoked_at on revoked_token (revoked_at);
@@ -0,0 +1,8 @@
+create table signing_key (
+	key_id varchar(64) not null primary key,
+	algorithm varchar(16) not null,
+	jwk varchar(8000) not null,
+	activated_at timestamp not null
+);
+
+create index signing_key_activated_at on signing_key (algorithm, activated_at);
@@ -16,17 +16,42 @@
 
 package example.web;
 
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.jayway.jsonpath.JsonPath;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSObject;
+import com.nimbusds.jose.util.Base64URL;
+import example.CachingJwtDecoder;
+import example.InMemoryRefreshTokenStore;
+import example.RefreshToken;
+import example.RefreshTokenService;
+import example.RefreshTokenService.IssuedRefreshToken;
+import example.SigningKeyStore;
+import example.SigningKeys;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.http.MediaType;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationConverter;
+import org.springframework.test.context.TestPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.security.test.web.servlet.request.SecurityMockMvcRequestPostProcessors.httpBasic;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 /**
@@ -34,12 +59,24 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
  *
  * @author Josh Cummings
  */
-@WebMvcTest({ HelloController.class, TokenController.class })
+@WebMvcTest({ HelloController.class, TokenController.class, JwksController.class })
 public class HelloControllerTests {
 
 	@Autowired
 	MockMvc mvc;
 
+	@Autowired
+	SigningKeys signingKeys;
+
+	@Autowired
+	SigningKeyStore signingKeyStore;
+
+	@Autowired
+	CachingJwtDecoder jwtDecoder;
+
+	@Autowired
+	JwtAuthenticationConverter jwtAuthenticationConverter;
+
 	@Test
 	void rootWhenAuthenticatedThenSaysHelloUser() throws Exception {
 		
@@ -72,4 +109,222 @@ public class HelloControllerTests {
 		
 	}
 
+	@Test
+	void rootWhenSignedWithRotatedKeyThenSaysHelloUser() throws Exception {
+
+		String token = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+
+		this.signingKeys.rotate();
+
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + token))
+			.andExpect(content().string("Hello, user!"));
+
+	}
+
+	@Test
+	void rootWhenSignedWithKeyFromAnotherInstanceThenSaysHelloUser() throws Exception {
+
+		SigningKeys otherInstance = new SigningKeys(this.signingKeys.getAlgorithm(), Duration.ofHours(10), null,
+				this.signingKeyStore);
+		otherInstance.rotate();
+		this.signingKeys.synchronize();
+		assertThat(this.signingKeys.getCurrentKey().getKeyId()).isEqualTo(otherInstance.getCurrentKey().getKeyId());
+
+		String token = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + token))
+			.andExpect(content().string("Hello, user!"));
+
+	}
+
+	@Test
+	void jwksWhenUnauthenticatedThenPublishesPublicKeys() throws Exception {
+
+		this.mvc.perform(get("/.well-known/jwks.json"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.keys[0].kid").value(this.signingKeys.getCurrentKey().getKeyId()))
+			.andExpect(jsonPath("$.keys[0].d").doesNotExist());
+
+	}
+
+	@Test
+	void rootWhenSameTokenTwiceThenVerifiesOnce() throws Exception {
+
+		String token = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		CacheStats before = this.jwtDecoder.getStats();
+
+		for (int i = 0; i < 2; i++) {
+			this.mvc.perform(get("/")
+				.header("Authorization", "Bearer " + token))
+				.andExpect(content().string("Hello, user!"));
+		}
+
+		CacheStats stats = this.jwtDecoder.getStats().minus(before);
+		assertThat(stats.missCount()).isEqualTo(1);
+		assertThat(stats.hitCount()).isEqualTo(1);
+
+	}
+
+	@Test
+	void refreshWhenRefreshTokenThenIssuesNewTokensWithoutPassword() throws Exception {
+
+		String response = this.mvc.perform(post("/token")
+			.accept(MediaType.APPLICATION_JSON)
+			.with(httpBasic("user", "password")))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.token_type").value("Bearer"))
+			.andReturn().getResponse().getContentAsString();
+
+		response = this.mvc.perform(post("/token/refresh")
+			.param("refresh_token", JsonPath.<String>read(response, "$.refresh_token")))
+			.andExpect(status().isOk())
+			.andReturn().getResponse().getContentAsString();
+
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + JsonPath.<String>read(response, "$.access_token")))
+			.andExpect(content().string("Hello, user!"));
+
+	}
+
+	@Test
+	void refreshWhenRefreshTokenReusedThenRevokesFamily() throws Exception {
+
+		String response = this.mvc.perform(post("/token")
+			.accept(MediaType.APPLICATION_JSON)
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		String stolen = JsonPath.read(response, "$.refresh_token");
+
+		response = this.mvc.perform(post("/token/refresh")
+			.param("refresh_token", stolen))
+			.andExpect(status().isOk())
+			.andReturn().getResponse().getContentAsString();
+		String successor = JsonPath.read(response, "$.refresh_token");
+
+		this.mvc.perform(post("/token/refresh")
+			.param("refresh_token", stolen))
+			.andExpect(status().isBadRequest())
+			.andExpect(jsonPath("$.error").value("invalid_grant"));
+		this.mvc.perform(post("/token/refresh")
+			.param("refresh_token", successor))
+			.andExpect(status().isBadRequest());
+
+	}
+
+	@Test
+	void refreshWhenFamilyExpiresFirstThenSuccessorExpiresWithFamily() {
+
+		RefreshTokenService service = new RefreshTokenService(new InMemoryRefreshTokenStore(), Duration.ofHours(10),
+				Duration.ofHours(12));
+		Instant login = Instant.now();
+		service.setClock(Clock.fixed(login, ZoneOffset.UTC));
+		IssuedRefreshToken issued = service.issue("user", "app");
+		assertThat(issued.getToken().getFamilyExpiresAt()).isEqualTo(login.plus(Duration.ofHours(12)));
+
+		service.setClock(Clock.fixed(login.plus(Duration.ofHours(5)), ZoneOffset.UTC));
+		RefreshToken successor = service.refresh(issued.getValue()).getToken();
+		assertThat(successor.getExpiresAt()).isEqualTo(issued.getToken().getFamilyExpiresAt());
+
+	}
+
+	@Test
+	void tokenWhenDecodedTwiceThenSharesAuthorities() throws Exception {
+
+		String token = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		Jwt jwt = this.jwtDecoder.decode(token);
+
+		GrantedAuthority first = this.jwtAuthenticationConverter.convert(jwt).getAuthorities().iterator().next();
+		GrantedAuthority second = this.jwtAuthenticationConverter.convert(jwt).getAuthorities().iterator().next();
+
+		assertThat(first.getAuthority()).isEqualTo("SCOPE_app");
+		assertThat(second).isSameAs(first);
+
+	}
+
+	@Test
+	void rootWhenTokenRevokedThen401() throws Exception {
+
+		String token = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + token))
+			.andExpect(status().isOk());
+
+		this.mvc.perform(post("/token/revoke")
+			.param("token", token)
+			.with(httpBasic("user", "password")))
+			.andExpect(status().isOk());
+
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + token))
+			.andExpect(status().isUnauthorized());
+
+	}
+
+	@Test
+	void rootWhenTokenHeaderAlreadyVerifiedThenStillChecksSignature() throws Exception {
+
+		String first = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		String second = this.mvc.perform(post("/token")
+			.with(httpBasic("user", "password")))
+			.andReturn().getResponse().getContentAsString();
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + first))
+			.andExpect(content().string("Hello, user!"));
+
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + second))
+			.andExpect(content().string("Hello, user!"));
+
+		String[] firstParts = first.split("\\.");
+		String[] secondParts = second.split("\\.");
+		String forged = firstParts[0] + "." + firstParts[1] + "." + secondParts[2];
+		this.mvc.perform(get("/")
+			.header("Authorization", "Bearer " + forged))
+			.andExpect(status().isUnauthorized());
+
+	}
+
+	@Nested
+	@TestPropertySource(properties = "jwt.signing.algorithm=ES256")
+	class EcSignedTokens {
+
+		@Autowired
+		MockMvc mvc;
+
+		@Test
+		void rootWhenTokenHeaderAlreadyVerifiedAndSignatureAllZeroThen401() throws Exception {
+
+			String token = this.mvc.perform(post("/token")
+				.with(httpBasic("user", "password")))
+				.andReturn().getResponse().getContentAsString();
+			assertThat(JWSObject.parse(token).getHeader().getAlgorithm()).isEqualTo(JWSAlgorithm.ES256);
+			this.mvc.perform(get("/")
+				.header("Authorization", "Bearer " + token))
+				.andExpect(content().string("Hello, user!"));
+
+			// R and S of zero, which a JDK without range checks would accept for any message
+			String forged = token.substring(0, token.lastIndexOf('.') + 1)
+					+ Base64URL.encode(new byte[64]);
+			this.mvc.perform(get("/")
+				.header("Authorization", "Bearer " + forged))
+				.andExpect(status().isUnauthorized());
+
+		}
+
+	}
+
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import sample.dms.AbstractElement;
+import sample.dms.Directory;
+import sample.dms.DocumentDao;
+import sample.dms.File;
+import sample.dms.ImportNode;
+
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+import org.springframework.security.acls.model.MutableAclService;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+/**
+ * Measures {@link DocumentDao} operations over a {@link SyntheticTree}, once against
+ * the insecure context and once against the secure one, so that the cost of method
+ * security and ACL evaluation can be tracked over time.
+ * <p>
+ * Run with <code>./gradlew benchmark</code>. The tree shape is read from the system
+ * properties described by {@link SyntheticTree#fromSystemProperties()}, and the number
+ * of iterations from <code>dms.benchmark.warmup</code> and
+ * <code>dms.benchmark.iterations</code>.
+ */
+public class DmsBenchmark {
+
+	private static final int WARMUP = Integer.getInteger("dms.benchmark.warmup", 500);
+
+	private static final int ITERATIONS = Integer.getInteger("dms.benchmark.iterations", 2000);
+
+	@AfterEach
+	void clearContext() {
+		SecurityContextHolder.clearContext();
+	}
+
+	@Test
+	void insecure() {
+		run("insecure", "classpath:applicationContext-dms-insecure.xml");
+	}
+
+	@Test
+	void secure() {
+		run("secure", "classpath:applicationContext-dms-secure.xml");
+	}
+
+	private void run(String name, String location) {
+		try (ClassPathXmlApplicationContext context = new ClassPathXmlApplicationContext(
+				"classpath:applicationContext-dms-shared.xml", location)) {
+			DocumentDao documentDao = context.getBean("documentDao", DocumentDao.class);
+			SyntheticTree tree = SyntheticTree.fromSystemProperties();
+			Random random = new Random(42);
+
+			// Authenticate once up front, so password hashing is not part of what is measured
+			Authentication rod = authenticate(documentDao, "rod", "koala");
+			Authentication scott = authenticate(documentDao, "scott", "wombat");
+
+			SecurityContextHolder.getContext().setAuthentication(rod);
+			Directory home = findHomeDirectory(documentDao, "rod");
+			List<AbstractElement> created = documentDao.importTree(home,
+					Arrays.asList(ImportNode.directory("benchmark", tree.nodes())));
+			MutableAclService aclService = context.getBeanProvider(MutableAclService.class).getIfAvailable();
+			if (aclService != null) {
+				tree.addEntries(aclService, created, random);
+			}
+			List<Directory> directories = new ArrayList<>();
+			for (AbstractElement element : created) {
+				if (element instanceof Directory) {
+					directories.add((Directory) element);
+				}
+			}
+
+			Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+			for (String operation : Arrays.asList("findElements", "create", "update", "delete")) {
+				recorders.put(operation, new LatencyRecorder());
+			}
+			for (int i = 0; i < WARMUP + ITERATIONS; i++) {
+				boolean measured = i >= WARMUP;
+				Directory directory = directories.get(random.nextInt(directories.size()));
+
+				// Another user reads, so entries are filtered rather than granted to the owner
+				SecurityContextHolder.getContext().setAuthentication(scott);
+				time(recorders.get("findElements"), measured, () -> documentDao.findElements(directory));
+
+				SecurityContextHolder.getContext().setAuthentication(rod);
+				File file = new File("benchmark_" + i + ".txt", directory);
+				time(recorders.get("create"), measured, () -> documentDao.create(file));
+				file.setContent("Updated " + i);
+				time(recorders.get("update"), measured, () -> documentDao.update(file));
+				time(recorders.get("delete"), measured, () -> documentDao.delete(file));
+			}
+
+			System.out.println("------ Benchmark for " + name + " context: " + tree + " ------");
+			System.out.println("Elements............: " + created.size());
+			for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+				System.out.println(String.format("%-20s: %s", entry.getKey(), entry.getValue().summary()));
+			}
+		}
+	}
+
+	/**
+	 * Gets the authentication the DAO proxy ends up with for the given user. The secure
+	 * context authenticates on the first secured call, while the insecure context leaves
+	 * the token as it is.
+	 */
+	private Authentication authenticate(DocumentDao documentDao, String username, String password) {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken(username, password));
+		documentDao.findElements(Directory.ROOT_DIRECTORY);
+		return SecurityContextHolder.getContext().getAuthentication();
+	}
+
+	private Directory findHomeDirectory(DocumentDao documentDao, String username) {
+		for (AbstractElement rootElement : documentDao.findElements(Directory.ROOT_DIRECTORY)) {
+			if (rootElement.getName().equals(username)) {
+				return (Directory) rootElement;
+			}
+		}
+		throw new IllegalStateException("No home directory found for " + username);
+	}
+
+	private void time(LatencyRecorder recorder, boolean measured, Runnable operation) {
+		long start = System.nanoTime();
+		operation.run();
+		if (measured) {
+			recorder.record(System.nanoTime() - start);
+		}
+	}
+
+}
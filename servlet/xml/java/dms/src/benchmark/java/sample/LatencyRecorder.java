@@ -0,0 +1,61 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects operation latencies and summarizes them as percentiles.
+ */
+final class LatencyRecorder {
+
+	private long[] samples = new long[1024];
+
+	private int count;
+
+	void record(long nanos) {
+		if (this.count == this.samples.length) {
+			this.samples = Arrays.copyOf(this.samples, this.count * 2);
+		}
+		this.samples[this.count++] = nanos;
+	}
+
+	/**
+	 * Summarizes the recorded latencies in microseconds.
+	 * @return a single line with the count, percentiles and maximum
+	 */
+	String summary() {
+		long[] sorted = Arrays.copyOf(this.samples, this.count);
+		Arrays.sort(sorted);
+		return String.format("n=%d p50=%d p90=%d p99=%d p99.9=%d max=%d (us)", this.count,
+				micros(percentile(sorted, 0.50)), micros(percentile(sorted, 0.90)), micros(percentile(sorted, 0.99)),
+				micros(percentile(sorted, 0.999)), micros((this.count > 0) ? sorted[this.count - 1] : 0));
+	}
+
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	private static long micros(long nanos) {
+		return TimeUnit.NANOSECONDS.toMicros(nanos);
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import sample.dms.AbstractElement;
+import sample.dms.ImportNode;
+
+import org.springframework.security.acls.domain.BasePermission;
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
+import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.MutableAcl;
+import org.springframework.security.acls.model.MutableAclService;
+import org.springframework.util.Assert;
+
+/**
+ * Describes a synthetic directory tree for {@link DmsBenchmark}.
+ * <p>
+ * Every directory holds <code>fanout</code> sub-directories, down to <code>depth</code>
+ * levels, and <code>filesPerDirectory</code> files. The ACE density is the average number
+ * of extra entries added to each element's ACL. Those entries grant other principals read
+ * access, so they lengthen the ACLs the permission granting strategy scans without
+ * changing any decision the benchmark depends on.
+ */
+final class SyntheticTree {
+
+	private final int depth;
+
+	private final int fanout;
+
+	private final int filesPerDirectory;
+
+	private final double aceDensity;
+
+	SyntheticTree(int depth, int fanout, int filesPerDirectory, double aceDensity) {
+		Assert.isTrue(depth > 0, "Depth must be positive");
+		Assert.isTrue(fanout > 0, "Fanout must be positive");
+		Assert.isTrue(filesPerDirectory >= 0, "Files per directory cannot be negative");
+		Assert.isTrue(aceDensity >= 0, "ACE density cannot be negative");
+		this.depth = depth;
+		this.fanout = fanout;
+		this.filesPerDirectory = filesPerDirectory;
+		this.aceDensity = aceDensity;
+	}
+
+	/**
+	 * Reads the shape from <code>dms.benchmark.*</code> system properties.
+	 * @return the tree
+	 */
+	static SyntheticTree fromSystemProperties() {
+		return new SyntheticTree(Integer.getInteger("dms.benchmark.depth", 4),
+				Integer.getInteger("dms.benchmark.fanout", 4), Integer.getInteger("dms.benchmark.files", 5),
+				Double.parseDouble(System.getProperty("dms.benchmark.aceDensity", "1.0")));
+	}
+
+	List<ImportNode> nodes() {
+		return nodes(1);
+	}
+
+	private List<ImportNode> nodes(int level) {
+		List<ImportNode> nodes = new ArrayList<>();
+		for (int i = 0; i < this.fanout; i++) {
+			List<ImportNode> children = new ArrayList<>();
+			if (level < this.depth) {
+				children.addAll(nodes(level + 1));
+			}
+			for (int j = 0; j < this.filesPerDirectory; j++) {
+				children.add(ImportNode.file("file_" + j + ".txt", "Synthetic content " + j));
+			}
+			nodes.add(ImportNode.directory("dir_" + level + "_" + i, children));
+		}
+		return nodes;
+	}
+
+	/**
+	 * Adds the extra ACL entries to the given elements. The current principal must own
+	 * them.
+	 * @param aclService the service to update the ACLs with
+	 * @param elements the elements to add entries to
+	 * @param random the source of the number of entries per element
+	 */
+	void addEntries(MutableAclService aclService, List<AbstractElement> elements, Random random) {
+		for (AbstractElement element : elements) {
+			int entries = (int) this.aceDensity + ((random.nextDouble() < this.aceDensity % 1) ? 1 : 0);
+			if (entries == 0) {
+				continue;
+			}
+			MutableAcl acl = (MutableAcl) aclService.readAclById(new ObjectIdentityImpl(element));
+			for (int i = 0; i < entries; i++) {
+				acl.insertAce(acl.getEntries().size(), BasePermission.READ,
+						new PrincipalSid("synthetic_" + random.nextInt(1000)), true);
+			}
+			aclService.updateAcl(acl);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SyntheticTree[depth='" + this.depth + "'; fanout='" + this.fanout + "'; filesPerDirectory='"
+				+ this.filesPerDirectory + "'; aceDensity='" + this.aceDensity + "']";
+	}
+
+}
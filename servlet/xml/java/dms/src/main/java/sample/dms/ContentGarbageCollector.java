@@ -0,0 +1,116 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.support.JdbcDaoSupport;
+import org.springframework.util.Assert;
+
+/**
+ * Removes bodies from the {@link ContentStore} once no {@link File} refers to them, and
+ * reports how much space deduplication saves.
+ * <p>
+ * A body is only removed once it has been unreferenced and unwritten for the grace
+ * period. This covers uploads whose transaction has not committed yet, as well as bodies
+ * left behind by transactions that rolled back. The modification time is checked again
+ * as the body is removed, so an upload that reuses it in the meantime keeps it.
+ */
+public class ContentGarbageCollector extends JdbcDaoSupport {
+
+	private static final String SELECT_REFERENCED_DIGESTS = "select digest from content_blob where reference_count > 0";
+
+	private static final String DELETE_FROM_CONTENT_BLOB_UNREFERENCED = "delete from content_blob where digest = ? and reference_count <= 0";
+
+	private static final String SELECT_CONTENT_BLOB_COUNT = "select count(digest) from content_blob where digest = ?";
+
+	private static final String SELECT_FILE_STATISTICS = "select count(id), coalesce(sum(content_length), 0) from file where content_digest is not null";
+
+	private static final String SELECT_CONTENT_BLOB_STATISTICS = "select count(digest), coalesce(sum(content_length), 0) from content_blob where reference_count > 0";
+
+	private final ContentStore contentStore;
+
+	private Duration gracePeriod = Duration.ofHours(1);
+
+	public ContentGarbageCollector(ContentStore contentStore) {
+		Assert.notNull(contentStore, "ContentStore required");
+		this.contentStore = contentStore;
+	}
+
+	/**
+	 * Removes every body that is no longer referenced and has not been written within
+	 * the grace period.
+	 * @return the number of bodies removed
+	 */
+	public int collectGarbage() {
+		Instant cutoff = Instant.now().minus(this.gracePeriod);
+		try {
+			Set<String> referenced = new HashSet<>(
+					getJdbcTemplate().queryForList(SELECT_REFERENCED_DIGESTS, String.class));
+			int removed = 0;
+			for (String digest : this.contentStore.findDigestsUnmodifiedSince(cutoff)) {
+				if (referenced.contains(digest)) {
+					continue;
+				}
+				// Only succeeds if nobody took a reference since the digests were read
+				getJdbcTemplate().update(DELETE_FROM_CONTENT_BLOB_UNREFERENCED, new Object[] { digest });
+				if (getJdbcTemplate().queryForObject(SELECT_CONTENT_BLOB_COUNT, new Object[] { digest },
+						Integer.class) == 0) {
+					// Checked again, as an upload may have touched the body since it was listed
+					if (this.contentStore.deleteIfUnmodifiedSince(digest, cutoff)) {
+						removed++;
+					}
+				}
+			}
+			if (removed > 0 && this.logger.isDebugEnabled()) {
+				this.logger.debug("Removed " + removed + " unreferenced bodies");
+			}
+			return removed;
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not collect unreferenced content", ex);
+		}
+	}
+
+	/**
+	 * Calculates how much space deduplication currently saves.
+	 * @return the statistics (never null)
+	 */
+	public ContentStatistics getStatistics() {
+		long[] files = getJdbcTemplate().queryForObject(SELECT_FILE_STATISTICS,
+				(rs, rowNumber) -> new long[] { rs.getLong(1), rs.getLong(2) });
+		long[] blobs = getJdbcTemplate().queryForObject(SELECT_CONTENT_BLOB_STATISTICS,
+				(rs, rowNumber) -> new long[] { rs.getLong(1), rs.getLong(2) });
+		return new ContentStatistics(files[0], files[1], blobs[0], blobs[1]);
+	}
+
+	/**
+	 * Sets how long an unreferenced body is kept before it is removed.
+	 * @param gracePeriod the grace period (defaults to one hour)
+	 */
+	public void setGracePeriod(Duration gracePeriod) {
+		Assert.notNull(gracePeriod, "Grace period required");
+		Assert.isTrue(!gracePeriod.isNegative(), "Grace period cannot be negative");
+		this.gracePeriod = gracePeriod;
+	}
+
+}
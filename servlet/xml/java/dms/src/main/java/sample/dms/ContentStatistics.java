@@ -0,0 +1,89 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+/**
+ * Snapshot of how much space content deduplication saves.
+ */
+public final class ContentStatistics {
+
+	private final long fileCount;
+
+	private final long logicalBytes;
+
+	private final long blobCount;
+
+	private final long storedBytes;
+
+	public ContentStatistics(long fileCount, long logicalBytes, long blobCount, long storedBytes) {
+		this.fileCount = fileCount;
+		this.logicalBytes = logicalBytes;
+		this.blobCount = blobCount;
+		this.storedBytes = storedBytes;
+	}
+
+	/**
+	 * Gets the number of files that have a body.
+	 * @return the number of files with a body
+	 */
+	public long getFileCount() {
+		return this.fileCount;
+	}
+
+	/**
+	 * Gets the total size of all file bodies, as if each file stored its own copy.
+	 * @return the logical size in bytes
+	 */
+	public long getLogicalBytes() {
+		return this.logicalBytes;
+	}
+
+	/**
+	 * Gets the number of distinct bodies that are still referenced.
+	 * @return the number of referenced bodies
+	 */
+	public long getBlobCount() {
+		return this.blobCount;
+	}
+
+	/**
+	 * Gets the total size of the distinct bodies that are still referenced.
+	 * @return the stored size in bytes
+	 */
+	public long getStoredBytes() {
+		return this.storedBytes;
+	}
+
+	public long getBytesSaved() {
+		return this.logicalBytes - this.storedBytes;
+	}
+
+	/**
+	 * Gets the ratio of logical to stored bytes.
+	 * @return the deduplication ratio (1.0 if nothing is stored)
+	 */
+	public double getDeduplicationRatio() {
+		return (this.storedBytes == 0) ? 1.0 : (double) this.logicalBytes / this.storedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "ContentStatistics[fileCount='" + this.fileCount + "'; logicalBytes='" + this.logicalBytes
+				+ "'; blobCount='" + this.blobCount + "'; storedBytes='" + this.storedBytes + "']";
+	}
+
+}
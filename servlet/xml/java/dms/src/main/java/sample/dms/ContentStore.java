@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.Collection;
+
+/**
+ * Keeps the bodies of {@link File}s outside of the <code>FILE</code> table, so that
+ * loading file metadata never reads content bytes.
+ * <p>
+ * Bodies are addressed by the hex-encoded SHA-256 digest of their bytes, so identical
+ * bodies are stored once. The store itself does not count references; that is done in
+ * the <code>CONTENT_BLOB</code> table by {@link DocumentDaoImpl}.
+ */
+public interface ContentStore {
+
+	/**
+	 * Stores a body, hashing it while it is streamed. If a body with the same digest is
+	 * already present the new copy is discarded.
+	 * @param source the body, read until end of stream (the caller closes it)
+	 * @return the digest and length of the stored body
+	 * @throws IOException if the body could not be stored
+	 */
+	StoredContent write(ReadableByteChannel source) throws IOException;
+
+	/**
+	 * Opens the body with the given digest.
+	 * @param digest the digest returned by {@link #write(ReadableByteChannel)}
+	 * @return a stream over the body (the caller closes it)
+	 * @throws IOException if the body could not be opened
+	 */
+	InputStream openStream(String digest) throws IOException;
+
+	/**
+	 * Copies a range of the body with the given digest to the target channel.
+	 * Implementations should use zero-copy transfers where the platform allows.
+	 * @param digest the digest returned by {@link #write(ReadableByteChannel)}
+	 * @param position zero-based offset of the first byte to copy
+	 * @param count maximum number of bytes to copy
+	 * @param target the channel to copy to (it is not closed)
+	 * @return the number of bytes copied, which is less than <code>count</code> if the
+	 * end of the body was reached or a non-blocking target could not accept more bytes
+	 * @throws IOException if the body could not be read or the target written
+	 */
+	long transferTo(String digest, long position, long count, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Removes the body with the given digest, if present.
+	 * @param digest the digest returned by {@link #write(ReadableByteChannel)}
+	 * @throws IOException if the body could not be removed
+	 */
+	void delete(String digest) throws IOException;
+
+	/**
+	 * Removes the body with the given digest, provided it has still not been written
+	 * since the given instant. Unlike checking with
+	 * {@link #findDigestsUnmodifiedSince(Instant)} and then calling
+	 * {@link #delete(String)}, a write that races with the removal either keeps the body
+	 * or stores it again.
+	 * @param digest the digest returned by {@link #write(ReadableByteChannel)}
+	 * @param instant the cut-off
+	 * @return <code>true</code> if the body was removed
+	 * @throws IOException if the body could not be removed
+	 */
+	boolean deleteIfUnmodifiedSince(String digest, Instant instant) throws IOException;
+
+	/**
+	 * Lists the bodies that have not been written since the given instant. Writing a body
+	 * that is already present counts as a write, so recently re-uploaded bodies are never
+	 * listed.
+	 * @param instant the cut-off
+	 * @return the digests of the matching bodies (never null)
+	 * @throws IOException if the store could not be listed
+	 */
+	Collection<String> findDigestsUnmodifiedSince(Instant instant) throws IOException;
+
+}
@@ -16,22 +16,69 @@
 
 package sample.dms;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.sql.DataSource;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.TransientDataAccessException;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.AuthorityUtils;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.util.FieldUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 
 /**
  * Populates the DMS in-memory database with document and ACL information.
+ * <p>
+ * Population is idempotent: the schema and users are only created if the
+ * <code>DIRECTORY</code> table is missing. Each user's documents are created in several
+ * units of work, namely the home directory, its files, and each of its sub-directories,
+ * and every unit is skipped if what it creates already exists. With a
+ * {@link #setTransactionManager(PlatformTransactionManager) transaction manager} each
+ * unit runs in its own transaction, so a population that fails part way through is
+ * completed by the next one rather than leaving a partial tree behind.
+ * <p>
+ * By default every element is created serially through the {@link DocumentDao}. With a
+ * {@link #setParallelism(int) parallelism} above one and a transaction manager, the
+ * units are instead shared between worker threads and use
+ * {@link DocumentDao#importTree(Directory, List)} so rows are inserted in batches. A
+ * unit whose transaction fails with a transient or duplicate key error, e.g. because
+ * another worker created a shared row first, simply retries.
  *
  * @author Ben Alex
  */
-public class DataSourcePopulator implements InitializingBean {
+public class DataSourcePopulator implements InitializingBean, ApplicationListener<ContextRefreshedEvent> {
+
+	private static final String SELECT_DIRECTORY_TABLE_COUNT = "select count(*) from information_schema.tables where table_name = 'DIRECTORY'";
+
+	private static final String SELECT_DIRECTORY_COUNT = "select count(*) from directory where directory_name = ? and parent_directory_id = ?";
+
+	private static final String SELECT_DIRECTORY_ID = "select id from directory where directory_name = ? and parent_directory_id = ?";
+
+	private static final String SELECT_FILE_COUNT = "select count(*) from file where parent_directory_id = ?";
+
+	private static final String[][] SAMPLE_USERS = { { "rod", "koala" }, { "dianne", "emu" }, { "scott", "wombat" } };
+
+	private static final int MAXIMUM_ATTEMPTS = 3;
 
 	protected static final int LEVEL_NEGATE_READ = 0;
 
@@ -45,6 +92,18 @@ public class DataSourcePopulator implements InitializingBean {
 
 	protected DocumentDao documentDao;
 
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final CompletableFuture<Void> population = new CompletableFuture<>();
+
+	private PlatformTransactionManager transactionManager;
+
+	private int parallelism = 1;
+
+	private int filesPerDirectory = 10;
+
+	private boolean populateInBackground;
+
 	public DataSourcePopulator(DataSource dataSource, DocumentDao documentDao) {
 		Assert.notNull(dataSource, "DataSource required");
 		Assert.notNull(documentDao, "DocumentDao required");
@@ -53,6 +112,27 @@ public class DataSourcePopulator implements InitializingBean {
 	}
 
 	public void afterPropertiesSet() {
+		if (this.template.queryForObject(SELECT_DIRECTORY_TABLE_COUNT, Integer.class) == 0) {
+			createSchema();
+		}
+		if (!this.populateInBackground) {
+			populateDocuments();
+		}
+	}
+
+	/**
+	 * Starts populating the documents once the context is ready, if
+	 * {@link #setPopulateInBackground(boolean) populating in the background}.
+	 */
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		if (this.populateInBackground && !this.population.isDone()) {
+			Thread populator = new Thread(this::populateDocuments, "dms-populator");
+			populator.setDaemon(true);
+			populator.start();
+		}
+	}
+
+	private void createSchema() {
 		// ACL tables
 		this.template.execute(
 				"CREATE TABLE ACL_SID(ID BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 100) NOT NULL PRIMARY KEY,PRINCIPAL BOOLEAN NOT NULL,SID VARCHAR_IGNORECASE(100) NOT NULL,CONSTRAINT UNIQUE_UK_1 UNIQUE(SID,PRINCIPAL));");
@@ -74,7 +154,17 @@ public class DataSourcePopulator implements InitializingBean {
 		this.template.execute(
 				"CREATE TABLE DIRECTORY(ID BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 100) NOT NULL PRIMARY KEY, DIRECTORY_NAME VARCHAR_IGNORECASE(50) NOT NULL, PARENT_DIRECTORY_ID BIGINT)");
 		this.template.execute(
-				"CREATE TABLE FILE(ID BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 100) NOT NULL PRIMARY KEY, FILE_NAME VARCHAR_IGNORECASE(50) NOT NULL, CONTENT VARCHAR_IGNORECASE(1024), PARENT_DIRECTORY_ID BIGINT)");
+				"CREATE TABLE DIRECTORY_CLOSURE(ANCESTOR_ID BIGINT NOT NULL, DESCENDANT_ID BIGINT NOT NULL, DEPTH INT NOT NULL, PRIMARY KEY(ANCESTOR_ID, DESCENDANT_ID))");
+		this.template.execute("CREATE INDEX IX_CLOSURE_DESCENDANT ON DIRECTORY_CLOSURE(DESCENDANT_ID, DEPTH);");
+		// The root directory has no DIRECTORY row, but is the ancestor of every directory
+		this.template.execute("INSERT INTO DIRECTORY_CLOSURE VALUES(-1,-1,0);");
+		this.template.execute(
+				"CREATE TABLE DIRECTORY_AGGREGATE(DIRECTORY_ID BIGINT NOT NULL PRIMARY KEY, FILE_COUNT BIGINT NOT NULL, TOTAL_BYTES BIGINT NOT NULL, LAST_MODIFIED TIMESTAMP NOT NULL)");
+		this.template.execute("INSERT INTO DIRECTORY_AGGREGATE VALUES(-1,0,0,CURRENT_TIMESTAMP);");
+		this.template.execute(
+				"CREATE TABLE FILE(ID BIGINT GENERATED BY DEFAULT AS IDENTITY(START WITH 100) NOT NULL PRIMARY KEY, FILE_NAME VARCHAR_IGNORECASE(50) NOT NULL, CONTENT VARCHAR_IGNORECASE(1024), CONTENT_DIGEST CHAR(64), CONTENT_LENGTH BIGINT DEFAULT 0 NOT NULL, VERSION BIGINT DEFAULT 0 NOT NULL, PARENT_DIRECTORY_ID BIGINT)");
+		this.template.execute(
+				"CREATE TABLE CONTENT_BLOB(DIGEST CHAR(64) NOT NULL PRIMARY KEY, CONTENT_LENGTH BIGINT NOT NULL, REFERENCE_COUNT BIGINT NOT NULL)");
 
 		// Populate the authentication and role tables
 		this.template.execute(
@@ -103,54 +193,134 @@ public class DataSourcePopulator implements InitializingBean {
 		// Now create an ACL entry for the root directory
 		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "ignored",
 				AuthorityUtils.createAuthorityList(("ROLE_IGNORED"))));
+		try {
+			addPermission(this.documentDao, Directory.ROOT_DIRECTORY, "ROLE_USER", LEVEL_GRANT_WRITE);
+		}
+		finally {
+			SecurityContextHolder.clearContext();
+		}
+	}
 
-		addPermission(this.documentDao, Directory.ROOT_DIRECTORY, "ROLE_USER", LEVEL_GRANT_WRITE);
+	/**
+	 * Creates the directories and files of every sample user, unless that has been done
+	 * already. Every home directory is created first, then the files, "confidential" and
+	 * "shared" directories below each of them, so there are several units of work per
+	 * user to spread between workers.
+	 */
+	private synchronized void populateDocuments() {
+		if (this.population.isDone()) {
+			return;
+		}
+		try {
+			List<Runnable> homes = new ArrayList<>();
+			List<Runnable> contents = new ArrayList<>();
+			for (String[] user : SAMPLE_USERS) {
+				homes.add(() -> createSampleData(user, () -> createHomeDirectory(user[0])));
+				contents.add(() -> createSampleData(user, () -> createHomeFiles(findHomeDirectory(user[0]))));
+				contents.add(() -> createSampleData(user,
+						() -> createSubdirectory(findHomeDirectory(user[0]), "confidential", LEVEL_NEGATE_READ)));
+				contents.add(() -> createSampleData(user, () -> createSubdirectory(findHomeDirectory(user[0]),
+						"shared", LEVEL_GRANT_READ, LEVEL_GRANT_WRITE)));
+			}
+			populate(homes);
+			populate(contents);
+			this.population.complete(null);
+		}
+		catch (RuntimeException ex) {
+			this.logger.error("Could not populate the sample documents", ex);
+			this.population.completeExceptionally(ex);
+			throw ex;
+		}
+	}
 
-		// Now go off and create some directories and files for our users
-		createSampleData("rod", "koala");
-		createSampleData("dianne", "emu");
-		createSampleData("scott", "wombat");
+	private boolean isBatched() {
+		return this.parallelism > 1 && this.transactionManager != null;
+	}
 
+	/**
+	 * Runs units of work, concurrently if {@link #isBatched() batched}, and waits for all
+	 * of them.
+	 */
+	private void populate(List<Runnable> units) {
+		if (!isBatched()) {
+			units.forEach(Runnable::run);
+			return;
+		}
+		AtomicInteger workerNumber = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(this.parallelism, (task) -> {
+			Thread worker = new Thread(task, "dms-populator-" + workerNumber.incrementAndGet());
+			worker.setDaemon(true);
+			return worker;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<>(units.size());
+			for (Runnable unit : units) {
+				futures.add(workers.submit(unit));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		catch (ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ex.getCause();
+			}
+			throw new IllegalStateException("Could not populate the sample documents", ex.getCause());
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while populating the sample documents", ex);
+		}
+		finally {
+			workers.shutdownNow();
+		}
 	}
 
 	/**
-	 * Creates a directory for the user, and a series of sub-directories. The root
-	 * directory is the parent for the user directory. The sub-directories are
-	 * "confidential" and "shared". The ROLE_USER will be given read and write access to
-	 * "shared".
-	 * @param username the user's username
-	 * @param password the user's password
+	 * Gets the population of the sample documents, which completes once every user's
+	 * documents exist.
+	 * @return the population (never null)
 	 */
-	private void createSampleData(String username, String password) {
+	public CompletableFuture<Void> getPopulation() {
+		return this.population;
+	}
+
+	/**
+	 * Runs a unit of work as the given user. With a transaction manager the unit runs in
+	 * its own transaction, so a unit that fails leaves nothing behind and is simply done
+	 * again by the next population; a transient or duplicate key error, e.g. because
+	 * another worker created a shared row first, is retried straight away.
+	 * @param user the user's username and password
+	 * @param unit the work, which skips anything that already exists
+	 */
+	private void createSampleData(String[] user, Runnable unit) {
 		Assert.notNull(this.documentDao, "DocumentDao required");
-		Assert.hasText(username, "Username required");
+		Assert.hasText(user[0], "Username required");
 
-		Authentication auth = new UsernamePasswordAuthenticationToken(username, password);
+		Authentication auth = new UsernamePasswordAuthenticationToken(user[0], user[1]);
 
 		try {
 			// Set the SecurityContextHolder ThreadLocal so any subclasses
 			// automatically know which user is operating
 			SecurityContextHolder.getContext().setAuthentication(auth);
-
-			// Create the home directory first
-			Directory home = new Directory(username, Directory.ROOT_DIRECTORY);
-			this.documentDao.create(home);
-			addPermission(this.documentDao, home, username, LEVEL_GRANT_ADMIN);
-			addPermission(this.documentDao, home, "ROLE_USER", LEVEL_GRANT_READ);
-			createFiles(this.documentDao, home);
-
-			// Now create the confidential directory
-			Directory confid = new Directory("confidential", home);
-			this.documentDao.create(confid);
-			addPermission(this.documentDao, confid, "ROLE_USER", LEVEL_NEGATE_READ);
-			createFiles(this.documentDao, confid);
-
-			// Now create the shared directory
-			Directory shared = new Directory("shared", home);
-			this.documentDao.create(shared);
-			addPermission(this.documentDao, shared, "ROLE_USER", LEVEL_GRANT_READ);
-			addPermission(this.documentDao, shared, "ROLE_USER", LEVEL_GRANT_WRITE);
-			createFiles(this.documentDao, shared);
+			if (this.transactionManager == null) {
+				unit.run();
+				return;
+			}
+			TransactionTemplate transaction = new TransactionTemplate(this.transactionManager);
+			for (int attempt = 1;; attempt++) {
+				try {
+					transaction.executeWithoutResult((status) -> unit.run());
+					return;
+				}
+				catch (TransientDataAccessException | DuplicateKeyException ex) {
+					// Everything was rolled back, and whatever exists now is skipped
+					if (attempt == MAXIMUM_ATTEMPTS) {
+						throw ex;
+					}
+					this.logger.debug("Retrying the sample documents of " + user[0], ex);
+				}
+			}
 		}
 		finally {
 			// Clear the SecurityContextHolder ThreadLocal so future calls are
@@ -159,16 +329,130 @@ public class DataSourcePopulator implements InitializingBean {
 		}
 	}
 
+	/**
+	 * Creates a directory for the user. The root directory is the parent for the user
+	 * directory.
+	 * @param username the user's username
+	 */
+	private void createHomeDirectory(String username) {
+		if (countDirectories(Directory.ROOT_DIRECTORY, username) > 0) {
+			return;
+		}
+		Directory home = new Directory(username, Directory.ROOT_DIRECTORY);
+		this.documentDao.create(home);
+		addPermission(this.documentDao, home, username, LEVEL_GRANT_ADMIN);
+		addPermission(this.documentDao, home, "ROLE_USER", LEVEL_GRANT_READ);
+	}
+
+	private Directory findHomeDirectory(String username) {
+		Long id = this.template.queryForObject(SELECT_DIRECTORY_ID, Long.class, username,
+				Directory.ROOT_DIRECTORY.getId());
+		Directory home = new Directory(username, Directory.ROOT_DIRECTORY);
+		FieldUtils.setProtectedFieldValue("id", home, id);
+		return home;
+	}
+
+	private void createHomeFiles(Directory home) {
+		if (this.template.queryForObject(SELECT_FILE_COUNT, Integer.class, home.getId()) > 0) {
+			return;
+		}
+		if (isBatched()) {
+			this.documentDao.importTree(home, sampleFiles());
+		}
+		else {
+			createFiles(this.documentDao, home);
+		}
+	}
+
+	/**
+	 * Creates a sub-directory of the home directory, such as "confidential" or "shared",
+	 * along with its files.
+	 * @param home the user's home directory
+	 * @param name the name of the sub-directory
+	 * @param levels the permissions ROLE_USER is given to it
+	 */
+	private void createSubdirectory(Directory home, String name, int... levels) {
+		if (countDirectories(home, name) > 0) {
+			return;
+		}
+		if (isBatched()) {
+			// Imported in one go, with rows inserted in batches
+			AbstractElement directory = this.documentDao
+					.importTree(home, Collections.singletonList(ImportNode.directory(name, sampleFiles()))).get(0);
+			for (int level : levels) {
+				addPermission(this.documentDao, directory, "ROLE_USER", level);
+			}
+			return;
+		}
+		Directory directory = new Directory(name, home);
+		this.documentDao.create(directory);
+		for (int level : levels) {
+			addPermission(this.documentDao, directory, "ROLE_USER", level);
+		}
+		createFiles(this.documentDao, directory);
+	}
+
+	private int countDirectories(Directory parent, String name) {
+		return this.template.queryForObject(SELECT_DIRECTORY_COUNT, Integer.class, name, parent.getId());
+	}
+
+	private List<ImportNode> sampleFiles() {
+		List<ImportNode> files = new ArrayList<>(this.filesPerDirectory);
+		for (int i = 0; i < this.filesPerDirectory; i++) {
+			files.add(ImportNode.file("file_" + i + ".txt", null));
+		}
+		return files;
+	}
+
 	private void createFiles(DocumentDao documentDao, Directory parent) {
 		Assert.notNull(documentDao, "DocumentDao required");
 		Assert.notNull(parent, "Parent required");
 		int countBeforeInsert = documentDao.findElements(parent).length;
-		for (int i = 0; i < 10; i++) {
+		for (int i = 0; i < this.filesPerDirectory; i++) {
 			File file = new File("file_" + i + ".txt", parent);
 			documentDao.create(file);
 		}
-		Assert.isTrue(countBeforeInsert + 10 == documentDao.findElements(parent).length,
-				"Failed to increase count by 10");
+		Assert.isTrue(countBeforeInsert + this.filesPerDirectory == documentDao.findElements(parent).length,
+				() -> "Failed to increase count by " + this.filesPerDirectory);
+	}
+
+	/**
+	 * Sets the transaction manager each unit of work runs in.
+	 * @param transactionManager the transaction manager (optional, but without one a
+	 * failed unit may leave part of its elements behind, and population is serial)
+	 */
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
+	/**
+	 * Sets how many units of work are populated at once.
+	 * @param parallelism the number of worker threads (defaults to 1, i.e. serial)
+	 */
+	public void setParallelism(int parallelism) {
+		Assert.isTrue(parallelism > 0, "Parallelism must be positive");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Sets how many files are created in each sample directory, e.g. to build large trees.
+	 * @param filesPerDirectory the number of files (defaults to 10)
+	 */
+	public void setFilesPerDirectory(int filesPerDirectory) {
+		Assert.isTrue(filesPerDirectory >= 0, "Files per directory cannot be negative");
+		this.filesPerDirectory = filesPerDirectory;
+	}
+
+	/**
+	 * Sets whether documents are populated on a background thread once the context has
+	 * been refreshed, so that startup does not wait for them. The schema and users are
+	 * always created during startup. Use {@link #getPopulation()} to find out when the
+	 * documents are in place.
+	 * @param populateInBackground whether to populate in the background (defaults to
+	 * false)
+	 */
+	public void setPopulateInBackground(boolean populateInBackground) {
+		this.populateInBackground = populateInBackground;
 	}
 
 	/**
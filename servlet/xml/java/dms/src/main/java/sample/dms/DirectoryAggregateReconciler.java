@@ -0,0 +1,64 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.jdbc.core.support.JdbcDaoSupport;
+
+/**
+ * Recalculates the per-directory totals behind
+ * {@link DocumentDao#getStatistics(Directory)} from the <code>FILE</code> table, and
+ * corrects any that have drifted, for instance after rows were changed outside of
+ * {@link DocumentDaoImpl}.
+ * <p>
+ * Each correction recalculates the totals within its own update statement, so changes
+ * made concurrently through the DAO are not lost.
+ */
+public class DirectoryAggregateReconciler extends JdbcDaoSupport {
+
+	private static final String INSERT_MISSING_DIRECTORY_AGGREGATES = "insert into directory_aggregate(directory_id, file_count, total_bytes, last_modified) select id, 0, 0, current_timestamp from directory d where not exists (select directory_id from directory_aggregate a where a.directory_id = d.id)";
+
+	private static final String SELECT_DRIFTED_DIRECTORY_AGGREGATES = "select a.directory_id from directory_aggregate a left join (select c.ancestor_id, count(f.id) as file_count, sum(f.content_length) as total_bytes from directory_closure c join file f on f.parent_directory_id = c.descendant_id group by c.ancestor_id) t on t.ancestor_id = a.directory_id where a.file_count <> coalesce(t.file_count, 0) or a.total_bytes <> coalesce(t.total_bytes, 0)";
+
+	private static final String UPDATE_DIRECTORY_AGGREGATE = "update directory_aggregate set "
+			+ "file_count = (select count(f.id) from directory_closure c join file f on f.parent_directory_id = c.descendant_id where c.ancestor_id = directory_aggregate.directory_id), "
+			+ "total_bytes = (select coalesce(sum(f.content_length), 0) from directory_closure c join file f on f.parent_directory_id = c.descendant_id where c.ancestor_id = directory_aggregate.directory_id) "
+			+ "where directory_id = ?";
+
+	/**
+	 * Corrects every directory whose totals no longer match its files.
+	 * @return the number of directories corrected
+	 */
+	public int reconcile() {
+		getJdbcTemplate().update(INSERT_MISSING_DIRECTORY_AGGREGATES);
+		List<Long> drifted = getJdbcTemplate().queryForList(SELECT_DRIFTED_DIRECTORY_AGGREGATES, Long.class);
+		if (drifted.isEmpty()) {
+			return 0;
+		}
+		List<Object[]> rows = new ArrayList<>(drifted.size());
+		for (Long directoryId : drifted) {
+			rows.add(new Object[] { directoryId });
+		}
+		getJdbcTemplate().batchUpdate(UPDATE_DIRECTORY_AGGREGATE, rows);
+		if (this.logger.isInfoEnabled()) {
+			this.logger.info("Corrected the totals of " + drifted.size() + " directories");
+		}
+		return drifted.size();
+	}
+
+}
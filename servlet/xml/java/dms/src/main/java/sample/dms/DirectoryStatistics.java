@@ -0,0 +1,73 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms;
+
+import java.time.Instant;
+
+import org.springframework.util.Assert;
+
+/**
+ * Totals for the subtree below a {@link Directory}, as returned by
+ * {@link DocumentDao#getStatistics(Directory)}.
+ */
+public final class DirectoryStatistics {
+
+	private final long fileCount;
+
+	private final long totalBytes;
+
+	private final Instant lastModified;
+
+	public DirectoryStatistics(long fileCount, long totalBytes, Instant lastModified) {
+		Assert.notNull(lastModified, "Last modified required");
+		this.fileCount = fileCount;
+		this.totalBytes = totalBytes;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Gets the number of files in the directory and all of its sub-directories.
+	 * @return the file count
+	 */
+	public long getFileCount() {
+		return this.fileCount;
+	}
+
+	/**
+	 * Gets the combined length of the stored bodies of those files.
+	 * @return the total bytes
+	 * @see DocumentDao#writeContent(File, java.io.InputStream)
+	 */
+	public long getTotalBytes() {
+		return this.totalBytes;
+	}
+
+	/**
+	 * Gets when an element anywhere in the subtree was last created, updated, deleted or
+	 * moved.
+	 * @return the instant (never null)
+	 */
+	public Instant getLastModified() {
+		return this.lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryStatistics[fileCount='" + this.fileCount + "'; totalBytes='" + this.totalBytes
+				+ "'; lastModified='" + this.lastModified + "']";
+	}
+
+}
@@ -16,6 +16,12 @@
 
 package sample.dms;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.stream.Stream;
+
 /**
  * Interface to define Document data access operations.
  *
@@ -30,6 +36,16 @@ public interface DocumentDao {
 	 */
 	void create(AbstractElement element);
 
+	/**
+	 * Creates a whole subtree of directories and files below an existing directory. The
+	 * elements are inserted one level at a time in batched statements, rather than one
+	 * round trip per element.
+	 * @param parent the saved directory to import into (cannot be null)
+	 * @param nodes the elements to create directly inside <code>parent</code>
+	 * @return the created elements, parents always before their children
+	 */
+	List<AbstractElement> importTree(Directory parent, List<ImportNode> nodes);
+
 	/**
 	 * Removes a file from the database for the specified element.
 	 * @param file the file to remove (cannot be null)
@@ -37,11 +53,23 @@ public interface DocumentDao {
 	void delete(File file);
 
 	/**
-	 * Modifies a file in the database.
+	 * Modifies a file in the database, provided nobody else has updated it since it was
+	 * loaded.
 	 * @param file the file to update (cannot be null)
+	 * @throws FileVersionConflictException if the file was updated concurrently
 	 */
 	void update(File file);
 
+	/**
+	 * Modifies a file in the database, provided it is still at the version identified by
+	 * an entity tag. Writers never block each other; the loser of a race is told instead.
+	 * @param file the file to update (cannot be null)
+	 * @param ifMatch the value of an <code>If-Match</code> header: a strong entity tag as
+	 * returned by {@link File#getETag()}, or <code>*</code> to accept any version
+	 * @throws FileVersionConflictException if the file is no longer at that version
+	 */
+	void update(File file, String ifMatch);
+
 	/**
 	 * Locates elements in the database which appear under the presented directory.
 	 * @param directory the directory (cannot be null - use
@@ -51,4 +79,131 @@ public interface DocumentDao {
 	 */
 	AbstractElement[] findElements(Directory directory);
 
+	/**
+	 * Lists the elements in a directory one page at a time, directories before files.
+	 * Unlike {@link #findElements(Directory)}, elements the caller may not read are
+	 * skipped while the page is filled, so only as many elements are loaded and checked
+	 * as it takes to fill the page.
+	 * @param directory the directory (cannot be null - use
+	 * {@link Directory#ROOT_DIRECTORY} for root)
+	 * @param cursor null for the first page, otherwise {@link ElementPage#getNextCursor()}
+	 * of the previous page
+	 * @param limit the maximum number of elements on the page (must be positive)
+	 * @return the page (never null)
+	 */
+	ElementPage listElements(Directory directory, String cursor, int limit);
+
+	/**
+	 * Moves a directory, along with everything below it, into another directory.
+	 * @param directory the directory to move (must have been saved)
+	 * @param newParent the directory to move it into, which cannot be the directory itself
+	 * or lie below it (use {@link Directory#ROOT_DIRECTORY} for root)
+	 * @return the directory at its new location
+	 */
+	Directory move(Directory directory, Directory newParent);
+
+	/**
+	 * Finds every directory below a directory, however deep, with a single query.
+	 * @param directory the directory to start from, which is itself not returned (cannot be
+	 * null - use {@link Directory#ROOT_DIRECTORY} for root)
+	 * @return the directories, shallowest first, with their parents populated (never null)
+	 */
+	List<Directory> findDescendantDirectories(Directory directory);
+
+	/**
+	 * Gets the totals for everything below a directory, however deep. The totals are
+	 * maintained as elements change, so this does not read any child rows.
+	 * <p>
+	 * The totals cover every file in the subtree, including files the caller may not be
+	 * allowed to read.
+	 * @param directory the directory (cannot be null - use {@link Directory#ROOT_DIRECTORY}
+	 * for root)
+	 * @return the totals (never null)
+	 */
+	DirectoryStatistics getStatistics(Directory directory);
+
+	/**
+	 * Streams every element below a directory, applying the same visibility rules as
+	 * {@link #listElements(Directory, String, int)}. Directories that are not visible are
+	 * not descended into, so nothing beneath them is returned either.
+	 * <p>
+	 * The stream is lazy and loads the tree a batch of directories at a time, in no
+	 * particular order. It may be made {@link Stream#parallel() parallel}, in which case
+	 * subtrees are loaded concurrently on the common fork-join pool. Because elements are
+	 * loaded after this method returns, they are not read within the caller's transaction.
+	 * @param directory the directory to start from, which is itself not returned (cannot be
+	 * null - use {@link Directory#ROOT_DIRECTORY} for root)
+	 * @return the elements below the directory (never null)
+	 */
+	Stream<AbstractElement> walk(Directory directory);
+
+	/**
+	 * Finds the elements whose name, or file text, contains every word of a query. Files
+	 * match on both their <code>content</code> and their body.
+	 * <p>
+	 * Matches are ranked first, then checked in rank order with the same visibility rules
+	 * as {@link #listElements(Directory, String, int)} until <code>limit</code> visible
+	 * elements are found, so elements the caller may not read never take up a place.
+	 * @param query the words to look for, in any case (cannot be empty)
+	 * @param limit the maximum number of elements to return (must be positive)
+	 * @return the matching elements, best match first (never null)
+	 */
+	List<AbstractElement> search(String query, int limit);
+
+	/**
+	 * Replaces the body of a file. The body is held outside the file's row, so it is
+	 * never read by {@link #findElements(Directory)} or written by {@link #update(File)}.
+	 * @param file the file whose body is replaced (cannot be null)
+	 * @param content the new body, read until end of stream (the caller closes it)
+	 * @return the number of bytes written
+	 */
+	long writeContent(File file, InputStream content);
+
+	/**
+	 * Replaces the body of a file, provided it is still at the version identified by an
+	 * entity tag. Writing a body changes the version, just like {@link #update(File)}.
+	 * @param file the file whose body is replaced (cannot be null)
+	 * @param content the new body, read until end of stream (the caller closes it)
+	 * @param ifMatch the value of an <code>If-Match</code> header: a strong entity tag as
+	 * returned by {@link File#getETag()}, or <code>*</code> to accept any version
+	 * @return the number of bytes written
+	 * @throws FileVersionConflictException if the file is no longer at that version
+	 */
+	long writeContent(File file, InputStream content, String ifMatch);
+
+	/**
+	 * Opens the body of a file for streaming.
+	 * @param file the file whose body is read (cannot be null)
+	 * @return a stream over the body, empty if none was written (the caller closes it)
+	 */
+	InputStream openContent(File file);
+
+	/**
+	 * Copies a range of the body of a file to the target channel, using zero-copy
+	 * transfers where possible (e.g. straight to a servlet response channel).
+	 * @param file the file whose body is read (cannot be null)
+	 * @param position zero-based offset of the first byte to copy
+	 * @param count maximum number of bytes to copy
+	 * @param target the channel to copy to (it is not closed)
+	 * @return the number of bytes copied, which is less than <code>count</code> at the
+	 * end of the body or when a non-blocking target is full, so the caller can wait until
+	 * it is writable and continue from there
+	 */
+	long readContent(File file, long position, long count, WritableByteChannel target);
+
+	/**
+	 * Writes everything below a directory to a ZIP archive, e.g. a servlet response
+	 * stream. Elements are visited with {@link #walk(Directory)}, so the caller only
+	 * receives what they may read, and bodies are copied through a small buffer; neither
+	 * the archive nor the list of elements is ever held in memory.
+	 * <p>
+	 * Entries are named after the path below <code>directory</code>. Files without a body
+	 * are exported as empty entries.
+	 * @param directory the directory to export, which is itself not included (cannot be
+	 * null - use {@link Directory#ROOT_DIRECTORY} for root)
+	 * @param target the stream to write the archive to (it is not closed)
+	 * @return the number of files exported
+	 */
+	long exportZip(Directory directory, OutputStream target);
+
 }
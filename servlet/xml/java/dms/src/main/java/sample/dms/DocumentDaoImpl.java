@@ -16,12 +16,50 @@
 
 package sample.dms;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
 
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 import org.springframework.security.util.FieldUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
 import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
 
 /**
  * Basic JDBC implementation of {@link DocumentDao}.
@@ -38,16 +76,100 @@ public class DocumentDaoImpl extends JdbcDaoSupport implements DocumentDao {
 
 	private static final String SELECT_FROM_DIRECTORY_NULL = "select id from directory where parent_directory_id is null";
 
-	private static final String SELECT_FROM_FILE = "select id, file_name, content, parent_directory_id from file where parent_directory_id = ?";
+	private static final String SELECT_FROM_FILE = "select id, file_name, content_digest, content_length, version, parent_directory_id from file where parent_directory_id = ?";
 
-	private static final String SELECT_FROM_DIRECTORY_SINGLE = "select id, directory_name, parent_directory_id from directory where id = ?";
+	private static final String SELECT_DIRECTORY_PAGE = "select id, directory_name from directory where parent_directory_id = ? and id > ? order by id limit ?";
 
-	private static final String DELETE_FROM_FILE = "delete from file where id = ?";
+	private static final String SELECT_FILE_PAGE = "select id, file_name, content_digest, content_length, version from file where parent_directory_id = ? and id > ? order by id limit ?";
 
-	private static final String UPDATE_FILE = "update file set content = ? where id = ?";
+	private static final String SELECT_DIRECTORY_CHILDREN = "select id, directory_name, parent_directory_id from directory where parent_directory_id in (%s) and id > ? order by id limit ?";
+
+	private static final String SELECT_FILE_CHILDREN = "select id, file_name, content_digest, content_length, version, parent_directory_id from file where parent_directory_id in (%s) and id > ? order by id limit ?";
+
+	private static final String SELECT_FILES_BY_ID = "select id, file_name, content_digest, content_length, version, parent_directory_id from file where id in (%s)";
+
+	private static final String SELECT_FILE_INDEXABLE = "select file_name, content, content_digest, content_length from file where id = ?";
+
+	private static final String SELECT_DIRECTORY_NAME = "select directory_name from directory where id = ?";
+
+	private static final String SELECT_ANCESTORS = "select d.id, d.directory_name from directory_closure c join directory d on d.id = c.ancestor_id where c.descendant_id = ? order by c.depth desc";
+
+	private static final String SELECT_DESCENDANTS = "select d.id, d.directory_name, d.parent_directory_id from directory_closure c join directory d on d.id = c.descendant_id where c.ancestor_id = ? and c.depth > 0 order by c.depth";
+
+	private static final String SELECT_CLOSURE_COUNT = "select count(*) from directory_closure where ancestor_id = ? and descendant_id = ?";
+
+	private static final String INSERT_CLOSURE_SELF = "insert into directory_closure(ancestor_id, descendant_id, depth) values (?,?,0)";
+
+	private static final String INSERT_CLOSURE_ANCESTORS = "insert into directory_closure(ancestor_id, descendant_id, depth) select ancestor_id, cast(? as bigint), depth + 1 from directory_closure where descendant_id = ?";
+
+	private static final String DELETE_CLOSURE_SUBTREE_ANCESTORS = "delete from directory_closure where descendant_id in (select descendant_id from directory_closure where ancestor_id = ?) and ancestor_id not in (select descendant_id from directory_closure where ancestor_id = ?)";
+
+	private static final String INSERT_CLOSURE_SUBTREE_ANCESTORS = "insert into directory_closure(ancestor_id, descendant_id, depth) select a.ancestor_id, d.descendant_id, a.depth + d.depth + 1 from directory_closure a cross join directory_closure d where a.descendant_id = ? and d.ancestor_id = ?";
+
+	private static final String UPDATE_DIRECTORY_PARENT = "update directory set parent_directory_id = ? where id = ?";
+
+	private static final String DELETE_FROM_FILE = "delete from file where id = ? and version = ?";
+
+	private static final String UPDATE_FILE = "update file set content = ?, version = version + 1 where id = ? and version = ?";
+
+	private static final String UPDATE_FILE_ANY_VERSION = "update file set content = ?, version = version + 1 where id = ?";
+
+	private static final String SELECT_FILE_VERSION = "select version from file where id = ?";
+
+	private static final String SELECT_FILE_CONTENT_DIGEST = "select content_digest from file where id = ?";
+
+	private static final String SELECT_FILE_CONTENT = "select content_digest, content_length, version, parent_directory_id from file where id = ?";
+
+	private static final String SELECT_FILE_PARENT = "select parent_directory_id from file where id = ?";
+
+	private static final String SELECT_DIRECTORY_PARENT = "select parent_directory_id from directory where id = ?";
+
+	private static final String INSERT_INTO_DIRECTORY_AGGREGATE = "insert into directory_aggregate(directory_id, file_count, total_bytes, last_modified) values (?,0,0,?)";
+
+	private static final String UPDATE_DIRECTORY_AGGREGATE_ANCESTORS = "update directory_aggregate set file_count = file_count + ?, total_bytes = total_bytes + ?, last_modified = ? where directory_id in (select ancestor_id from directory_closure where descendant_id = ?)";
+
+	private static final String SELECT_DIRECTORY_AGGREGATE = "select file_count, total_bytes, last_modified from directory_aggregate where directory_id = ?";
+
+	private static final String UPDATE_FILE_CONTENT_DIGEST = "update file set content_digest = ?, content_length = ?, version = version + 1 where id = ? and version = ?";
+
+	private static final String INSERT_INTO_CONTENT_BLOB = "insert into content_blob(digest, content_length, reference_count) values (?,?,1)";
+
+	private static final String UPDATE_CONTENT_BLOB_RETAIN = "update content_blob set reference_count = reference_count + 1 where digest = ?";
+
+	private static final String UPDATE_CONTENT_BLOB_RELEASE = "update content_blob set reference_count = reference_count - 1 where digest = ?";
 
 	private static final String SELECT_IDENTITY = "call identity()";
 
+	/**
+	 * The fewest candidates loaded at a time by {@link #listElements}, so that a small
+	 * page over a directory with mostly unreadable elements still needs few round trips.
+	 */
+	private static final int MINIMUM_LISTING_BATCH_SIZE = 50;
+
+	/**
+	 * The most directories whose children {@link #walk} loads with a single query.
+	 */
+	private static final int WALK_BATCH_SIZE = 100;
+
+	/**
+	 * The most children {@link #walk} loads with a single query, so that a batch of large
+	 * directories is read a page at a time.
+	 */
+	private static final int WALK_PAGE_SIZE = 500;
+
+	/**
+	 * The most bytes of a body that are read into the {@link DocumentIndex}.
+	 */
+	private static final int MAXIMUM_INDEXED_BODY_LENGTH = 1024 * 1024;
+
+	private static final char DIRECTORY_CURSOR = 'D';
+
+	private static final char FILE_CURSOR = 'F';
+
+	private ContentStore contentStore;
+
+	private DocumentIndex documentIndex;
+
 	private Long obtainPrimaryKey() {
 		Assert.isTrue(TransactionSynchronizationManager.isSynchronizationActive(), "Transaction must be running");
 		return getJdbcTemplate().queryForObject(SELECT_IDENTITY, Long.class);
@@ -61,68 +183,992 @@ public class DocumentDaoImpl extends JdbcDaoSupport implements DocumentDao {
 			Long parentId = (directory.getParent() == null) ? null : directory.getParent().getId();
 			getJdbcTemplate().update(INSERT_INTO_DIRECTORY, new Object[] { directory.getName(), parentId });
 			FieldUtils.setProtectedFieldValue("id", directory, obtainPrimaryKey());
+			insertClosure(Collections.singletonList(directory));
+			insertAggregates(Collections.singletonList(directory));
+			propagate(parentId, 0, 0);
+			index(directory, null);
 		}
 		else if (element instanceof File) {
 			File file = (File) element;
 			Long parentId = (file.getParent() == null) ? null : file.getParent().getId();
 			getJdbcTemplate().update(INSERT_INTO_FILE, new Object[] { file.getName(), file.getContent(), parentId });
 			FieldUtils.setProtectedFieldValue("id", file, obtainPrimaryKey());
+			propagate(parentId, 1, 0);
+			index(file, file.getContent());
 		}
 		else {
 			throw new IllegalArgumentException("Unsupported AbstractElement");
 		}
 	}
 
+	public List<AbstractElement> importTree(Directory parent, List<ImportNode> nodes) {
+		Assert.notNull(parent, "Parent required");
+		Assert.notNull(parent.getId(), "The parent must have been saved in order to import into it");
+		Assert.notNull(nodes, "Nodes required");
+		List<AbstractElement> created = new ArrayList<>();
+		List<Directory> parents = new ArrayList<>();
+		List<List<ImportNode>> levels = new ArrayList<>();
+		parents.add(parent);
+		levels.add(nodes);
+		while (!parents.isEmpty()) {
+			List<Directory> directories = new ArrayList<>();
+			List<ImportNode> directoryNodes = new ArrayList<>();
+			List<File> files = new ArrayList<>();
+			for (int i = 0; i < parents.size(); i++) {
+				for (ImportNode node : levels.get(i)) {
+					if (node.isDirectory()) {
+						directories.add(new Directory(node.getName(), parents.get(i)));
+						directoryNodes.add(node);
+					}
+					else {
+						File file = new File(node.getName(), parents.get(i));
+						file.setContent(node.getContent());
+						files.add(file);
+					}
+				}
+			}
+			insertDirectories(directories);
+			insertFiles(files);
+			propagate(directories, files);
+			for (Directory directory : directories) {
+				index(directory, null);
+			}
+			for (File file : files) {
+				index(file, file.getContent());
+			}
+			created.addAll(directories);
+			created.addAll(files);
+
+			// Descend into the directories just created
+			parents = new ArrayList<>();
+			levels = new ArrayList<>();
+			for (int i = 0; i < directories.size(); i++) {
+				if (!directoryNodes.get(i).getChildren().isEmpty()) {
+					parents.add(directories.get(i));
+					levels.add(directoryNodes.get(i).getChildren());
+				}
+			}
+		}
+		return created;
+	}
+
+	private void insertDirectories(List<Directory> directories) {
+		List<Object[]> rows = new ArrayList<>(directories.size());
+		for (Directory directory : directories) {
+			rows.add(new Object[] { directory.getName(), directory.getParent().getId() });
+		}
+		List<Long> ids = insertBatch(INSERT_INTO_DIRECTORY, rows);
+		for (int i = 0; i < directories.size(); i++) {
+			FieldUtils.setProtectedFieldValue("id", directories.get(i), ids.get(i));
+		}
+		// Parents are inserted a level earlier, so their closure rows already exist
+		insertClosure(directories);
+		insertAggregates(directories);
+	}
+
+	private void insertFiles(List<File> files) {
+		List<Object[]> rows = new ArrayList<>(files.size());
+		for (File file : files) {
+			rows.add(new Object[] { file.getName(), file.getContent(), file.getParent().getId() });
+		}
+		List<Long> ids = insertBatch(INSERT_INTO_FILE, rows);
+		for (int i = 0; i < files.size(); i++) {
+			FieldUtils.setProtectedFieldValue("id", files.get(i), ids.get(i));
+		}
+	}
+
+	/**
+	 * Executes an insert statement once per row as a single JDBC batch.
+	 * @param sql the insert statement
+	 * @param rows the parameters for each execution
+	 * @return the generated primary key of each row, in the order of <code>rows</code>
+	 */
+	protected List<Long> insertBatch(final String sql, final List<Object[]> rows) {
+		Assert.isTrue(TransactionSynchronizationManager.isSynchronizationActive(), "Transaction must be running");
+		if (rows.isEmpty()) {
+			return new ArrayList<>();
+		}
+		return getJdbcTemplate().execute((ConnectionCallback<List<Long>>) (connection) -> {
+			try (PreparedStatement ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+				for (Object[] row : rows) {
+					for (int i = 0; i < row.length; i++) {
+						ps.setObject(i + 1, row[i]);
+					}
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				List<Long> ids = new ArrayList<>(rows.size());
+				try (ResultSet keys = ps.getGeneratedKeys()) {
+					while (keys.next()) {
+						ids.add(keys.getLong(1));
+					}
+				}
+				Assert.state(ids.size() == rows.size(), "Expected a generated key for every inserted row");
+				return ids;
+			}
+		});
+	}
+
 	public void delete(File file) {
 		Assert.notNull(file, "File required");
 		Assert.notNull(file.getId(), "File ID required");
-		getJdbcTemplate().update(DELETE_FROM_FILE, new Object[] { file.getId() });
+		// Only removes the row as it was read, so its body is released exactly once
+		StoredFile stored;
+		do {
+			stored = findStoredFile(file);
+			if (stored == null) {
+				// Already deleted, so there is nothing left to release
+				return;
+			}
+		}
+		while (getJdbcTemplate().update(DELETE_FROM_FILE, new Object[] { file.getId(), stored.version }) == 0);
+		propagate(stored.parentId, -1, -stored.length);
+		// The body itself stays in the ContentStore until garbage collected
+		releaseContent(stored.digest);
+		if (this.documentIndex != null) {
+			this.documentIndex.remove(indexKey(file));
+			reindexOnRollback(indexKey(file));
+		}
 	}
 
-	private Directory getDirectoryWithImmediateParentPopulated(final Long id) {
-		return getJdbcTemplate().queryForObject(SELECT_FROM_DIRECTORY_SINGLE, new Object[] { id }, (rs, rowNumber) -> {
-			Long parentDirectoryId = rs.getLong("parent_directory_id");
-			Directory parentDirectory = Directory.ROOT_DIRECTORY;
-			if (parentDirectoryId != null && !parentDirectoryId.equals(-1L)) {
-				// Need to go and lookup the parent, so do that first
-				parentDirectory = getDirectoryWithImmediateParentPopulated(parentDirectoryId);
-			}
-			Directory directory = new Directory(rs.getString("directory_name"), parentDirectory);
-			FieldUtils.setProtectedFieldValue("id", directory, rs.getLong("id"));
-			return directory;
+	/**
+	 * Loads a directory along with all of its ancestors, using a single query over the
+	 * closure table rather than one query per level.
+	 */
+	private Directory getDirectoryWithAncestorsPopulated(final Long id) {
+		List<Object[]> path = getJdbcTemplate().query(SELECT_ANCESTORS, new Object[] { id },
+				(rs, rowNumber) -> new Object[] { rs.getLong("id"), rs.getString("directory_name") });
+		if (path.isEmpty()) {
+			throw new EmptyResultDataAccessException("No directory with ID " + id, 1);
+		}
+		Directory directory = Directory.ROOT_DIRECTORY;
+		for (Object[] ancestor : path) {
+			directory = new Directory((String) ancestor[1], directory);
+			FieldUtils.setProtectedFieldValue("id", directory, ancestor[0]);
+		}
+		return directory;
+	}
+
+	public Directory move(Directory directory, Directory newParent) {
+		Assert.notNull(directory, "Directory required");
+		Assert.notNull(directory.getId(), "Directory ID required");
+		Assert.isTrue(directory != Directory.ROOT_DIRECTORY, "The root directory cannot be moved");
+		Assert.notNull(newParent, "New parent required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(newParent.getId(), "The new parent must have been saved in order to move into it");
+		Integer cycles = getJdbcTemplate().queryForObject(SELECT_CLOSURE_COUNT,
+				new Object[] { directory.getId(), newParent.getId() }, Integer.class);
+		Assert.isTrue(cycles == 0, "A directory cannot be moved into itself or one of its descendants");
+		DirectoryStatistics moving = getStatistics(directory);
+		Long oldParentId = getJdbcTemplate().queryForObject(SELECT_DIRECTORY_PARENT,
+				new Object[] { directory.getId() }, Long.class);
+		propagate(oldParentId, -moving.getFileCount(), -moving.getTotalBytes());
+		// Detach the subtree from its old ancestors, then attach it below every new one
+		getJdbcTemplate().update(DELETE_CLOSURE_SUBTREE_ANCESTORS,
+				new Object[] { directory.getId(), directory.getId() });
+		getJdbcTemplate().update(INSERT_CLOSURE_SUBTREE_ANCESTORS,
+				new Object[] { newParent.getId(), directory.getId() });
+		propagate(newParent.getId(), moving.getFileCount(), moving.getTotalBytes());
+		getJdbcTemplate().update(UPDATE_DIRECTORY_PARENT, new Object[] { newParent.getId(), directory.getId() });
+		Directory moved = new Directory(directory.getName(), newParent);
+		FieldUtils.setProtectedFieldValue("id", moved, directory.getId());
+		return moved;
+	}
+
+	public List<Directory> findDescendantDirectories(Directory directory) {
+		Assert.notNull(directory, "Directory required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(directory.getId(), "The directory must have been saved in order to search it");
+		// Ordered by depth, so every parent is mapped before its children
+		Map<Long, Directory> directoriesById = new HashMap<>();
+		directoriesById.put(directory.getId(), directory);
+		return getJdbcTemplate().query(SELECT_DESCENDANTS, new Object[] { directory.getId() }, (rs, rowNumber) -> {
+			Directory descendant = new Directory(rs.getString("directory_name"),
+					directoriesById.get(rs.getLong("parent_directory_id")));
+			FieldUtils.setProtectedFieldValue("id", descendant, rs.getLong("id"));
+			directoriesById.put(descendant.getId(), descendant);
+			return descendant;
 		});
 	}
 
+	public DirectoryStatistics getStatistics(Directory directory) {
+		Assert.notNull(directory, "Directory required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(directory.getId(), "Directory ID required");
+		return getJdbcTemplate().queryForObject(SELECT_DIRECTORY_AGGREGATE, new Object[] { directory.getId() },
+				(rs, rowNumber) -> new DirectoryStatistics(rs.getLong("file_count"), rs.getLong("total_bytes"),
+						rs.getTimestamp("last_modified").toInstant()));
+	}
+
+	private void insertAggregates(List<Directory> directories) {
+		Timestamp now = Timestamp.from(Instant.now());
+		List<Object[]> rows = new ArrayList<>(directories.size());
+		for (Directory directory : directories) {
+			rows.add(new Object[] { directory.getId(), now });
+		}
+		if (!rows.isEmpty()) {
+			getJdbcTemplate().batchUpdate(INSERT_INTO_DIRECTORY_AGGREGATE, rows);
+		}
+	}
+
+	/**
+	 * Applies a change in file count and bytes to a directory and all of its ancestors,
+	 * marking them as modified, in a single statement.
+	 * @param directoryId the directory whose contents changed (may be null, in which case
+	 * there is nothing to update)
+	 */
+	private void propagate(Long directoryId, long files, long bytes) {
+		if (directoryId != null) {
+			getJdbcTemplate().update(UPDATE_DIRECTORY_AGGREGATE_ANCESTORS,
+					new Object[] { files, bytes, Timestamp.from(Instant.now()), directoryId });
+		}
+	}
+
+	/**
+	 * Applies the files added by one level of an import, as a single batch with one
+	 * statement per parent directory.
+	 */
+	private void propagate(List<Directory> directories, List<File> files) {
+		Map<Long, Long> added = new LinkedHashMap<>();
+		for (Directory directory : directories) {
+			added.putIfAbsent(directory.getParent().getId(), 0L);
+		}
+		for (File file : files) {
+			added.merge(file.getParent().getId(), 1L, Long::sum);
+		}
+		Timestamp now = Timestamp.from(Instant.now());
+		List<Object[]> rows = new ArrayList<>(added.size());
+		for (Map.Entry<Long, Long> entry : added.entrySet()) {
+			rows.add(new Object[] { entry.getValue(), 0L, now, entry.getKey() });
+		}
+		if (!rows.isEmpty()) {
+			getJdbcTemplate().batchUpdate(UPDATE_DIRECTORY_AGGREGATE_ANCESTORS, rows);
+		}
+	}
+
+	private void insertClosure(List<Directory> directories) {
+		List<Object[]> selves = new ArrayList<>(directories.size());
+		List<Object[]> ancestors = new ArrayList<>(directories.size());
+		for (Directory directory : directories) {
+			selves.add(new Object[] { directory.getId(), directory.getId() });
+			if (directory.getParent() != null) {
+				ancestors.add(new Object[] { directory.getId(), directory.getParent().getId() });
+			}
+		}
+		if (!selves.isEmpty()) {
+			getJdbcTemplate().batchUpdate(INSERT_CLOSURE_SELF, selves);
+		}
+		if (!ancestors.isEmpty()) {
+			getJdbcTemplate().batchUpdate(INSERT_CLOSURE_ANCESTORS, ancestors);
+		}
+	}
+
 	public AbstractElement[] findElements(Directory directory) {
 		Assert.notNull(directory, "Directory required (the ID can be null to refer to root)");
 		if (directory.getId() == null) {
 			List<Directory> directories = getJdbcTemplate().query(SELECT_FROM_DIRECTORY_NULL,
-					(rs, rowNumber) -> getDirectoryWithImmediateParentPopulated(rs.getLong("id")));
+					(rs, rowNumber) -> getDirectoryWithAncestorsPopulated(rs.getLong("id")));
 			return directories.toArray(new AbstractElement[] {});
 		}
 		List<AbstractElement> directories = getJdbcTemplate().query(SELECT_FROM_DIRECTORY,
 				new Object[] { directory.getId() },
-				(rs, rowNumber) -> getDirectoryWithImmediateParentPopulated(rs.getLong("id")));
+				(rs, rowNumber) -> getDirectoryWithAncestorsPopulated(rs.getLong("id")));
 		List<File> files = getJdbcTemplate().query(SELECT_FROM_FILE, new Object[] { directory.getId() },
 				(rs, rowNumber) -> {
 					Long parentDirectoryId = rs.getLong("parent_directory_id");
 					Directory parentDirectory = null;
 					if (parentDirectoryId != null) {
-						parentDirectory = getDirectoryWithImmediateParentPopulated(parentDirectoryId);
+						parentDirectory = getDirectoryWithAncestorsPopulated(parentDirectoryId);
 					}
-					File file = new File(rs.getString("file_name"), parentDirectory);
-					FieldUtils.setProtectedFieldValue("id", file, rs.getLong("id"));
-					return file;
+					return mapFile(rs, parentDirectory);
 				});
 		// Add the File elements after the Directory elements
 		directories.addAll(files);
 		return directories.toArray(new AbstractElement[] {});
 	}
 
+	public ElementPage listElements(Directory directory, String cursor, int limit) {
+		Assert.notNull(directory, "Directory required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(directory.getId(), "The directory must have been saved in order to list it");
+		Assert.isTrue(limit > 0, "Limit must be positive");
+		// Keyset position: directories are listed by ascending ID, then files likewise
+		boolean files = false;
+		long afterId = Long.MIN_VALUE;
+		if (cursor != null) {
+			Assert.isTrue(cursor.length() > 1
+					&& (cursor.charAt(0) == DIRECTORY_CURSOR || cursor.charAt(0) == FILE_CURSOR), "Invalid cursor");
+			files = cursor.charAt(0) == FILE_CURSOR;
+			try {
+				afterId = Long.parseLong(cursor.substring(1));
+			}
+			catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid cursor", ex);
+			}
+		}
+		UnaryOperator<List<AbstractElement>> filter = readableFilter();
+		int batchSize = Math.max(limit, MINIMUM_LISTING_BATCH_SIZE);
+		List<AbstractElement> page = new ArrayList<>(limit);
+		while (true) {
+			List<AbstractElement> candidates = files ? findFilePage(directory, afterId, batchSize)
+					: findDirectoryPage(directory, afterId, batchSize);
+			for (AbstractElement element : filter.apply(candidates)) {
+				page.add(element);
+				if (page.size() == limit) {
+					// Resume after the last element returned, not the last one checked
+					return new ElementPage(page, (files ? FILE_CURSOR : DIRECTORY_CURSOR) + element.getId().toString());
+				}
+			}
+			if (candidates.size() == batchSize) {
+				afterId = candidates.get(candidates.size() - 1).getId();
+			}
+			else if (!files) {
+				files = true;
+				afterId = Long.MIN_VALUE;
+			}
+			else {
+				return new ElementPage(page, null);
+			}
+		}
+	}
+
+	private List<AbstractElement> findDirectoryPage(Directory parent, long afterId, int limit) {
+		return getJdbcTemplate().query(SELECT_DIRECTORY_PAGE, new Object[] { parent.getId(), afterId, limit },
+				(rs, rowNumber) -> {
+					Directory directory = new Directory(rs.getString("directory_name"), parent);
+					FieldUtils.setProtectedFieldValue("id", directory, rs.getLong("id"));
+					return directory;
+				});
+	}
+
+	private List<AbstractElement> findFilePage(Directory parent, long afterId, int limit) {
+		return getJdbcTemplate().query(SELECT_FILE_PAGE, new Object[] { parent.getId(), afterId, limit },
+				(rs, rowNumber) -> mapFile(rs, parent));
+	}
+
+	private File mapFile(ResultSet rs, Directory parent) throws SQLException {
+		File file = new File(rs.getString("file_name"), parent);
+		FieldUtils.setProtectedFieldValue("id", file, rs.getLong("id"));
+		FieldUtils.setProtectedFieldValue("contentDigest", file, rs.getString("content_digest"));
+		FieldUtils.setProtectedFieldValue("contentLength", file, rs.getLong("content_length"));
+		FieldUtils.setProtectedFieldValue("version", file, rs.getLong("version"));
+		return file;
+	}
+
+	public Stream<AbstractElement> walk(Directory directory) {
+		Assert.notNull(directory, "Directory required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(directory.getId(), "The directory must have been saved in order to walk it");
+		Deque<Directory> frontier = new ArrayDeque<>();
+		frontier.add(directory);
+		return StreamSupport.stream(new TreeSpliterator(frontier, readableFilter()), false);
+	}
+
+	/**
+	 * Loads a page of the children of a batch of directories, in ascending ID order.
+	 * @param parentsById the directories whose children are loaded
+	 * @param files whether to load files rather than directories
+	 * @param afterId the ID after which the page starts
+	 * @param limit the maximum number of children to load
+	 */
+	private List<AbstractElement> findChildren(Map<Long, Directory> parentsById, boolean files, long afterId,
+			int limit) {
+		List<Object> args = new ArrayList<>(parentsById.keySet());
+		String placeholders = String.join(",", Collections.nCopies(args.size(), "?"));
+		args.add(afterId);
+		args.add(limit);
+		if (files) {
+			return getJdbcTemplate().query(String.format(SELECT_FILE_CHILDREN, placeholders), args.toArray(),
+					(rs, rowNumber) -> mapFile(rs, parentsById.get(rs.getLong("parent_directory_id"))));
+		}
+		return getJdbcTemplate().query(String.format(SELECT_DIRECTORY_CHILDREN, placeholders), args.toArray(),
+				(rs, rowNumber) -> {
+					Directory directory = new Directory(rs.getString("directory_name"),
+							parentsById.get(rs.getLong("parent_directory_id")));
+					FieldUtils.setProtectedFieldValue("id", directory, rs.getLong("id"));
+					return directory;
+				});
+	}
+
+	public List<AbstractElement> search(String query, int limit) {
+		Assert.hasText(query, "Query required");
+		Assert.isTrue(limit > 0, "Limit must be positive");
+		long[] ranked = getDocumentIndex().search(query);
+		UnaryOperator<List<AbstractElement>> filter = readableFilter();
+		int batchSize = Math.max(limit, MINIMUM_LISTING_BATCH_SIZE);
+		List<AbstractElement> results = new ArrayList<>(Math.min(limit, ranked.length));
+		for (int from = 0; from < ranked.length; from += batchSize) {
+			long[] keys = Arrays.copyOfRange(ranked, from, Math.min(from + batchSize, ranked.length));
+			for (AbstractElement element : filter.apply(findIndexed(keys))) {
+				results.add(element);
+				if (results.size() == limit) {
+					return results;
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Loads the elements behind a batch of index keys, in the same order. Elements that
+	 * no longer exist, e.g. because another transaction deleted them, are skipped.
+	 */
+	private List<AbstractElement> findIndexed(long[] keys) {
+		Map<Long, Directory> parentsById = new HashMap<>();
+		Map<Long, AbstractElement> elementsByKey = new HashMap<>();
+		List<Object> fileIds = new ArrayList<>();
+		for (long key : keys) {
+			if (isFileKey(key)) {
+				fileIds.add(idOf(key));
+			}
+			else {
+				try {
+					Directory directory = getDirectoryWithAncestorsPopulated(idOf(key));
+					parentsById.put(directory.getId(), directory);
+					elementsByKey.put(key, directory);
+				}
+				catch (EmptyResultDataAccessException ex) {
+					// Deleted since it was indexed
+				}
+			}
+		}
+		if (!fileIds.isEmpty()) {
+			String placeholders = String.join(",", Collections.nCopies(fileIds.size(), "?"));
+			getJdbcTemplate().query(String.format(SELECT_FILES_BY_ID, placeholders), fileIds.toArray(), (rs) -> {
+				Directory parent = parentsById.computeIfAbsent(rs.getLong("parent_directory_id"),
+						this::getDirectoryWithAncestorsPopulated);
+				File file = mapFile(rs, parent);
+				elementsByKey.put(indexKey(file), file);
+			});
+		}
+		List<AbstractElement> elements = new ArrayList<>(elementsByKey.size());
+		for (long key : keys) {
+			AbstractElement element = elementsByKey.get(key);
+			if (element != null) {
+				elements.add(element);
+			}
+		}
+		return elements;
+	}
+
+	/**
+	 * Identifies an element in the {@link DocumentIndex}. Directories and files have
+	 * separate ID sequences, so the lowest bit tells them apart.
+	 */
+	private static long indexKey(AbstractElement element) {
+		return (element.getId() << 1) | ((element instanceof File) ? 1 : 0);
+	}
+
+	private static boolean isFileKey(long key) {
+		return (key & 1) == 1;
+	}
+
+	private static long idOf(long key) {
+		return key >> 1;
+	}
+
+	private void index(AbstractElement element, String text) {
+		if (this.documentIndex != null) {
+			this.documentIndex.put(indexKey(element), element.getName(), text);
+			reindexOnRollback(indexKey(element));
+		}
+	}
+
+	/**
+	 * Brings the index entry of an element in line with the database, as seen by the
+	 * current transaction.
+	 * @param body whether the body of a file is indexed again too, rather than kept as
+	 * indexed by the last {@link #writeContent}
+	 */
+	private void reindex(long key, boolean body) {
+		if (!isFileKey(key)) {
+			List<String> names = getJdbcTemplate().queryForList(SELECT_DIRECTORY_NAME, String.class, idOf(key));
+			if (names.isEmpty()) {
+				this.documentIndex.remove(key);
+			}
+			else {
+				this.documentIndex.put(key, names.get(0), null);
+			}
+			return;
+		}
+		List<Object[]> files = getJdbcTemplate().query(SELECT_FILE_INDEXABLE, new Object[] { idOf(key) },
+				(rs, rowNumber) -> new Object[] { rs.getString("file_name"), rs.getString("content"),
+						rs.getString("content_digest"), rs.getLong("content_length") });
+		if (files.isEmpty()) {
+			this.documentIndex.remove(key);
+			return;
+		}
+		Object[] file = files.get(0);
+		this.documentIndex.put(key, (String) file[0], (String) file[1]);
+		if (body) {
+			this.documentIndex.putBody(key, readIndexableBody((String) file[2], (Long) file[3]));
+		}
+	}
+
+	/**
+	 * Reads the start of a body as UTF-8 text.
+	 * @return the text, or null if there is no body or it does not look like text
+	 */
+	private String readIndexableBody(String digest, long length) {
+		if (digest == null) {
+			return null;
+		}
+		byte[] bytes = new byte[(int) Math.min(length, MAXIMUM_INDEXED_BODY_LENGTH)];
+		int length = 0;
+		try (InputStream body = getContentStore().openStream(digest)) {
+			int read;
+			while (length < bytes.length && (read = body.read(bytes, length, bytes.length - length)) != -1) {
+				length += read;
+			}
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not read content " + digest + " for indexing", ex);
+		}
+		for (int i = 0; i < length; i++) {
+			if (bytes[i] == 0) {
+				return null;
+			}
+		}
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Index changes are visible immediately, so that searches within the transaction see
+	 * them. Should the transaction roll back, the touched entries are rebuilt from the
+	 * database instead.
+	 */
+	private void reindexOnRollback(long key) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return;
+		}
+		for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+			if (synchronization instanceof IndexRollback && ((IndexRollback) synchronization).owner() == this) {
+				((IndexRollback) synchronization).keys.add(key);
+				return;
+			}
+		}
+		IndexRollback rollback = new IndexRollback();
+		rollback.keys.add(key);
+		TransactionSynchronizationManager.registerSynchronization(rollback);
+	}
+
+	/**
+	 * Returns the filter that {@link #listElements} and {@link #walk} apply to each batch
+	 * of candidates. It is obtained once per call on the calling thread, and may then be
+	 * applied from any thread. This implementation keeps every candidate; subclasses may
+	 * remove those the caller is not allowed to see.
+	 * @return a function from candidates to the visible elements, both in listing order
+	 */
+	protected UnaryOperator<List<AbstractElement>> readableFilter() {
+		return UnaryOperator.identity();
+	}
+
 	public void update(File file) {
+		Assert.notNull(file, "File required");
+		update(file, file.getETag());
+	}
+
+	public void update(File file, String ifMatch) {
 		Assert.notNull(file, "File required");
 		Assert.notNull(file.getId(), "File ID required");
-		getJdbcTemplate().update(UPDATE_FILE, new Object[] { file.getContent(), file.getId() });
+		Assert.hasText(ifMatch, "If-Match required");
+		if ("*".equals(ifMatch.trim())) {
+			if (getJdbcTemplate().update(UPDATE_FILE_ANY_VERSION,
+					new Object[] { file.getContent(), file.getId() }) == 0) {
+				throw new EmptyResultDataAccessException("File " + file.getId() + " no longer exists", 1);
+			}
+			// The row stays locked until the transaction ends, so this is the version just written
+			FieldUtils.setProtectedFieldValue("version", file, getVersion(file));
+		}
+		else {
+			long expectedVersion = parseETag(ifMatch);
+			if (getJdbcTemplate().update(UPDATE_FILE,
+					new Object[] { file.getContent(), file.getId(), expectedVersion }) == 0) {
+				throw new FileVersionConflictException(file, expectedVersion, getVersion(file));
+			}
+			FieldUtils.setProtectedFieldValue("version", file, expectedVersion + 1);
+		}
+		// The byte count only covers stored bodies, so only the modification time changes
+		Long parentId = getJdbcTemplate().queryForObject(SELECT_FILE_PARENT, new Object[] { file.getId() },
+				Long.class);
+		propagate(parentId, 0, 0);
+		if (this.documentIndex != null) {
+			// Only the name and text can have changed, so the body is not read again
+			reindex(indexKey(file), false);
+			reindexOnRollback(indexKey(file));
+		}
+	}
+
+	private long getVersion(File file) {
+		List<Long> versions = getJdbcTemplate().queryForList(SELECT_FILE_VERSION, Long.class, file.getId());
+		if (versions.isEmpty()) {
+			throw new EmptyResultDataAccessException("File " + file.getId() + " no longer exists", 1);
+		}
+		return versions.get(0);
+	}
+
+	private static void checkVersion(File file, long expectedVersion, long currentVersion) {
+		if (currentVersion != expectedVersion) {
+			throw new FileVersionConflictException(file, expectedVersion, currentVersion);
+		}
+	}
+
+	private static long parseETag(String eTag) {
+		String value = eTag.trim();
+		Assert.isTrue(value.length() > 2 && value.startsWith("\"") && value.endsWith("\""),
+				() -> "If-Match must be a single strong entity tag, not " + eTag);
+		try {
+			return Long.parseLong(value.substring(1, value.length() - 1));
+		}
+		catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Unknown entity tag " + eTag, ex);
+		}
+	}
+
+	public long writeContent(File file, InputStream content) {
+		return writeContent(file, content, (Long) null);
+	}
+
+	public long writeContent(File file, InputStream content, String ifMatch) {
+		Assert.hasText(ifMatch, "If-Match required");
+		return writeContent(file, content, "*".equals(ifMatch.trim()) ? null : parseETag(ifMatch));
+	}
+
+	/**
+	 * Replaces the body of a file.
+	 * @param expectedVersion the version the file must be at, or null for any version
+	 */
+	private long writeContent(File file, InputStream content, Long expectedVersion) {
+		Assert.notNull(file, "File required");
+		Assert.notNull(file.getId(), "File ID required");
+		Assert.notNull(content, "Content required");
+		if (expectedVersion != null) {
+			// Checked before the body is stored too, so that a stale writer fails fast
+			checkVersion(file, expectedVersion, getVersion(file));
+		}
+		StoredContent stored;
+		try {
+			stored = getContentStore().write(Channels.newChannel(content));
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not write content of " + file, ex);
+		}
+		// Retried if a concurrent writer got there first, as its body is then the one to release
+		StoredFile previous;
+		do {
+			previous = findStoredFile(file);
+			if (previous == null) {
+				throw new EmptyResultDataAccessException("File " + file.getId() + " no longer exists", 1);
+			}
+			if (expectedVersion != null) {
+				checkVersion(file, expectedVersion, previous.version);
+			}
+		}
+		while (getJdbcTemplate().update(UPDATE_FILE_CONTENT_DIGEST,
+				new Object[] { stored.getDigest(), stored.getLength(), file.getId(), previous.version }) == 0);
+		retainContent(stored);
+		propagate(previous.parentId, 0, stored.getLength() - previous.length);
+		releaseContent(previous.digest);
+		FieldUtils.setProtectedFieldValue("contentDigest", file, stored.getDigest());
+		FieldUtils.setProtectedFieldValue("contentLength", file, stored.getLength());
+		FieldUtils.setProtectedFieldValue("version", file, previous.version + 1);
+		if (this.documentIndex != null) {
+			this.documentIndex.putBody(indexKey(file), readIndexableBody(stored.getDigest(), stored.getLength()));
+			reindexOnRollback(indexKey(file));
+		}
+		return stored.getLength();
+	}
+
+	public InputStream openContent(File file) {
+		Assert.notNull(file, "File required");
+		Assert.notNull(file.getId(), "File ID required");
+		String digest = getContentDigest(file);
+		if (digest == null) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		try {
+			return getContentStore().openStream(digest);
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not open content of " + file, ex);
+		}
+	}
+
+	public long readContent(File file, long position, long count, WritableByteChannel target) {
+		Assert.notNull(file, "File required");
+		Assert.notNull(file.getId(), "File ID required");
+		String digest = getContentDigest(file);
+		if (digest == null) {
+			return 0;
+		}
+		try {
+			return getContentStore().transferTo(digest, position, count, target);
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not read content of " + file, ex);
+		}
+	}
+
+	public long exportZip(Directory directory, OutputStream target) {
+		Assert.notNull(directory, "Directory required (use Directory.ROOT_DIRECTORY for root)");
+		Assert.notNull(target, "Target required");
+		long files = 0;
+		try {
+			// Not closed, as that would close the target; finish() writes the directory
+			ZipOutputStream zip = new ZipOutputStream(StreamUtils.nonClosing(target));
+			try (Stream<AbstractElement> elements = walk(directory)) {
+				for (AbstractElement element : (Iterable<AbstractElement>) elements::iterator) {
+					String path = relativePath(directory, element);
+					if (element instanceof Directory) {
+						putNextEntry(zip, path + "/", element);
+					}
+					else {
+						putNextEntry(zip, path, element);
+						copyBody((File) element, zip);
+						files++;
+					}
+					zip.closeEntry();
+				}
+			}
+			zip.finish();
+			zip.flush();
+		}
+		catch (IOException ex) {
+			throw new DataAccessResourceFailureException("Could not export " + directory, ex);
+		}
+		return files;
+	}
+
+	private String relativePath(Directory root, AbstractElement element) {
+		StringBuilder path = new StringBuilder(element.getName());
+		for (Directory parent = element.getParent(); parent != null
+				&& !parent.getId().equals(root.getId()); parent = parent.getParent()) {
+			path.insert(0, '/').insert(0, parent.getName());
+		}
+		return path.toString();
+	}
+
+	/**
+	 * Starts an entry, renaming it if the directory already holds an element of the same
+	 * name. The ZIP format does not allow duplicate names, but directories here do.
+	 */
+	private void putNextEntry(ZipOutputStream zip, String name, AbstractElement element) throws IOException {
+		try {
+			zip.putNextEntry(new ZipEntry(name));
+		}
+		catch (ZipException ex) {
+			// Thrown before anything is written, so the entry can be retried
+			boolean directory = name.endsWith("/");
+			String base = directory ? name.substring(0, name.length() - 1) : name;
+			zip.putNextEntry(new ZipEntry(base + "~" + element.getId() + (directory ? "/" : "")));
+		}
+	}
+
+	private void copyBody(File file, ZipOutputStream zip) throws IOException {
+		// The digest was just loaded by walk, after the caller was authorized
+		if (file.getContentDigest() != null) {
+			try (InputStream body = getContentStore().openStream(file.getContentDigest())) {
+				StreamUtils.copy(body, zip);
+			}
+		}
+	}
+
+	/**
+	 * Looks up the body a file refers to. The digest is always read from the database
+	 * rather than from the presented {@link File}, so that callers can only reach bodies
+	 * of files they were authorized to read.
+	 */
+	private String getContentDigest(File file) {
+		return getJdbcTemplate().queryForObject(SELECT_FILE_CONTENT_DIGEST, new Object[] { file.getId() },
+				String.class);
+	}
+
+	/**
+	 * Looks up the body a file refers to, along with the version it was read at.
+	 * @return the stored file, or null if it no longer exists
+	 */
+	private StoredFile findStoredFile(File file) {
+		List<StoredFile> stored = getJdbcTemplate().query(SELECT_FILE_CONTENT, new Object[] { file.getId() },
+				(rs, rowNumber) -> new StoredFile(rs.getString("content_digest"), rs.getLong("content_length"),
+						rs.getLong("version"), rs.getObject("parent_directory_id", Long.class)));
+		return stored.isEmpty() ? null : stored.get(0);
+	}
+
+	private void retainContent(StoredContent stored) {
+		if (getJdbcTemplate().update(UPDATE_CONTENT_BLOB_RETAIN, new Object[] { stored.getDigest() }) > 0) {
+			return;
+		}
+		try {
+			getJdbcTemplate().update(INSERT_INTO_CONTENT_BLOB,
+					new Object[] { stored.getDigest(), stored.getLength() });
+		}
+		catch (DuplicateKeyException ex) {
+			// Another transaction uploaded the same body first
+			getJdbcTemplate().update(UPDATE_CONTENT_BLOB_RETAIN, new Object[] { stored.getDigest() });
+		}
+	}
+
+	private void releaseContent(String digest) {
+		if (digest != null) {
+			getJdbcTemplate().update(UPDATE_CONTENT_BLOB_RELEASE, new Object[] { digest });
+		}
+	}
+
+	protected ContentStore getContentStore() {
+		Assert.state(this.contentStore != null, "ContentStore required");
+		return this.contentStore;
+	}
+
+	public void setContentStore(ContentStore contentStore) {
+		this.contentStore = contentStore;
+	}
+
+	protected DocumentIndex getDocumentIndex() {
+		Assert.state(this.documentIndex != null, "DocumentIndex required");
+		return this.documentIndex;
+	}
+
+	/**
+	 * Sets the index used by {@link #search(String, int)}, which is then kept up to date
+	 * as elements change.
+	 * @param documentIndex the index (optional if searches are not needed)
+	 */
+	public void setDocumentIndex(DocumentIndex documentIndex) {
+		this.documentIndex = documentIndex;
+	}
+
+	/**
+	 * The body and location of a file as currently stored. Changes to the body are made
+	 * conditional on the version, so that concurrent writers never release the same body
+	 * twice.
+	 */
+	private static final class StoredFile {
+
+		private final String digest;
+
+		private final long length;
+
+		private final long version;
+
+		private final Long parentId;
+
+		StoredFile(String digest, long length, long version, Long parentId) {
+			this.digest = digest;
+			this.length = length;
+			this.version = version;
+			this.parentId = parentId;
+		}
+
+	}
+
+	/**
+	 * Rebuilds the index entries touched by a transaction that did not commit.
+	 */
+	private class IndexRollback implements TransactionSynchronization {
+
+		private final Set<Long> keys = new HashSet<>();
+
+		DocumentDaoImpl owner() {
+			return DocumentDaoImpl.this;
+		}
+
+		@Override
+		public void afterCompletion(int status) {
+			if (status != STATUS_COMMITTED) {
+				// The transaction is over, so this sees the committed state
+				for (Long key : this.keys) {
+					reindex(key, true);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Walks a subtree breadth first. The children of up to {@link #WALK_BATCH_SIZE}
+	 * pending directories are loaded together, {@link #WALK_PAGE_SIZE} at a time by
+	 * keyset like {@link #listElements}, and only directories that pass the filter are
+	 * descended into. Splitting hands half of the pending directories to the new
+	 * spliterator, so parallel streams divide the tree between workers.
+	 */
+	private class TreeSpliterator extends Spliterators.AbstractSpliterator<AbstractElement> {
+
+		private final Deque<Directory> frontier;
+
+		private final Deque<AbstractElement> buffer = new ArrayDeque<>();
+
+		private final UnaryOperator<List<AbstractElement>> filter;
+
+		/** The directories whose children are being paged through, if any. */
+		private Map<Long, Directory> batch;
+
+		private boolean files;
+
+		private long afterId;
+
+		TreeSpliterator(Deque<Directory> frontier, UnaryOperator<List<AbstractElement>> filter) {
+			super(Long.MAX_VALUE, Spliterator.NONNULL);
+			this.frontier = frontier;
+			this.filter = filter;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super AbstractElement> action) {
+			while (this.buffer.isEmpty()) {
+				if (this.batch == null && this.frontier.isEmpty()) {
+					return false;
+				}
+				expand();
+			}
+			action.accept(this.buffer.poll());
+			return true;
+		}
+
+		@Override
+		public Spliterator<AbstractElement> trySplit() {
+			if (this.batch == null && this.frontier.size() == 1) {
+				// Nothing to share yet, so descend a level first
+				expand();
+			}
+			int size = this.frontier.size();
+			if (size < 2) {
+				return null;
+			}
+			Deque<Directory> split = new ArrayDeque<>(size / 2);
+			for (int i = 0; i < size / 2; i++) {
+				split.addFirst(this.frontier.pollLast());
+			}
+			return new TreeSpliterator(split, this.filter);
+		}
+
+		/**
+		 * Loads the next page of children, starting on a new batch of pending directories
+		 * once the current batch is exhausted.
+		 */
+		private void expand() {
+			if (this.batch == null) {
+				this.batch = new HashMap<>();
+				while (!this.frontier.isEmpty() && this.batch.size() < WALK_BATCH_SIZE) {
+					Directory parent = this.frontier.poll();
+					this.batch.put(parent.getId(), parent);
+				}
+				this.files = false;
+				this.afterId = Long.MIN_VALUE;
+			}
+			List<AbstractElement> children = findChildren(this.batch, this.files, this.afterId, WALK_PAGE_SIZE);
+			if (children.size() == WALK_PAGE_SIZE) {
+				this.afterId = children.get(children.size() - 1).getId();
+			}
+			else if (!this.files) {
+				this.files = true;
+				this.afterId = Long.MIN_VALUE;
+			}
+			else {
+				this.batch = null;
+			}
+			for (AbstractElement child : this.filter.apply(children)) {
+				this.buffer.add(child);
+				if (child instanceof Directory) {
+					this.frontier.add((Directory) child);
+				}
+			}
+		}
+
 	}
 
 }
@@ -0,0 +1,648 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.util.Assert;
+
+/**
+ * In-process inverted index over the names and text of documents, each identified by a
+ * <code>long</code> key chosen by the caller.
+ * <p>
+ * The index consists of an immutable segment on local disk, which is memory-mapped
+ * rather than read into the heap, and a small in-memory delta holding every change since
+ * the segment was written. {@link #flush()} merges the two into a new segment, which
+ * replaces the old one atomically. Opening the index only maps the latest segment, so a
+ * restart does not rebuild anything.
+ * <p>
+ * Each document may also have a body, which is indexed separately so that the name and
+ * text can be replaced without reading the body again. A document matches a query if
+ * its name, text and body together contain every term.
+ * <p>
+ * Matches are ranked by TF-IDF, with name terms weighted above text and body terms. The
+ * index knows nothing about permissions; callers filter the ranked keys themselves.
+ */
+public class DocumentIndex implements InitializingBean, DisposableBean {
+
+	private static final int MAGIC = 0x444d5349;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 16;
+
+	private static final int DICTIONARY_ENTRY_SIZE = 16;
+
+	private static final int POSTING_SIZE = 12;
+
+	/**
+	 * How many times a term in a name counts, relative to the same term in the text.
+	 */
+	private static final int NAME_WEIGHT = 3;
+
+	/**
+	 * Longer terms are skipped, as they are rarely words worth searching for.
+	 */
+	private static final int MAXIMUM_TERM_LENGTH = 64;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+
+	private static final String SEGMENT_SUFFIX = ".idx";
+
+	private final Path directory;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private Segment segment = Segment.EMPTY;
+
+	private long generation;
+
+	/** Postings added since the segment was written, by term then key. */
+	private final Map<String, Map<Long, Integer>> delta = new HashMap<>();
+
+	/** Terms of each document in the delta, so that it can be replaced or removed. */
+	private final Map<Long, Set<String>> deltaTerms = new HashMap<>();
+
+	/** Keys in the segment whose postings no longer apply. */
+	private final Set<Long> superseded = new HashSet<>();
+
+	/**
+	 * Creates an index backed by a fresh temporary directory, which suits the in-memory
+	 * database used by this sample: both start empty on every restart, and are filled
+	 * again together as the sample data is populated. Nothing is reopened from disk, so
+	 * with a persistent database use {@link #DocumentIndex(Path)} instead, with a
+	 * directory that lives as long as the database.
+	 * @throws IOException if the temporary directory could not be created
+	 */
+	public DocumentIndex() throws IOException {
+		this(Files.createTempDirectory("dms-index"));
+	}
+
+	/**
+	 * Creates an index backed by the given directory. It must only be shared with a
+	 * database that outlives the process, or the keys will not match after a restart.
+	 * @param directory the directory to keep segments in (required, created if missing)
+	 * @throws IOException if the directory could not be created
+	 */
+	public DocumentIndex(Path directory) throws IOException {
+		Assert.notNull(directory, "Directory required");
+		this.directory = Files.createDirectories(directory);
+	}
+
+	/**
+	 * Maps the latest segment written to the directory, if any, and removes anything
+	 * left over from earlier segments.
+	 * @throws IOException if the segment could not be read
+	 */
+	public void afterPropertiesSet() throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (Stream<Path> paths = Files.list(this.directory)) {
+			for (Path path : (Iterable<Path>) paths::iterator) {
+				String name = path.getFileName().toString();
+				if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					segments.add(path);
+				}
+				else if (name.endsWith(".tmp")) {
+					deleteQuietly(path);
+				}
+			}
+		}
+		segments.sort(Comparator.comparingLong((path) -> parseGeneration(path.getFileName().toString())));
+		Path latest = null;
+		long latestGeneration = 0;
+		for (Path path : segments) {
+			if (latest != null) {
+				deleteQuietly(latest);
+			}
+			latest = path;
+			latestGeneration = parseGeneration(path.getFileName().toString());
+		}
+		if (latest != null) {
+			this.lock.writeLock().lock();
+			try {
+				this.segment = Segment.map(latest);
+				this.generation = latestGeneration;
+			}
+			finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+	}
+
+	public void destroy() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Adds a document, replacing the name and text of any previous document with the
+	 * same key. Its body, if any, is kept.
+	 * @param key the key of the document (cannot be negative)
+	 * @param name the name of the document (required)
+	 * @param text the text of the document (may be null)
+	 */
+	public void put(long key, String name, String text) {
+		Assert.isTrue(key >= 0, "Key cannot be negative");
+		Assert.notNull(name, "Name required");
+		Map<String, Integer> frequencies = new HashMap<>();
+		tokenize(name, NAME_WEIGHT, frequencies);
+		tokenize(text, 1, frequencies);
+		this.lock.writeLock().lock();
+		try {
+			replace(key, frequencies);
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the body of a document.
+	 * @param key the key of the document (cannot be negative)
+	 * @param body the text of the body (may be null, to remove it)
+	 */
+	public void putBody(long key, String body) {
+		Assert.isTrue(key >= 0, "Key cannot be negative");
+		Map<String, Integer> frequencies = new HashMap<>();
+		tokenize(body, 1, frequencies);
+		this.lock.writeLock().lock();
+		try {
+			if (frequencies.isEmpty()) {
+				discard(bodyKey(key));
+			}
+			else {
+				replace(bodyKey(key), frequencies);
+			}
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes a document along with its body, if present.
+	 * @param key the key of the document
+	 */
+	public void remove(long key) {
+		this.lock.writeLock().lock();
+		try {
+			discard(key);
+			discard(bodyKey(key));
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the postings of a document or body. Must be called with the write lock
+	 * held.
+	 */
+	private void replace(long entry, Map<String, Integer> frequencies) {
+		discard(entry);
+		for (Map.Entry<String, Integer> frequency : frequencies.entrySet()) {
+			this.delta.computeIfAbsent(frequency.getKey(), (term) -> new HashMap<>()).put(entry,
+					frequency.getValue());
+		}
+		this.deltaTerms.put(entry, frequencies.keySet());
+	}
+
+	private void discard(long entry) {
+		removeFromDelta(entry);
+		if (this.segment.containsKey(entry)) {
+			this.superseded.add(entry);
+		}
+	}
+
+	/**
+	 * Bodies are kept under the bitwise complement of their document's key, so they
+	 * sort before every document in a segment.
+	 */
+	private static long bodyKey(long key) {
+		return ~key;
+	}
+
+	private void removeFromDelta(long key) {
+		Set<String> terms = this.deltaTerms.remove(key);
+		if (terms != null) {
+			for (String term : terms) {
+				Map<Long, Integer> postings = this.delta.get(term);
+				postings.remove(key);
+				if (postings.isEmpty()) {
+					this.delta.remove(term);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the documents that contain every term of a query.
+	 * @param query the query, split into terms the same way as documents
+	 * @return the keys of every matching document, best match first (never null)
+	 */
+	public long[] search(String query) {
+		Assert.notNull(query, "Query required");
+		Map<String, Integer> terms = new LinkedHashMap<>();
+		tokenize(query, 1, terms);
+		if (terms.isEmpty()) {
+			return new long[0];
+		}
+		Map<Long, Double> scores = null;
+		this.lock.readLock().lock();
+		try {
+			int documents = Math.max(1, documentCount());
+			for (String term : terms.keySet()) {
+				Map<Long, Integer> postings = findPostings(term);
+				double idf = Math.log(1 + (double) documents / Math.max(1, postings.size()));
+				Map<Long, Double> matches = new HashMap<>();
+				for (Map.Entry<Long, Integer> posting : postings.entrySet()) {
+					Double score = (scores != null) ? scores.get(posting.getKey()) : Double.valueOf(0);
+					if (score != null) {
+						matches.put(posting.getKey(), score + (1 + Math.log(posting.getValue())) * idf);
+					}
+				}
+				scores = matches;
+				if (scores.isEmpty()) {
+					break;
+				}
+			}
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+		List<Map.Entry<Long, Double>> ranked = new ArrayList<>(scores.entrySet());
+		ranked.sort(Map.Entry.<Long, Double>comparingByValue(Comparator.reverseOrder())
+				.thenComparing(Map.Entry.comparingByKey()));
+		long[] keys = new long[ranked.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = ranked.get(i).getKey();
+		}
+		return keys;
+	}
+
+	/**
+	 * Merges the postings of a term from the segment and the delta, counting body
+	 * postings towards their document. Must be called with a lock held.
+	 */
+	private Map<Long, Integer> findPostings(String term) {
+		Map<Long, Integer> postings = new HashMap<>();
+		this.segment.forEachPosting(term, (entry, frequency) -> {
+			if (!this.superseded.contains(entry)) {
+				postings.merge(documentKey(entry), frequency, Integer::sum);
+			}
+		});
+		Map<Long, Integer> added = this.delta.get(term);
+		if (added != null) {
+			for (Map.Entry<Long, Integer> posting : added.entrySet()) {
+				postings.merge(documentKey(posting.getKey()), posting.getValue(), Integer::sum);
+			}
+		}
+		return postings;
+	}
+
+	private static long documentKey(long entry) {
+		return (entry < 0) ? ~entry : entry;
+	}
+
+	/**
+	 * Writes the segment and the delta to a new segment, and maps it in place of the old
+	 * one. Searches wait while this happens.
+	 * @throws IOException if the new segment could not be written
+	 */
+	public void flush() throws IOException {
+		this.lock.writeLock().lock();
+		try {
+			if (this.deltaTerms.isEmpty() && this.superseded.isEmpty()) {
+				return;
+			}
+			TreeMap<String, Map<Long, Integer>> postings = new TreeMap<>();
+			Set<Long> keys = new HashSet<>(this.deltaTerms.keySet());
+			this.segment.forEachTerm((term) -> this.segment.forEachPosting(term, (key, frequency) -> {
+				if (!this.superseded.contains(key)) {
+					postings.computeIfAbsent(term, (t) -> new HashMap<>()).put(key, frequency);
+					keys.add(key);
+				}
+			}));
+			for (Map.Entry<String, Map<Long, Integer>> entry : this.delta.entrySet()) {
+				postings.computeIfAbsent(entry.getKey(), (t) -> new HashMap<>()).putAll(entry.getValue());
+			}
+			long generation = this.generation + 1;
+			Path target = this.directory.resolve(SEGMENT_PREFIX + generation + SEGMENT_SUFFIX);
+			Path staging = Files.createTempFile(this.directory, "segment", ".tmp");
+			try {
+				Segment.write(staging, keys, postings);
+				Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally {
+				Files.deleteIfExists(staging);
+			}
+			Path previous = this.segment.path;
+			this.segment = Segment.map(target);
+			this.generation = generation;
+			this.delta.clear();
+			this.deltaTerms.clear();
+			this.superseded.clear();
+			if (previous != null) {
+				deleteQuietly(previous);
+			}
+		}
+		finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the number of documents in the index.
+	 * @return the document count
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return documentCount();
+		}
+		finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Counts the documents, not their bodies. Must be called with a lock held.
+	 */
+	private int documentCount() {
+		return this.segment.documentCount() - countDocuments(this.superseded)
+				+ countDocuments(this.deltaTerms.keySet());
+	}
+
+	private static int countDocuments(Set<Long> entries) {
+		int documents = 0;
+		for (long entry : entries) {
+			if (entry >= 0) {
+				documents++;
+			}
+		}
+		return documents;
+	}
+
+	/**
+	 * Splits text into lower case runs of letters and digits, and counts each run.
+	 */
+	private static void tokenize(String text, int weight, Map<String, Integer> frequencies) {
+		if (text == null) {
+			return;
+		}
+		int start = -1;
+		for (int i = 0; i <= text.length(); i++) {
+			boolean partOfTerm = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (partOfTerm && start < 0) {
+				start = i;
+			}
+			else if (!partOfTerm && start >= 0) {
+				if (i - start <= MAXIMUM_TERM_LENGTH) {
+					frequencies.merge(text.substring(start, i).toLowerCase(Locale.ROOT), weight, Integer::sum);
+				}
+				start = -1;
+			}
+		}
+	}
+
+	private static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		}
+		catch (IOException ex) {
+			// Some platforms refuse to delete mapped files; the next open tries again
+		}
+	}
+
+	private static long parseGeneration(String name) {
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	private interface PostingCallback {
+
+		void accept(long key, int frequency);
+
+	}
+
+	private interface TermCallback {
+
+		void accept(String term);
+
+	}
+
+	/**
+	 * An immutable, memory-mapped segment. The layout is a header, the sorted keys of
+	 * every document, a fixed width entry per term in term order, the UTF-8 bytes of the
+	 * terms, and finally the postings of each term:
+	 *
+	 * <pre>
+	 * header:     magic, format version, entry count, term count (4 bytes each)
+	 * keys:       key (8 bytes) per document or body, bodies first
+	 * dictionary: term offset, term length, postings offset, posting count (4 bytes each)
+	 * terms:      UTF-8 bytes
+	 * postings:   key (8 bytes), frequency (4 bytes)
+	 * </pre>
+	 *
+	 * Terms and keys are found by binary search, so nothing is loaded into the heap.
+	 */
+	private static final class Segment {
+
+		static final Segment EMPTY = new Segment(null, ByteBuffer.allocate(HEADER_SIZE));
+
+		private final Path path;
+
+		private final ByteBuffer buffer;
+
+		private final int entryCount;
+
+		private final int documentCount;
+
+		private final int termCount;
+
+		private final int dictionaryOffset;
+
+		private Segment(Path path, ByteBuffer buffer) {
+			this.path = path;
+			this.buffer = buffer;
+			this.entryCount = buffer.getInt(8);
+			this.termCount = buffer.getInt(12);
+			this.dictionaryOffset = HEADER_SIZE + this.entryCount * 8;
+			this.documentCount = this.entryCount - search(0);
+		}
+
+		static Segment map(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+						|| buffer.getInt(4) != FORMAT_VERSION) {
+					throw new IOException("Not an index segment: " + path);
+				}
+				return new Segment(path, buffer);
+			}
+		}
+
+		static void write(Path path, Set<Long> keys, TreeMap<String, Map<Long, Integer>> postings)
+				throws IOException {
+			long[] sortedKeys = keys.stream().mapToLong(Long::longValue).sorted().toArray();
+			List<byte[]> terms = new ArrayList<>(postings.size());
+			int termBytes = 0;
+			for (String term : postings.keySet()) {
+				byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+				terms.add(bytes);
+				termBytes += bytes.length;
+			}
+			int termsOffset = HEADER_SIZE + sortedKeys.length * 8 + terms.size() * DICTIONARY_ENTRY_SIZE;
+			int postingsOffset = termsOffset + termBytes;
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.WRITE)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(sortedKeys.length);
+				out.writeInt(terms.size());
+				for (long key : sortedKeys) {
+					out.writeLong(key);
+				}
+				int termOffset = termsOffset;
+				int postingOffset = postingsOffset;
+				int i = 0;
+				for (Map<Long, Integer> termPostings : postings.values()) {
+					out.writeInt(termOffset);
+					out.writeInt(terms.get(i).length);
+					out.writeInt(postingOffset);
+					out.writeInt(termPostings.size());
+					termOffset += terms.get(i).length;
+					postingOffset += termPostings.size() * POSTING_SIZE;
+					i++;
+				}
+				for (byte[] term : terms) {
+					out.write(term);
+				}
+				for (Map<Long, Integer> termPostings : postings.values()) {
+					for (Map.Entry<Long, Integer> posting : termPostings.entrySet()) {
+						out.writeLong(posting.getKey());
+						out.writeInt(posting.getValue());
+					}
+				}
+			}
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+		}
+
+		int documentCount() {
+			return this.documentCount;
+		}
+
+		boolean containsKey(long key) {
+			int index = search(key);
+			return index < this.entryCount && this.buffer.getLong(HEADER_SIZE + index * 8) == key;
+		}
+
+		/**
+		 * Finds the position of the first key that is not less than the given one.
+		 */
+		private int search(long key) {
+			int low = 0;
+			int high = this.entryCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (this.buffer.getLong(HEADER_SIZE + middle * 8) < key) {
+					low = middle + 1;
+				}
+				else {
+					high = middle - 1;
+				}
+			}
+			return low;
+		}
+
+		void forEachPosting(String term, PostingCallback callback) {
+			int low = 0;
+			int high = this.termCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int comparison = termAt(middle).compareTo(term);
+				if (comparison < 0) {
+					low = middle + 1;
+				}
+				else if (comparison > 0) {
+					high = middle - 1;
+				}
+				else {
+					forEachPosting(middle, callback);
+					return;
+				}
+			}
+		}
+
+		void forEachTerm(TermCallback callback) {
+			for (int i = 0; i < this.termCount; i++) {
+				callback.accept(termAt(i));
+			}
+		}
+
+		private void forEachPosting(int index, PostingCallback callback) {
+			int entry = this.dictionaryOffset + index * DICTIONARY_ENTRY_SIZE;
+			int offset = this.buffer.getInt(entry + 8);
+			int count = this.buffer.getInt(entry + 12);
+			for (int i = 0; i < count; i++) {
+				int posting = offset + i * POSTING_SIZE;
+				callback.accept(this.buffer.getLong(posting), this.buffer.getInt(posting + 8));
+			}
+		}
+
+		private String termAt(int index) {
+			int entry = this.dictionaryOffset + index * DICTIONARY_ENTRY_SIZE;
+			byte[] bytes = new byte[this.buffer.getInt(entry + 4)];
+			// Duplicated so that concurrent readers do not share a position
+			ByteBuffer view = this.buffer.duplicate();
+			view.position(this.buffer.getInt(entry));
+			view.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+	}
+
+}
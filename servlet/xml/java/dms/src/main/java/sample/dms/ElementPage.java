@@ -0,0 +1,65 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * One page of a directory listing returned by
+ * {@link DocumentDao#listElements(Directory, String, int)}.
+ */
+public final class ElementPage {
+
+	private final List<AbstractElement> elements;
+
+	private final String nextCursor;
+
+	public ElementPage(List<AbstractElement> elements, String nextCursor) {
+		Assert.notNull(elements, "Elements required");
+		this.elements = Collections.unmodifiableList(elements);
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Gets the elements on this page, directories before files.
+	 * @return the elements (never null, but possibly empty)
+	 */
+	public List<AbstractElement> getElements() {
+		return this.elements;
+	}
+
+	/**
+	 * Gets the cursor to pass in order to retrieve the following page.
+	 * @return the cursor, or null if the listing is complete
+	 */
+	public String getNextCursor() {
+		return this.nextCursor;
+	}
+
+	public boolean hasNext() {
+		return this.nextCursor != null;
+	}
+
+	@Override
+	public String toString() {
+		return "ElementPage[elements='" + this.elements.size() + "'; nextCursor='" + this.nextCursor + "']";
+	}
+
+}
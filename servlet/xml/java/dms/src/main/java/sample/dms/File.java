@@ -28,6 +28,15 @@ public class File extends AbstractElement {
 	/** Content of the file, which can be null. */
 	private String content;
 
+	/** Digest of the body held in the {@link ContentStore} (null if none was written). */
+	private String contentDigest;
+
+	/** Length of the body held in the {@link ContentStore} (0 if none was written). */
+	private long contentLength;
+
+	/** Incremented by every update, so that concurrent updates can be detected. */
+	private long version;
+
 	public File(String name, Directory parent) {
 		super(name, parent);
 		Assert.isTrue(!parent.equals(Directory.ROOT_DIRECTORY), "Cannot insert File into root directory");
@@ -41,6 +50,28 @@ public class File extends AbstractElement {
 		this.content = content;
 	}
 
+	public String getContentDigest() {
+		return this.contentDigest;
+	}
+
+	public long getContentLength() {
+		return this.contentLength;
+	}
+
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Gets a strong entity tag for the version of the file that was loaded, suitable for
+	 * an <code>ETag</code> header and for passing back to
+	 * {@link DocumentDao#update(File, String)} from an <code>If-Match</code> header.
+	 * @return the entity tag
+	 */
+	public String getETag() {
+		return "\"" + this.version + "\"";
+	}
+
 	@Override
 	public String toString() {
 		return "File[fullName='" + getFullName() + "'; name='" + getName() + "'; id='" + getId() + "'; content="
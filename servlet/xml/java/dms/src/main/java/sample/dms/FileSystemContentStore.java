@@ -0,0 +1,226 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.springframework.util.Assert;
+
+/**
+ * {@link ContentStore} that keeps each distinct body in its own file on local disk,
+ * named after its SHA-256 digest.
+ * <p>
+ * Bodies are hashed while being written to a staging file, which is then atomically
+ * moved into place, so readers never observe a partially written body. Reads use
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, which lets the
+ * operating system copy straight from the page cache to a socket-backed target.
+ */
+public class FileSystemContentStore implements ContentStore {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final Path directory;
+
+	/**
+	 * Creates a store backed by a fresh temporary directory, which suits the in-memory
+	 * database used by this sample.
+	 * @throws IOException if the temporary directory could not be created
+	 */
+	public FileSystemContentStore() throws IOException {
+		this(Files.createTempDirectory("dms-content"));
+	}
+
+	/**
+	 * Creates a store backed by the given directory.
+	 * @param directory the directory to keep bodies in (required, created if missing)
+	 * @throws IOException if the directory could not be created
+	 */
+	public FileSystemContentStore(Path directory) throws IOException {
+		Assert.notNull(directory, "Directory required");
+		this.directory = Files.createDirectories(directory);
+	}
+
+	public StoredContent write(ReadableByteChannel source) throws IOException {
+		Assert.notNull(source, "Source required");
+		Path staging = Files.createTempFile(this.directory, "upload", ".tmp");
+		try {
+			MessageDigest sha256 = newDigest();
+			long written = 0;
+			try (FileChannel out = FileChannel.open(staging, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				while (source.read(buffer) != -1) {
+					buffer.flip();
+					sha256.update(buffer.array(), 0, buffer.limit());
+					while (buffer.hasRemaining()) {
+						written += out.write(buffer);
+					}
+					buffer.clear();
+				}
+				out.force(false);
+			}
+			String digest = toHex(sha256.digest());
+			Path target = resolve(digest);
+			if (!touch(target)) {
+				Files.createDirectories(target.getParent());
+				Files.move(staging, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			return new StoredContent(digest, written);
+		}
+		finally {
+			Files.deleteIfExists(staging);
+		}
+	}
+
+	public InputStream openStream(String digest) throws IOException {
+		return Files.newInputStream(resolve(digest));
+	}
+
+	public long transferTo(String digest, long position, long count, WritableByteChannel target)
+			throws IOException {
+		Assert.isTrue(position >= 0, "Position cannot be negative");
+		Assert.isTrue(count >= 0, "Count cannot be negative");
+		Assert.notNull(target, "Target required");
+		try (FileChannel in = FileChannel.open(resolve(digest), StandardOpenOption.READ)) {
+			long remaining = Math.min(count, Math.max(0, in.size() - position));
+			long transferred = 0;
+			// transferTo may copy fewer bytes than requested, e.g. to a non-blocking socket
+			while (transferred < remaining) {
+				long copied = in.transferTo(position + transferred, remaining - transferred, target);
+				if (copied == 0) {
+					// The target is full, or the body shrank; the caller decides whether to wait
+					break;
+				}
+				transferred += copied;
+			}
+			return transferred;
+		}
+	}
+
+	public void delete(String digest) throws IOException {
+		Files.deleteIfExists(resolve(digest));
+	}
+
+	public boolean deleteIfUnmodifiedSince(String digest, Instant instant) throws IOException {
+		Assert.notNull(instant, "Instant required");
+		Path body = resolve(digest);
+		// Moved aside first, so that from now on a writer no longer finds it to touch
+		Path removing = Files.createTempFile(this.directory, "removing", ".tmp");
+		try {
+			try {
+				Files.move(body, removing, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (NoSuchFileException ex) {
+				return false;
+			}
+			if (isUnmodifiedSince(removing, FileTime.from(instant))) {
+				return true;
+			}
+			// Touched just before it was moved, so put it back (a writer may already have)
+			Files.move(removing, body, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return false;
+		}
+		finally {
+			Files.deleteIfExists(removing);
+		}
+	}
+
+	public Collection<String> findDigestsUnmodifiedSince(Instant instant) throws IOException {
+		Assert.notNull(instant, "Instant required");
+		FileTime cutoff = FileTime.from(instant);
+		// Bodies live one level down, in their bucket directory; staging files do not
+		int depth = this.directory.getNameCount() + 2;
+		try (Stream<Path> paths = Files.walk(this.directory, 2)) {
+			List<Path> bodies = paths.filter((path) -> path.getNameCount() == depth).filter(Files::isRegularFile)
+					.collect(Collectors.toList());
+			return bodies.stream().filter((path) -> isUnmodifiedSince(path, cutoff))
+					.map((path) -> path.getFileName().toString()).collect(Collectors.toList());
+		}
+	}
+
+	private boolean isUnmodifiedSince(Path path, FileTime cutoff) {
+		try {
+			return Files.getLastModifiedTime(path).compareTo(cutoff) < 0;
+		}
+		catch (IOException ex) {
+			// Removed concurrently, so there is nothing left to collect
+			return false;
+		}
+	}
+
+	/**
+	 * Marks an existing body as recently written, so that a concurrent garbage
+	 * collection leaves it alone.
+	 * @param target the body to mark
+	 * @return <code>false</code> if the body does not exist
+	 */
+	private boolean touch(Path target) throws IOException {
+		try {
+			Files.setLastModifiedTime(target, FileTime.from(Instant.now()));
+			return true;
+		}
+		catch (NoSuchFileException ex) {
+			return false;
+		}
+	}
+
+	private Path resolve(String digest) {
+		Assert.isTrue(digest != null && digest.length() == 64, "SHA-256 hex digest required");
+		for (int i = 0; i < digest.length(); i++) {
+			Assert.isTrue(Character.digit(digest.charAt(i), 16) != -1, "SHA-256 hex digest required");
+		}
+		return this.directory.resolve(digest.substring(0, 2)).resolve(digest);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException("SHA-256 not available", ex);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+
+}
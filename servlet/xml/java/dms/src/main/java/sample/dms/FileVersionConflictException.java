@@ -0,0 +1,49 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+
+/**
+ * Thrown when a {@link File} is updated from a version that is no longer current. Web
+ * layers would typically answer with <code>412 Precondition Failed</code> and the
+ * {@link #getCurrentETag() current entity tag}.
+ */
+public class FileVersionConflictException extends OptimisticLockingFailureException {
+
+	private final long expectedVersion;
+
+	private final long currentVersion;
+
+	public FileVersionConflictException(File file, long expectedVersion, long currentVersion) {
+		super("File " + file.getId() + " is at version " + currentVersion + ", not " + expectedVersion);
+		this.expectedVersion = expectedVersion;
+		this.currentVersion = currentVersion;
+	}
+
+	public long getExpectedVersion() {
+		return this.expectedVersion;
+	}
+
+	public long getCurrentVersion() {
+		return this.currentVersion;
+	}
+
+	public String getCurrentETag() {
+		return "\"" + this.currentVersion + "\"";
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.util.Assert;
+
+/**
+ * Describes a directory or file to be created by
+ * {@link DocumentDao#importTree(Directory, List)}. Unlike {@link AbstractElement}, a node
+ * does not need a saved parent, so a whole subtree can be described up front.
+ */
+public final class ImportNode {
+
+	private final String name;
+
+	private final boolean directory;
+
+	private final String content;
+
+	private final List<ImportNode> children;
+
+	private ImportNode(String name, boolean directory, String content, List<ImportNode> children) {
+		Assert.hasText(name, "Name required");
+		Assert.noNullElements(children.toArray(), "Children cannot contain null");
+		this.name = name;
+		this.directory = directory;
+		this.content = content;
+		this.children = children;
+	}
+
+	/**
+	 * Describes a directory.
+	 * @param name the directory name (required)
+	 * @param children the elements to create inside the directory
+	 * @return the node
+	 */
+	public static ImportNode directory(String name, ImportNode... children) {
+		return directory(name, Arrays.asList(children));
+	}
+
+	/**
+	 * Describes a directory.
+	 * @param name the directory name (required)
+	 * @param children the elements to create inside the directory (required)
+	 * @return the node
+	 */
+	public static ImportNode directory(String name, List<ImportNode> children) {
+		Assert.notNull(children, "Children required");
+		return new ImportNode(name, true, null, Collections.unmodifiableList(children));
+	}
+
+	/**
+	 * Describes a file.
+	 * @param name the file name (required)
+	 * @param content the file's content, which can be null
+	 * @return the node
+	 */
+	public static ImportNode file(String name, String content) {
+		return new ImportNode(name, false, content, Collections.emptyList());
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public boolean isDirectory() {
+		return this.directory;
+	}
+
+	public String getContent() {
+		return this.content;
+	}
+
+	public List<ImportNode> getChildren() {
+		return this.children;
+	}
+
+	@Override
+	public String toString() {
+		return "ImportNode[name='" + this.name + "'; directory='" + this.directory + "'; children='"
+				+ this.children.size() + "']";
+	}
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms;
+
+import org.springframework.util.Assert;
+
+/**
+ * Describes a body held in a {@link ContentStore}.
+ */
+public final class StoredContent {
+
+	private final String digest;
+
+	private final long length;
+
+	public StoredContent(String digest, long length) {
+		Assert.hasText(digest, "Digest required");
+		Assert.isTrue(length >= 0, "Length cannot be negative");
+		this.digest = digest;
+		this.length = length;
+	}
+
+	/**
+	 * Gets the hex-encoded SHA-256 digest of the body.
+	 * @return the digest (never null)
+	 */
+	public String getDigest() {
+		return this.digest;
+	}
+
+	public long getLength() {
+		return this.length;
+	}
+
+	@Override
+	public String toString() {
+		return "StoredContent[digest='" + this.digest + "'; length='" + this.length + "']";
+	}
+
+}
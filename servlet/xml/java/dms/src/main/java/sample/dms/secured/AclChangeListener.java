@@ -0,0 +1,41 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms.secured;
+
+import org.springframework.security.acls.model.ObjectIdentity;
+
+/**
+ * Notified by {@link NotifyingAclCache} whenever an ACL may have changed.
+ * <p>
+ * {@link org.springframework.security.acls.jdbc.JdbcMutableAclService} evicts an ACL and
+ * all of its descendants whenever it is updated or deleted, so listeners are told about
+ * every object whose effective permissions may differ, not just the one that changed.
+ */
+public interface AclChangeListener {
+
+	/**
+	 * Called when the ACL of the given object, or of one of its ancestors, has changed.
+	 * @param objectIdentity the affected object
+	 */
+	void aclChanged(ObjectIdentity objectIdentity);
+
+	/**
+	 * Called when every ACL may have changed.
+	 */
+	void allAclsChanged();
+
+}
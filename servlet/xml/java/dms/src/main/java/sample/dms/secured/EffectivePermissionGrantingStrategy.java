@@ -0,0 +1,188 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms.secured;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import org.springframework.security.acls.domain.AuditLogger;
+import org.springframework.security.acls.domain.DefaultPermissionGrantingStrategy;
+import org.springframework.security.acls.model.AccessControlEntry;
+import org.springframework.security.acls.model.Acl;
+import org.springframework.security.acls.model.AuditableAccessControlEntry;
+import org.springframework.security.acls.model.NotFoundException;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.PermissionGrantingStrategy;
+import org.springframework.security.acls.model.Sid;
+import org.springframework.util.Assert;
+
+/**
+ * {@link PermissionGrantingStrategy} that materializes the effective permissions of each
+ * {@link Acl}: for every sid, the masks its ACEs mention, each with the outcome of the
+ * first ACE for that mask. A decision is then a few hash lookups per level of the tree,
+ * however many ACEs there are, and the tables of parent ACLs are shared by all of their
+ * children.
+ * <p>
+ * The outcome is the same as with {@link DefaultPermissionGrantingStrategy}. Masks are
+ * recorded in ACE order, so the first matching ACE still decides, and each level keeps
+ * its own table because a parent ACL is only consulted when nothing at all matched
+ * below it. Decisions involving ACEs that audit are left to the delegate, so auditing is
+ * unaffected.
+ * <p>
+ * Tables are built the first time an ACL is used, and dropped for an object and its
+ * whole subtree when {@link NotifyingAclCache} reports that its ACL, or an ancestor's,
+ * has changed. They are also tied to the {@link Acl} instance they were built from, so a
+ * reloaded ACL never uses the table of its predecessor.
+ * <p>
+ * Objects are evicted by Caffeine's size-based policy once the limit is reached, so hot
+ * directories stay. The {@link Acl} is only held weakly, so ACLs evicted from the
+ * {@link org.springframework.security.acls.model.AclCache} can still be collected.
+ */
+public class EffectivePermissionGrantingStrategy implements PermissionGrantingStrategy, AclChangeListener {
+
+	private final PermissionGrantingStrategy delegate;
+
+	private final Cache<ObjectIdentity, EffectivePermissions> effectivePermissions = Caffeine.newBuilder()
+			.maximumSize(100000).build();
+
+	public EffectivePermissionGrantingStrategy(AuditLogger auditLogger) {
+		this(new DefaultPermissionGrantingStrategy(auditLogger));
+	}
+
+	public EffectivePermissionGrantingStrategy(PermissionGrantingStrategy delegate) {
+		Assert.notNull(delegate, "PermissionGrantingStrategy required");
+		this.delegate = delegate;
+	}
+
+	public boolean isGranted(Acl acl, List<Permission> permission, List<Sid> sids, boolean administrativeMode) {
+		EffectivePermissions effective = materialize(acl);
+		if (effective.audited) {
+			return this.delegate.isGranted(acl, permission, sids, administrativeMode);
+		}
+		for (EffectivePermissions level = effective; level != null; level = level.parent) {
+			Boolean granted = level.isGranted(permission, sids);
+			if (granted != null) {
+				return granted;
+			}
+		}
+		throw new NotFoundException("Unable to locate a matching ACE for passed permissions and SIDs");
+	}
+
+	/**
+	 * Gets the table of an ACL, building it and those of any ancestors it inherits from
+	 * that are not known yet.
+	 */
+	private EffectivePermissions materialize(Acl acl) {
+		Acl parentAcl = acl.isEntriesInheriting() ? acl.getParentAcl() : null;
+		EffectivePermissions effective = this.effectivePermissions.getIfPresent(acl.getObjectIdentity());
+		if (effective != null && effective.isFor(acl)
+				&& ((parentAcl != null) ? effective.parent != null && effective.parent.isFor(parentAcl)
+						: effective.parent == null)) {
+			return effective;
+		}
+		effective = new EffectivePermissions(acl, (parentAcl != null) ? materialize(parentAcl) : null);
+		this.effectivePermissions.put(acl.getObjectIdentity(), effective);
+		return effective;
+	}
+
+	public void aclChanged(ObjectIdentity objectIdentity) {
+		this.effectivePermissions.invalidate(objectIdentity);
+	}
+
+	public void allAclsChanged() {
+		this.effectivePermissions.invalidateAll();
+	}
+
+	/**
+	 * Sets how many objects tables are kept for. Beyond the limit, the objects least
+	 * likely to be asked about again are evicted.
+	 * @param maximumObjects the limit (defaults to 100,000)
+	 */
+	public void setMaximumObjects(int maximumObjects) {
+		Assert.isTrue(maximumObjects > 0, "Maximum objects must be positive");
+		this.effectivePermissions.policy().eviction()
+				.ifPresent((eviction) -> eviction.setMaximum(maximumObjects));
+	}
+
+	/**
+	 * The effective permissions of a single ACL, linked to those of the ACL it inherits
+	 * from.
+	 */
+	private static final class EffectivePermissions {
+
+		private final WeakReference<Acl> acl;
+
+		private final EffectivePermissions parent;
+
+		/** Whether any ACE at this level or above writes audit records. */
+		private final boolean audited;
+
+		/** For each sid, whether the first ACE for each mask grants it. */
+		private final Map<Sid, Map<Integer, Boolean>> masks = new HashMap<>();
+
+		private EffectivePermissions(Acl acl, EffectivePermissions parent) {
+			this.acl = new WeakReference<>(acl);
+			this.parent = parent;
+			boolean audited = parent != null && parent.audited;
+			for (AccessControlEntry ace : acl.getEntries()) {
+				this.masks.computeIfAbsent(ace.getSid(), (sid) -> new HashMap<>())
+						.putIfAbsent(ace.getPermission().getMask(), ace.isGranting());
+				if (ace instanceof AuditableAccessControlEntry) {
+					AuditableAccessControlEntry auditable = (AuditableAccessControlEntry) ace;
+					audited |= auditable.isAuditSuccess() || auditable.isAuditFailure();
+				}
+			}
+			this.audited = audited;
+		}
+
+		private boolean isFor(Acl acl) {
+			return this.acl.get() == acl;
+		}
+
+		/**
+		 * Decides at this level alone, in the same order as
+		 * {@link DefaultPermissionGrantingStrategy}: a grant for any permission wins,
+		 * and a denial stops the search of further sids for that permission.
+		 * @return the decision, or null if no ACE at this level matched
+		 */
+		private Boolean isGranted(List<Permission> permissions, List<Sid> sids) {
+			boolean denied = false;
+			for (Permission permission : permissions) {
+				for (Sid sid : sids) {
+					Map<Integer, Boolean> masks = this.masks.get(sid);
+					Boolean granting = (masks != null) ? masks.get(permission.getMask()) : null;
+					if (granting != null) {
+						if (granting) {
+							return Boolean.TRUE;
+						}
+						denied = true;
+						break;
+					}
+				}
+			}
+			return denied ? Boolean.FALSE : null;
+		}
+
+	}
+
+}
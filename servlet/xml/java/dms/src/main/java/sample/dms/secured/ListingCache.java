@@ -0,0 +1,321 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms.secured;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import sample.dms.AbstractElement;
+import sample.dms.Directory;
+import sample.dms.File;
+
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.util.FieldUtils;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.Assert;
+
+/**
+ * Caches the results of {@link sample.dms.DocumentDao#findElements(Directory)} after ACL
+ * filtering, per principal, authorities and directory. Applied by {@link ListingCacheAdvisor} outside
+ * of method security, so that a hit skips both the queries and the filtering.
+ * <p>
+ * Entries are invalidated precisely:
+ * <ul>
+ * <li>creating an element, or importing into a directory, invalidates the listings of its
+ * parent directory</li>
+ * <li>updating, writing or deleting a file invalidates the listings that contain it</li>
+ * <li>an ACL change invalidates the listings of the affected directory and the listings
+ * that contain the affected element; as {@link AclChangeListener}s are told about every
+ * descendant of a changed ACL, this covers changes to ancestors too</li>
+ * <li>moving a directory invalidates everything, as the full names of the whole subtree
+ * change</li>
+ * </ul>
+ * Changes are invalidated again when the surrounding transaction completes, so listings
+ * read before a commit or rollback are never kept. Only already authenticated callers are
+ * served from the cache. Files are copied into and out of the cache, as callers may
+ * modify them.
+ */
+public class ListingCache implements MethodInterceptor, AclChangeListener {
+
+	/** The fields of a {@link File} that callers cannot set themselves. */
+	private static final String[] FILE_FIELDS = { "id", "contentDigest", "contentLength", "version" };
+
+	private final Map<ListingKey, AbstractElement[]> listings = new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The keys of the listings of each directory. */
+	private final Map<ObjectIdentity, Set<ListingKey>> listingsOf = new HashMap<>();
+
+	/** The keys of the listings that contain each element. */
+	private final Map<ObjectIdentity, Set<ListingKey>> listingsContaining = new HashMap<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private long generation;
+
+	private int maximumListings = 10000;
+
+	public Object invoke(MethodInvocation invocation) throws Throwable {
+		String name = invocation.getMethod().getName();
+		Object[] arguments = invocation.getArguments();
+		if ("findElements".equals(name)) {
+			return findElements(invocation, (Directory) arguments[0]);
+		}
+		Object result = invocation.proceed();
+		if ("move".equals(name)) {
+			invalidateAll();
+		}
+		else if ("create".equals(name) || "importTree".equals(name)) {
+			AbstractElement parent = "create".equals(name) ? ((AbstractElement) arguments[0]).getParent()
+					: (AbstractElement) arguments[0];
+			if (parent != null) {
+				invalidate(new ObjectIdentityImpl(parent), true, false);
+			}
+		}
+		else {
+			invalidate(new ObjectIdentityImpl(arguments[0]), false, true);
+		}
+		return result;
+	}
+
+	private Object findElements(MethodInvocation invocation, Directory directory) throws Throwable {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		if (directory == null || directory.getId() == null || authentication == null
+				|| !authentication.isAuthenticated()) {
+			return invocation.proceed();
+		}
+		ListingKey key = new ListingKey(authentication.getName(),
+				AuthorityUtils.authorityListToSet(authentication.getAuthorities()), new ObjectIdentityImpl(directory));
+		long generation;
+		synchronized (this) {
+			AbstractElement[] listing = this.listings.get(key);
+			if (listing != null) {
+				this.hits.incrementAndGet();
+				return copy(listing);
+			}
+			generation = this.generation;
+		}
+		this.misses.incrementAndGet();
+		AbstractElement[] listing = (AbstractElement[]) invocation.proceed();
+		synchronized (this) {
+			// Anything invalidated while the listing was read may already be stale in it
+			if (listing != null && this.generation == generation) {
+				put(key, copy(listing));
+			}
+		}
+		return listing;
+	}
+
+	private void put(ListingKey key, AbstractElement[] listing) {
+		this.listings.put(key, listing);
+		index(this.listingsOf, key.directory, key);
+		for (AbstractElement element : listing) {
+			index(this.listingsContaining, new ObjectIdentityImpl(element), key);
+		}
+		Iterator<Map.Entry<ListingKey, AbstractElement[]>> eldest = this.listings.entrySet().iterator();
+		while (this.listings.size() > this.maximumListings) {
+			Map.Entry<ListingKey, AbstractElement[]> entry = eldest.next();
+			eldest.remove();
+			unindex(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Copies a listing along with its files. Directories are shared, as nothing changes
+	 * a saved directory in place.
+	 */
+	private static AbstractElement[] copy(AbstractElement[] listing) {
+		AbstractElement[] copy = listing.clone();
+		for (int i = 0; i < copy.length; i++) {
+			if (copy[i] instanceof File) {
+				File file = (File) copy[i];
+				File fileCopy = new File(file.getName(), (Directory) file.getParent());
+				fileCopy.setContent(file.getContent());
+				for (String field : FILE_FIELDS) {
+					FieldUtils.setProtectedFieldValue(field, fileCopy, FieldUtils.getProtectedFieldValue(field, file));
+				}
+				copy[i] = fileCopy;
+			}
+		}
+		return copy;
+	}
+
+	private void index(Map<ObjectIdentity, Set<ListingKey>> index, ObjectIdentity identity, ListingKey key) {
+		index.computeIfAbsent(identity, (i) -> new HashSet<>()).add(key);
+	}
+
+	private void unindex(ListingKey key, AbstractElement[] listing) {
+		remove(this.listingsOf, key.directory, key);
+		for (AbstractElement element : listing) {
+			remove(this.listingsContaining, new ObjectIdentityImpl(element), key);
+		}
+	}
+
+	private void remove(Map<ObjectIdentity, Set<ListingKey>> index, ObjectIdentity identity, ListingKey key) {
+		Set<ListingKey> keys = index.get(identity);
+		if (keys != null && keys.remove(key) && keys.isEmpty()) {
+			index.remove(identity);
+		}
+	}
+
+	private void invalidate(ObjectIdentity identity, boolean listingsOf, boolean listingsContaining) {
+		evict(identity, listingsOf, listingsContaining);
+		afterCompletion(() -> evict(identity, listingsOf, listingsContaining));
+	}
+
+	private synchronized void evict(ObjectIdentity identity, boolean listingsOf, boolean listingsContaining) {
+		this.generation++;
+		Set<ListingKey> keys = new HashSet<>();
+		if (listingsOf) {
+			keys.addAll(this.listingsOf.getOrDefault(identity, Collections.emptySet()));
+		}
+		if (listingsContaining) {
+			keys.addAll(this.listingsContaining.getOrDefault(identity, Collections.emptySet()));
+		}
+		for (ListingKey key : keys) {
+			AbstractElement[] listing = this.listings.remove(key);
+			if (listing != null) {
+				unindex(key, listing);
+				this.invalidations.incrementAndGet();
+			}
+		}
+	}
+
+	private void invalidateAll() {
+		evictAll();
+		afterCompletion(this::evictAll);
+	}
+
+	private synchronized void evictAll() {
+		this.generation++;
+		this.invalidations.addAndGet(this.listings.size());
+		this.listings.clear();
+		this.listingsOf.clear();
+		this.listingsContaining.clear();
+	}
+
+	private void afterCompletion(Runnable invalidation) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					invalidation.run();
+				}
+			});
+		}
+	}
+
+	public void aclChanged(ObjectIdentity objectIdentity) {
+		invalidate(objectIdentity, true, true);
+	}
+
+	public void allAclsChanged() {
+		invalidateAll();
+	}
+
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Gets the proportion of cacheable lookups that were served from the cache.
+	 * @return the hit rate, between 0 and 1
+	 */
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + this.misses.get();
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * Gets the number of listings removed because something they depended on changed.
+	 * Listings removed to stay within {@link #setMaximumListings(int)} are not counted.
+	 * @return the invalidation count
+	 */
+	public long getInvalidationCount() {
+		return this.invalidations.get();
+	}
+
+	public synchronized int size() {
+		return this.listings.size();
+	}
+
+	/**
+	 * Sets how many listings are kept, across all principals. The least recently used
+	 * listings are removed first.
+	 * @param maximumListings the maximum number of listings (defaults to 10,000)
+	 */
+	public void setMaximumListings(int maximumListings) {
+		Assert.isTrue(maximumListings > 0, "Maximum listings must be positive");
+		this.maximumListings = maximumListings;
+	}
+
+	private static final class ListingKey {
+
+		private final String principal;
+
+		/** Part of the key, as ACL entries may be granted to authorities too. */
+		private final Set<String> authorities;
+
+		private final ObjectIdentity directory;
+
+		private ListingKey(String principal, Set<String> authorities, ObjectIdentity directory) {
+			this.principal = principal;
+			this.authorities = authorities;
+			this.directory = directory;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof ListingKey)) {
+				return false;
+			}
+			ListingKey other = (ListingKey) obj;
+			return this.principal.equals(other.principal) && this.authorities.equals(other.authorities)
+					&& this.directory.equals(other.directory);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * this.principal.hashCode() + this.authorities.hashCode()) + this.directory.hashCode();
+		}
+
+	}
+
+}
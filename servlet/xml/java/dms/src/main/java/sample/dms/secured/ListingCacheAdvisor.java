@@ -0,0 +1,47 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms.secured;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import sample.dms.DocumentDao;
+
+import org.springframework.aop.support.StaticMethodMatcherPointcutAdvisor;
+import org.springframework.core.Ordered;
+
+/**
+ * Applies a {@link ListingCache} to {@link DocumentDao} beans. The advisor runs ahead of
+ * method security and transactions, so that cache hits skip both, and so that
+ * invalidations happen once the DAO's own transaction has committed.
+ */
+public class ListingCacheAdvisor extends StaticMethodMatcherPointcutAdvisor {
+
+	private static final Set<String> METHOD_NAMES = new HashSet<>(
+			Arrays.asList("findElements", "create", "importTree", "delete", "update", "writeContent", "move"));
+
+	public ListingCacheAdvisor(ListingCache listingCache) {
+		super(listingCache);
+		setOrder(Ordered.HIGHEST_PRECEDENCE);
+	}
+
+	public boolean matches(Method method, Class<?> targetClass) {
+		return DocumentDao.class.isAssignableFrom(targetClass) && METHOD_NAMES.contains(method.getName());
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package sample.dms.secured;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.security.acls.model.AclCache;
+import org.springframework.security.acls.model.MutableAcl;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.util.Assert;
+
+/**
+ * {@link AclCache} decorator that tells {@link AclChangeListener}s about evictions, so
+ * that anything derived from ACLs can be invalidated at the same time as the ACLs
+ * themselves.
+ */
+public class NotifyingAclCache implements AclCache {
+
+	private final AclCache delegate;
+
+	private List<AclChangeListener> listeners = new ArrayList<>();
+
+	public NotifyingAclCache(AclCache delegate) {
+		Assert.notNull(delegate, "AclCache required");
+		this.delegate = delegate;
+	}
+
+	public void evictFromCache(Serializable pk) {
+		MutableAcl acl = this.delegate.getFromCache(pk);
+		this.delegate.evictFromCache(pk);
+		if (acl != null) {
+			notifyChanged(acl.getObjectIdentity());
+		}
+	}
+
+	public void evictFromCache(ObjectIdentity objectIdentity) {
+		this.delegate.evictFromCache(objectIdentity);
+		notifyChanged(objectIdentity);
+	}
+
+	public MutableAcl getFromCache(ObjectIdentity objectIdentity) {
+		return this.delegate.getFromCache(objectIdentity);
+	}
+
+	public MutableAcl getFromCache(Serializable pk) {
+		return this.delegate.getFromCache(pk);
+	}
+
+	public void putInCache(MutableAcl acl) {
+		this.delegate.putInCache(acl);
+	}
+
+	public void clearCache() {
+		this.delegate.clearCache();
+		for (AclChangeListener listener : this.listeners) {
+			listener.allAclsChanged();
+		}
+	}
+
+	private void notifyChanged(ObjectIdentity objectIdentity) {
+		for (AclChangeListener listener : this.listeners) {
+			listener.aclChanged(objectIdentity);
+		}
+	}
+
+	public void setListeners(List<AclChangeListener> listeners) {
+		Assert.notNull(listeners, "Listeners required");
+		this.listeners = listeners;
+	}
+
+}
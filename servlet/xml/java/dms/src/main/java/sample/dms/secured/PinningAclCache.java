@@ -0,0 +1,233 @@
+/*
+ * Copyright 2002-2021 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.dms.secured;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.acls.model.AclCache;
+import org.springframework.security.acls.model.MutableAcl;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.util.Assert;
+
+/**
+ * {@link AclCache} decorator that pins the ACLs of frequently accessed objects in a
+ * dedicated tier, which churn in the general cache cannot evict. This keeps the parent
+ * directory ACLs read by <code>ACL_ABSTRACT_ELEMENT_WRITE_PARENT</code> checks cached
+ * during bulk uploads, however many other ACLs pass through the delegate.
+ * <p>
+ * Every lookup by object identity counts towards that object's access frequency, and an
+ * ACL is admitted once its frequency reaches the admission threshold. When the tier is
+ * full, a newcomer only displaces the least frequently accessed pinned ACL, and only if
+ * it is accessed more often. Frequencies are halved periodically, so that objects that
+ * were hot a long time ago do not keep their advantage.
+ * <p>
+ * Pinned ACLs are still removed when they are evicted explicitly, so ACL changes take
+ * effect as before. An ACL read before an eviction is never pinned after it.
+ */
+public class PinningAclCache implements AclCache {
+
+	private final AclCache delegate;
+
+	private final ConcurrentMap<ObjectIdentity, MutableAcl> pinned = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<Serializable, ObjectIdentity> pinnedIds = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<ObjectIdentity, AtomicInteger> frequencies = new ConcurrentHashMap<>();
+
+	private final AtomicLong accesses = new AtomicLong();
+
+	private final AtomicLong pinnedHits = new AtomicLong();
+
+	/** Incremented by every eviction, once the delegate no longer holds the ACL. */
+	private final AtomicLong evictions = new AtomicLong();
+
+	private int admissionThreshold = 3;
+
+	private int maximumPinned = 1000;
+
+	public PinningAclCache(AclCache delegate) {
+		Assert.notNull(delegate, "AclCache required");
+		this.delegate = delegate;
+	}
+
+	public MutableAcl getFromCache(ObjectIdentity objectIdentity) {
+		int frequency = recordAccess(objectIdentity);
+		MutableAcl acl = this.pinned.get(objectIdentity);
+		if (acl != null) {
+			this.pinnedHits.incrementAndGet();
+			return acl;
+		}
+		long evictions = this.evictions.get();
+		acl = this.delegate.getFromCache(objectIdentity);
+		if (acl != null) {
+			admit(acl, frequency, evictions);
+		}
+		return acl;
+	}
+
+	public MutableAcl getFromCache(Serializable pk) {
+		ObjectIdentity objectIdentity = this.pinnedIds.get(pk);
+		MutableAcl acl = (objectIdentity != null) ? this.pinned.get(objectIdentity) : null;
+		if (acl != null) {
+			this.pinnedHits.incrementAndGet();
+			return acl;
+		}
+		return this.delegate.getFromCache(pk);
+	}
+
+	public void putInCache(MutableAcl acl) {
+		long evictions = this.evictions.get();
+		this.delegate.putInCache(acl);
+		AtomicInteger frequency = this.frequencies.get(acl.getObjectIdentity());
+		if (frequency != null) {
+			admit(acl, frequency.get(), evictions);
+		}
+	}
+
+	public void evictFromCache(Serializable pk) {
+		this.delegate.evictFromCache(pk);
+		synchronized (this) {
+			this.evictions.incrementAndGet();
+			ObjectIdentity objectIdentity = this.pinnedIds.get(pk);
+			if (objectIdentity != null) {
+				unpin(objectIdentity);
+			}
+		}
+	}
+
+	public void evictFromCache(ObjectIdentity objectIdentity) {
+		this.delegate.evictFromCache(objectIdentity);
+		synchronized (this) {
+			this.evictions.incrementAndGet();
+			unpin(objectIdentity);
+		}
+	}
+
+	public void clearCache() {
+		this.delegate.clearCache();
+		synchronized (this) {
+			this.evictions.incrementAndGet();
+			this.pinned.clear();
+			this.pinnedIds.clear();
+		}
+	}
+
+	private int recordAccess(ObjectIdentity objectIdentity) {
+		int frequency = this.frequencies.computeIfAbsent(objectIdentity, (oid) -> new AtomicInteger())
+				.incrementAndGet();
+		if (this.accesses.incrementAndGet() % (10L * this.maximumPinned) == 0) {
+			age();
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves every frequency and forgets objects that have not been accessed since the
+	 * last time, which also bounds the number of objects tracked.
+	 */
+	private synchronized void age() {
+		Iterator<AtomicInteger> frequencies = this.frequencies.values().iterator();
+		while (frequencies.hasNext()) {
+			AtomicInteger frequency = frequencies.next();
+			if (frequency.updateAndGet((f) -> f / 2) == 0) {
+				frequencies.remove();
+			}
+		}
+	}
+
+	/**
+	 * Pins an ACL if it is accessed often enough.
+	 * @param evictions the eviction count before the ACL was read; if anything was
+	 * evicted since, the ACL may be stale and is not pinned
+	 */
+	private void admit(MutableAcl acl, int frequency, long evictions) {
+		if (frequency < this.admissionThreshold) {
+			return;
+		}
+		ObjectIdentity objectIdentity = acl.getObjectIdentity();
+		synchronized (this) {
+			if (this.evictions.get() != evictions) {
+				return;
+			}
+			if (!this.pinned.containsKey(objectIdentity) && this.pinned.size() >= this.maximumPinned) {
+				ObjectIdentity coldest = findColdestPinned();
+				if (coldest == null || frequencyOf(coldest) >= frequency) {
+					return;
+				}
+				unpin(coldest);
+			}
+			this.pinned.put(objectIdentity, acl);
+			this.pinnedIds.put(acl.getId(), objectIdentity);
+		}
+	}
+
+	private ObjectIdentity findColdestPinned() {
+		ObjectIdentity coldest = null;
+		int coldestFrequency = Integer.MAX_VALUE;
+		for (ObjectIdentity candidate : this.pinned.keySet()) {
+			int frequency = frequencyOf(candidate);
+			if (frequency < coldestFrequency) {
+				coldest = candidate;
+				coldestFrequency = frequency;
+			}
+		}
+		return coldest;
+	}
+
+	private int frequencyOf(ObjectIdentity objectIdentity) {
+		AtomicInteger frequency = this.frequencies.get(objectIdentity);
+		return (frequency != null) ? frequency.get() : 0;
+	}
+
+	private synchronized void unpin(ObjectIdentity objectIdentity) {
+		MutableAcl acl = this.pinned.remove(objectIdentity);
+		if (acl != null) {
+			this.pinnedIds.remove(acl.getId());
+		}
+	}
+
+	public long getPinnedHitCount() {
+		return this.pinnedHits.get();
+	}
+
+	public int getPinnedCount() {
+		return this.pinned.size();
+	}
+
+	/**
+	 * Sets how many lookups an object needs before its ACL is pinned.
+	 * @param admissionThreshold the number of lookups (defaults to 3)
+	 */
+	public void setAdmissionThreshold(int admissionThreshold) {
+		Assert.isTrue(admissionThreshold > 0, "Admission threshold must be positive");
+		this.admissionThreshold = admissionThreshold;
+	}
+
+	/**
+	 * Sets how many ACLs may be pinned at once.
+	 * @param maximumPinned the maximum number of pinned ACLs (defaults to 1,000)
+	 */
+	public void setMaximumPinned(int maximumPinned) {
+		Assert.isTrue(maximumPinned > 0, "Maximum pinned must be positive");
+		this.maximumPinned = maximumPinned;
+	}
+
+}
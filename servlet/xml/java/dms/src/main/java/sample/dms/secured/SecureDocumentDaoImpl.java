@@ -16,15 +16,31 @@
 
 package sample.dms.secured;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
 import sample.dms.AbstractElement;
+import sample.dms.Directory;
 import sample.dms.DocumentDaoImpl;
+import sample.dms.ImportNode;
 
+import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.acls.domain.BasePermission;
 import org.springframework.security.acls.domain.ObjectIdentityImpl;
 import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.domain.SidRetrievalStrategyImpl;
+import org.springframework.security.acls.model.Acl;
 import org.springframework.security.acls.model.MutableAcl;
 import org.springframework.security.acls.model.MutableAclService;
+import org.springframework.security.acls.model.NotFoundException;
 import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.Sid;
+import org.springframework.security.acls.model.SidRetrievalStrategy;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.Assert;
 
@@ -38,8 +54,35 @@ public class SecureDocumentDaoImpl extends DocumentDaoImpl implements SecureDocu
 
 	private static final String SELECT_FROM_USERS = "SELECT USERNAME FROM USERS ORDER BY USERNAME";
 
+	private static final String SELECT_ACL_CLASS = "select id from acl_class where class = ?";
+
+	private static final String INSERT_INTO_ACL_CLASS = "insert into acl_class (class) values (?)";
+
+	private static final String SELECT_ACL_SID = "select id from acl_sid where principal = ? and sid = ?";
+
+	private static final String INSERT_INTO_ACL_SID = "insert into acl_sid (principal, sid) values (?, ?)";
+
+	private static final String SELECT_ACL_OBJECT_IDENTITY = "select id from acl_object_identity where object_id_class = ? and object_id_identity = ?";
+
+	private static final String INSERT_INTO_ACL_OBJECT_IDENTITY = "insert into acl_object_identity (object_id_class, object_id_identity, parent_object, owner_sid, entries_inheriting) values (?, ?, ?, ?, ?)";
+
+	private static final String INSERT_INTO_ACL_ENTRY = "insert into acl_entry (acl_object_identity, ace_order, sid, mask, granting, audit_success, audit_failure) values (?, ?, ?, ?, ?, ?, ?)";
+
+	private static final String SELECT_DIRECTORY_PARENT = "select parent_directory_id from directory where id = ?";
+
+	/**
+	 * The permissions required on a directory to move another into or out of it, as with
+	 * <code>ACL_ABSTRACT_ELEMENT_WRITE</code>.
+	 */
+	private static final List<Permission> WRITE_PERMISSIONS = Arrays.asList(BasePermission.ADMINISTRATION,
+			BasePermission.WRITE);
+
 	private final MutableAclService mutableAclService;
 
+	private SidRetrievalStrategy sidRetrievalStrategy = new SidRetrievalStrategyImpl();
+
+	private List<Permission> readPermissions = Arrays.asList(BasePermission.ADMINISTRATION, BasePermission.READ);
+
 	public SecureDocumentDaoImpl(MutableAclService mutableAclService) {
 		Assert.notNull(mutableAclService, "MutableAclService required");
 		this.mutableAclService = mutableAclService;
@@ -70,4 +113,174 @@ public class SecureDocumentDaoImpl extends DocumentDaoImpl implements SecureDocu
 		this.mutableAclService.updateAcl(acl);
 	}
 
+	/**
+	 * Imports the subtree and creates the same ACLs {@link #create(AbstractElement)}
+	 * would: each element's ACL inherits from its parent's and grants the current
+	 * principal administration. The ACL rows are written in one batch per tree level,
+	 * and the new ACLs are then loaded into the ACL cache in bulk.
+	 */
+	@Override
+	public List<AbstractElement> importTree(Directory parent, List<ImportNode> nodes) {
+		List<AbstractElement> created = super.importTree(parent, nodes);
+		if (created.isEmpty()) {
+			return created;
+		}
+		PrincipalSid owner = new PrincipalSid(SecurityContextHolder.getContext().getAuthentication());
+		Long ownerSidId = findOrCreate(SELECT_ACL_SID, INSERT_INTO_ACL_SID, true, owner.getPrincipal());
+		Map<Class<?>, Long> classIds = new IdentityHashMap<>();
+
+		Map<AbstractElement, Long> aclIds = new IdentityHashMap<>();
+		aclIds.put(parent, findAclObjectIdentity(parent, classIds));
+		List<AbstractElement> pending = created;
+		while (!pending.isEmpty()) {
+			// Elements whose parent already has an ACL form the next level
+			List<AbstractElement> level = new ArrayList<>();
+			List<AbstractElement> remaining = new ArrayList<>();
+			List<Object[]> rows = new ArrayList<>();
+			for (AbstractElement element : pending) {
+				Long parentAclId = aclIds.get(element.getParent());
+				if (parentAclId == null) {
+					remaining.add(element);
+					continue;
+				}
+				level.add(element);
+				rows.add(new Object[] { classId(element, classIds), element.getId().toString(), parentAclId,
+						ownerSidId, Boolean.TRUE });
+			}
+			Assert.state(!level.isEmpty(), "Imported elements must descend from the import parent");
+			List<Long> ids = insertBatch(INSERT_INTO_ACL_OBJECT_IDENTITY, rows);
+			List<Object[]> aces = new ArrayList<>(ids.size());
+			for (int i = 0; i < level.size(); i++) {
+				aclIds.put(level.get(i), ids.get(i));
+				aces.add(new Object[] { ids.get(i), 0, ownerSidId, BasePermission.ADMINISTRATION.getMask(),
+						Boolean.TRUE, Boolean.FALSE, Boolean.FALSE });
+			}
+			insertBatch(INSERT_INTO_ACL_ENTRY, aces);
+			pending = remaining;
+		}
+
+		// Nothing already cached changed, so warm the cache instead of evicting from it
+		List<ObjectIdentity> identities = new ArrayList<>(created.size());
+		for (AbstractElement element : created) {
+			identities.add(new ObjectIdentityImpl(element));
+		}
+		this.mutableAclService.readAclsById(identities);
+		return created;
+	}
+
+	/**
+	 * Applies the same rule as <code>AFTER_ACL_COLLECTION_READ</code>: an element is
+	 * visible if its ACL grants any of the read permissions, and hidden if it has no ACL.
+	 * The caller's sids are resolved up front, and the ACLs of each batch are fetched with
+	 * a single lookup.
+	 */
+	@Override
+	protected UnaryOperator<List<AbstractElement>> readableFilter() {
+		List<Sid> sids = this.sidRetrievalStrategy.getSids(SecurityContextHolder.getContext().getAuthentication());
+		return (candidates) -> filterReadable(candidates, sids);
+	}
+
+	private List<AbstractElement> filterReadable(List<AbstractElement> candidates, List<Sid> sids) {
+		if (candidates.isEmpty()) {
+			return candidates;
+		}
+		List<ObjectIdentity> identities = new ArrayList<>(candidates.size());
+		for (AbstractElement candidate : candidates) {
+			identities.add(new ObjectIdentityImpl(candidate));
+		}
+		Map<ObjectIdentity, Acl> acls;
+		try {
+			acls = this.mutableAclService.readAclsById(identities, sids);
+		}
+		catch (NotFoundException ex) {
+			// At least one element has no ACL, so look them up one at a time
+			acls = null;
+		}
+		List<AbstractElement> readable = new ArrayList<>(candidates.size());
+		for (int i = 0; i < candidates.size(); i++) {
+			try {
+				Acl acl = (acls != null) ? acls.get(identities.get(i))
+						: this.mutableAclService.readAclById(identities.get(i), sids);
+				if (acl != null && acl.isGranted(this.readPermissions, sids, false)) {
+					readable.add(candidates.get(i));
+				}
+			}
+			catch (NotFoundException ex) {
+				// Not visible, as with the after invocation provider
+			}
+		}
+		return readable;
+	}
+
+	public void setSidRetrievalStrategy(SidRetrievalStrategy sidRetrievalStrategy) {
+		Assert.notNull(sidRetrievalStrategy, "SidRetrievalStrategy required");
+		this.sidRetrievalStrategy = sidRetrievalStrategy;
+	}
+
+	/**
+	 * Sets the permissions that make an element visible to
+	 * {@link #listElements(Directory, String, int)} and {@link #walk(Directory)}. Keep these in line with the
+	 * <code>AFTER_ACL_COLLECTION_READ</code> configuration.
+	 * @param readPermissions the permissions, any one of which suffices
+	 */
+	public void setReadPermissions(List<Permission> readPermissions) {
+		Assert.notEmpty(readPermissions, "Read permissions required");
+		this.readPermissions = readPermissions;
+	}
+
+	/**
+	 * Moves the directory and re-parents its ACL, so that the subtree inherits from its new
+	 * location. Write access to the directory is checked by the method security
+	 * interceptor; write access to its current and new parents is checked here. The
+	 * current parent is read from the database rather than trusted from the argument.
+	 */
+	@Override
+	public Directory move(Directory directory, Directory newParent) {
+		List<Sid> sids = this.sidRetrievalStrategy.getSids(SecurityContextHolder.getContext().getAuthentication());
+		Long currentParentId = getJdbcTemplate().queryForObject(SELECT_DIRECTORY_PARENT, Long.class,
+				directory.getId());
+		checkWritable(new ObjectIdentityImpl(Directory.class, currentParentId), sids);
+		MutableAcl parentAcl = checkWritable(new ObjectIdentityImpl(newParent), sids);
+		Directory moved = super.move(directory, newParent);
+		MutableAcl acl = (MutableAcl) this.mutableAclService.readAclById(new ObjectIdentityImpl(directory));
+		acl.setParent(parentAcl);
+		// Also evicts the cached ACLs of the subtree, whose inherited entries have changed
+		this.mutableAclService.updateAcl(acl);
+		return moved;
+	}
+
+	private MutableAcl checkWritable(ObjectIdentity objectIdentity, List<Sid> sids) {
+		try {
+			MutableAcl acl = (MutableAcl) this.mutableAclService.readAclById(objectIdentity);
+			if (!acl.isGranted(WRITE_PERMISSIONS, sids, false)) {
+				throw new AccessDeniedException("Access is denied");
+			}
+			return acl;
+		}
+		catch (NotFoundException ex) {
+			throw new AccessDeniedException("Access is denied", ex);
+		}
+	}
+
+	private Long findAclObjectIdentity(AbstractElement element, Map<Class<?>, Long> classIds) {
+		List<Long> ids = getJdbcTemplate().queryForList(SELECT_ACL_OBJECT_IDENTITY, Long.class,
+				classId(element, classIds), element.getId().toString());
+		Assert.state(!ids.isEmpty(), () -> "No ACL found for " + element);
+		return ids.get(0);
+	}
+
+	private Long classId(AbstractElement element, Map<Class<?>, Long> classIds) {
+		return classIds.computeIfAbsent(element.getClass(),
+				(type) -> findOrCreate(SELECT_ACL_CLASS, INSERT_INTO_ACL_CLASS, type.getName()));
+	}
+
+	private Long findOrCreate(String select, String insert, Object... args) {
+		List<Long> ids = getJdbcTemplate().queryForList(select, Long.class, args);
+		if (ids.isEmpty()) {
+			getJdbcTemplate().update(insert, args);
+			ids = getJdbcTemplate().queryForList(select, Long.class, args);
+		}
+		return ids.get(0);
+	}
+
 }
@@ -32,12 +32,42 @@ package sample;
  * limitations under the License.
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import sample.dms.AbstractElement;
+import sample.dms.ContentGarbageCollector;
+import sample.dms.ContentStatistics;
+import sample.dms.ContentStore;
+import sample.dms.DataSourcePopulator;
 import sample.dms.Directory;
+import sample.dms.DirectoryAggregateReconciler;
 import sample.dms.DocumentDao;
+import sample.dms.DocumentIndex;
+import sample.dms.ElementPage;
+import sample.dms.File;
+import sample.dms.FileVersionConflictException;
+import sample.dms.ImportNode;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.jdbc.core.JdbcTemplate;
@@ -45,9 +75,14 @@ import org.springframework.security.authentication.UsernamePasswordAuthenticatio
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.StreamUtils;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.assertj.core.api.Assertions.assertThatIllegalArgumentException;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
 
 /**
  * Basic integration test for DMS sample.
@@ -67,6 +102,18 @@ public class DmsIntegrationTests {
 	@Autowired
 	protected DocumentDao documentDao;
 
+	@Autowired
+	protected ContentGarbageCollector contentGarbageCollector;
+
+	@Autowired
+	protected ContentStore contentStore;
+
+	@Autowired
+	protected DirectoryAggregateReconciler directoryAggregateReconciler;
+
+	@Autowired
+	protected PlatformTransactionManager transactionManager;
+
 	@AfterEach
 	void clearContext() {
 		SecurityContextHolder.clearContext();
@@ -83,6 +130,29 @@ public class DmsIntegrationTests {
 		assertThat(this.documentDao.findElements(Directory.ROOT_DIRECTORY).length).isEqualTo(3);
 	}
 
+	@Test
+	void testPopulationIsIdempotent() {
+		DataSourcePopulator repeated = new DataSourcePopulator(this.jdbcTemplate.getDataSource(), this.documentDao);
+		repeated.afterPropertiesSet();
+		assertThat(repeated.getPopulation()).isDone();
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from DIRECTORY", Integer.class)).isEqualTo(9);
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from FILE", Integer.class)).isEqualTo(90);
+	}
+
+	@Test
+	void testPopulationCompletesPartialTrees() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		for (File file : findHomeFiles("rod")) {
+			this.documentDao.delete(file);
+		}
+		SecurityContextHolder.clearContext();
+		DataSourcePopulator repeated = new DataSourcePopulator(this.jdbcTemplate.getDataSource(), this.documentDao);
+		repeated.setTransactionManager(this.transactionManager);
+		repeated.afterPropertiesSet();
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from DIRECTORY", Integer.class)).isEqualTo(9);
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from FILE", Integer.class)).isEqualTo(90);
+	}
+
 	@Test
 	void testMarissaRetrieval() {
 		process("rod", "koala", false);
@@ -98,6 +168,351 @@ public class DmsIntegrationTests {
 		process("dianne", "emu", false);
 	}
 
+	@Test
+	void testContentRoundTrip() throws IOException {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		File file = findHomeFiles("rod").get(0);
+		byte[] body = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		assertThat(this.documentDao.writeContent(file, new ByteArrayInputStream(body))).isEqualTo(body.length);
+		assertThat(file.getContentLength()).isEqualTo(body.length);
+		assertThat(findHomeFiles("rod").get(0).getContentLength()).isEqualTo(body.length);
+
+		ByteArrayOutputStream range = new ByteArrayOutputStream();
+		assertThat(this.documentDao.readContent(file, 4, 5, Channels.newChannel(range))).isEqualTo(5);
+		assertThat(range.toString("UTF-8")).isEqualTo("quick");
+
+		ByteArrayOutputStream tail = new ByteArrayOutputStream();
+		assertThat(this.documentDao.readContent(file, 40, 100, Channels.newChannel(tail))).isEqualTo(3);
+		assertThat(tail.toString("UTF-8")).isEqualTo("dog");
+
+		try (InputStream in = this.documentDao.openContent(file)) {
+			ByteArrayOutputStream whole = new ByteArrayOutputStream();
+			byte[] buffer = new byte[16];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				whole.write(buffer, 0, read);
+			}
+			assertThat(whole.toByteArray()).isEqualTo(body);
+		}
+	}
+
+	@Test
+	void testIdenticalContentIsStoredOnce() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		List<File> files = findHomeFiles("rod");
+		byte[] body = "Quarterly report".getBytes(StandardCharsets.UTF_8);
+		this.documentDao.writeContent(files.get(0), new ByteArrayInputStream(body));
+		this.documentDao.writeContent(files.get(1), new ByteArrayInputStream(body));
+		assertThat(files.get(0).getContentDigest()).isNotNull().isEqualTo(files.get(1).getContentDigest());
+		assertThat(this.jdbcTemplate.queryForObject("select count(digest) from CONTENT_BLOB", Integer.class))
+				.isEqualTo(1);
+		assertThat(this.jdbcTemplate.queryForObject("select reference_count from CONTENT_BLOB", Integer.class))
+				.isEqualTo(2);
+
+		ContentStatistics statistics = this.contentGarbageCollector.getStatistics();
+		assertThat(statistics.getLogicalBytes()).isEqualTo(2 * body.length);
+		assertThat(statistics.getStoredBytes()).isEqualTo(body.length);
+		assertThat(statistics.getBytesSaved()).isEqualTo(body.length);
+		assertThat(statistics.getDeduplicationRatio()).isEqualTo(2.0);
+
+		this.documentDao.delete(files.get(0));
+		assertThat(this.jdbcTemplate.queryForObject("select reference_count from CONTENT_BLOB", Integer.class))
+				.isEqualTo(1);
+	}
+
+	@Test
+	void testDeletingDeletedFileReleasesNothing() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		List<File> files = findHomeFiles("rod");
+		byte[] body = "Expense claim".getBytes(StandardCharsets.UTF_8);
+		this.documentDao.writeContent(files.get(0), new ByteArrayInputStream(body));
+		this.documentDao.writeContent(files.get(1), new ByteArrayInputStream(body));
+
+		this.documentDao.delete(files.get(0));
+		this.documentDao.delete(files.get(0));
+		assertThat(this.jdbcTemplate.queryForObject("select reference_count from CONTENT_BLOB", Integer.class))
+				.isEqualTo(1);
+	}
+
+	@Test
+	void testGarbageCollectionRemovesOnlyUnreferencedContent() throws IOException {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		List<File> files = findHomeFiles("rod");
+		byte[] shared = "Board minutes".getBytes(StandardCharsets.UTF_8);
+		byte[] discarded = "Abandoned draft".getBytes(StandardCharsets.UTF_8);
+		this.documentDao.writeContent(files.get(0), new ByteArrayInputStream(shared));
+		this.documentDao.writeContent(files.get(1), new ByteArrayInputStream(shared));
+		this.documentDao.writeContent(files.get(2), new ByteArrayInputStream(discarded));
+		String sharedDigest = files.get(0).getContentDigest();
+		String discardedDigest = files.get(2).getContentDigest();
+
+		// Drops one of the two references to the shared body, and the only one to the other
+		this.documentDao.delete(files.get(0));
+		this.documentDao.delete(files.get(2));
+
+		ContentGarbageCollector collector = new ContentGarbageCollector(this.contentStore);
+		collector.setDataSource(this.jdbcTemplate.getDataSource());
+		collector.setGracePeriod(Duration.ZERO);
+		assertThat(collector.collectGarbage()).isGreaterThanOrEqualTo(1);
+
+		assertThatExceptionOfType(NoSuchFileException.class)
+				.isThrownBy(() -> this.contentStore.openStream(discardedDigest).close());
+		try (InputStream in = this.contentStore.openStream(sharedDigest)) {
+			assertThat(StreamUtils.copyToByteArray(in)).isEqualTo(shared);
+		}
+	}
+
+	@Test
+	void testContentWrittenAfterCutoffIsNotDeleted() throws IOException {
+		String digest = this.contentStore
+				.write(Channels.newChannel(new ByteArrayInputStream("Re-uploaded".getBytes(StandardCharsets.UTF_8))))
+				.getDigest();
+		assertThat(this.contentStore.deleteIfUnmodifiedSince(digest, Instant.now().minusSeconds(60))).isFalse();
+		this.contentStore.openStream(digest).close();
+
+		assertThat(this.contentStore.deleteIfUnmodifiedSince(digest, Instant.now().plusSeconds(60))).isTrue();
+		assertThatExceptionOfType(NoSuchFileException.class)
+				.isThrownBy(() -> this.contentStore.openStream(digest).close());
+	}
+
+	@Test
+	void testImportTree() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory home = findHomeDirectory("rod");
+		List<AbstractElement> created = this.documentDao.importTree(home,
+				Arrays.asList(ImportNode.directory("imported", ImportNode.file("a.txt", "A"),
+						ImportNode.file("b.txt", "B"), ImportNode.directory("nested", ImportNode.file("c.txt", "C")))));
+		assertThat(created).hasSize(5);
+		assertThat(created).allMatch((element) -> element.getId() != null);
+		assertThat(this.documentDao.findElements(home)).hasSize(13);
+
+		Directory imported = (Directory) created.get(0);
+		assertThat(imported.getFullName()).isEqualTo("/rod/imported");
+		assertThat(this.documentDao.findElements(imported)).extracting(AbstractElement::getName)
+				.containsExactlyInAnyOrder("nested", "a.txt", "b.txt");
+	}
+
+	@Test
+	void testListElementsPagesThroughWhatFindElementsReturns() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodHome = findHomeDirectory("rod");
+		List<String> expected = new ArrayList<>();
+		for (AbstractElement element : this.documentDao.findElements(rodHome)) {
+			expected.add(element.getFullName());
+		}
+		List<String> listed = new ArrayList<>();
+		String cursor = null;
+		do {
+			ElementPage page = this.documentDao.listElements(rodHome, cursor, 5);
+			assertThat(page.getElements().size()).isLessThanOrEqualTo(5);
+			for (AbstractElement element : page.getElements()) {
+				listed.add(element.getFullName());
+			}
+			cursor = page.getNextCursor();
+		}
+		while (cursor != null);
+		assertThat(listed).containsExactlyInAnyOrderElementsOf(expected);
+	}
+
+	@Test
+	void testWalkReturnsWhatRecursiveFindElementsReturns() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodHome = findHomeDirectory("rod");
+		List<String> expected = new ArrayList<>();
+		collectFullNames(rodHome, expected);
+		assertThat(this.documentDao.walk(rodHome).map(AbstractElement::getFullName))
+				.containsExactlyInAnyOrderElementsOf(expected);
+		assertThat(this.documentDao.walk(Directory.ROOT_DIRECTORY).parallel().map(AbstractElement::getFullName))
+				.containsExactlyInAnyOrderElementsOf(
+						this.documentDao.walk(Directory.ROOT_DIRECTORY).map(AbstractElement::getFullName)
+								.collect(Collectors.toList()));
+	}
+
+	private void collectFullNames(Directory directory, List<String> fullNames) {
+		for (AbstractElement element : this.documentDao.findElements(directory)) {
+			fullNames.add(element.getFullName());
+			if (element instanceof Directory) {
+				collectFullNames((Directory) element, fullNames);
+			}
+		}
+	}
+
+	@Test
+	void testMoveDirectory() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory home = findHomeDirectory("rod");
+		Directory confidential = findHomeSubdirectory("rod", "confidential");
+		Directory moved = this.documentDao.move(findHomeSubdirectory("rod", "shared"), confidential);
+		assertThat(moved.getFullName()).isEqualTo("/rod/confidential/shared");
+		assertThat(this.documentDao.findDescendantDirectories(home)).extracting(AbstractElement::getFullName)
+				.containsExactly("/rod/confidential", "/rod/confidential/shared");
+		assertThat(this.documentDao.findElements(confidential)).extracting(AbstractElement::getFullName)
+				.contains("/rod/confidential/shared");
+		assertThatIllegalArgumentException().isThrownBy(() -> this.documentDao.move(confidential, moved));
+	}
+
+	protected Directory findHomeDirectory(String username) {
+		for (AbstractElement rootElement : this.documentDao.findElements(Directory.ROOT_DIRECTORY)) {
+			if (rootElement.getName().equals(username)) {
+				return (Directory) rootElement;
+			}
+		}
+		throw new IllegalStateException("No home directory found for " + username);
+	}
+
+	@Test
+	void testDirectoryStatisticsFollowChanges() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory home = findHomeDirectory("rod");
+		Directory confidential = findHomeSubdirectory("rod", "confidential");
+		assertThat(this.documentDao.getStatistics(home).getFileCount()).isEqualTo(30);
+		assertThat(this.documentDao.getStatistics(confidential).getFileCount()).isEqualTo(10);
+		long bytes = this.documentDao.getStatistics(home).getTotalBytes();
+
+		File file = findHomeFiles("rod").get(0);
+		this.documentDao.writeContent(file, new ByteArrayInputStream("12345".getBytes(StandardCharsets.UTF_8)));
+		assertThat(this.documentDao.getStatistics(home).getTotalBytes()).isEqualTo(bytes + 5);
+
+		this.documentDao.move(findHomeSubdirectory("rod", "shared"), confidential);
+		assertThat(this.documentDao.getStatistics(confidential).getFileCount()).isEqualTo(20);
+		assertThat(this.documentDao.getStatistics(home).getFileCount()).isEqualTo(30);
+
+		this.documentDao.delete(file);
+		assertThat(this.documentDao.getStatistics(home).getFileCount()).isEqualTo(29);
+		assertThat(this.documentDao.getStatistics(home).getTotalBytes()).isEqualTo(bytes);
+		assertThat(this.directoryAggregateReconciler.reconcile()).isZero();
+	}
+
+	@Test
+	void testStaleUpdateIsRejected() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		File file = findHomeFiles("rod").get(0);
+		String loaded = file.getETag();
+		file.setContent("first editor");
+		this.documentDao.update(file, loaded);
+		assertThat(file.getETag()).isNotEqualTo(loaded);
+
+		// A second editor that loaded the same version loses
+		file.setContent("second editor");
+		FileVersionConflictException conflict = catchThrowableOfType(() -> this.documentDao.update(file, loaded),
+				FileVersionConflictException.class);
+		assertThat(conflict.getCurrentETag()).isEqualTo(file.getETag());
+		this.documentDao.update(file, "*");
+	}
+
+	@Test
+	void testStaleContentWriteIsRejected() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		File file = findHomeFiles("rod").get(0);
+		String loaded = file.getETag();
+		this.documentDao.writeContent(file, new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)),
+				loaded);
+		assertThat(file.getETag()).isNotEqualTo(loaded);
+		String digest = file.getContentDigest();
+
+		FileVersionConflictException conflict = catchThrowableOfType(
+				() -> this.documentDao.writeContent(file,
+						new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)), loaded),
+				FileVersionConflictException.class);
+		assertThat(conflict.getCurrentETag()).isEqualTo(file.getETag());
+		assertThat(findHomeFiles("rod").get(0).getContentDigest()).isEqualTo(digest);
+		this.documentDao.writeContent(file, new ByteArrayInputStream("third".getBytes(StandardCharsets.UTF_8)), "*");
+		assertThat(file.getContentDigest()).isNotEqualTo(digest);
+	}
+
+	@Test
+	void testSearchFollowsChanges() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		File file = findHomeFiles("rod").get(0);
+		assertThat(this.documentDao.search("quarterly forecast", 10)).isEmpty();
+		this.documentDao.writeContent(file,
+				new ByteArrayInputStream("Quarterly revenue forecast".getBytes(StandardCharsets.UTF_8)));
+		assertThat(this.documentDao.search("quarterly forecast", 10)).extracting(AbstractElement::getId)
+				.containsExactly(file.getId());
+
+		file.setContent("zebra crossing");
+		this.documentDao.update(file);
+		assertThat(this.documentDao.search("ZEBRA", 10)).extracting(AbstractElement::getId)
+				.containsExactly(file.getId());
+		// The body is still indexed, and queries may match across the text and the body
+		assertThat(this.documentDao.search("zebra revenue", 10)).extracting(AbstractElement::getId)
+				.containsExactly(file.getId());
+
+		this.documentDao.delete(file);
+		assertThat(this.documentDao.search("zebra", 10)).isEmpty();
+		assertThat(this.documentDao.search("quarterly", 10)).isEmpty();
+	}
+
+	@Test
+	void testDocumentIndexIsReopenedFromDisk(@TempDir Path directory) throws IOException {
+		DocumentIndex index = new DocumentIndex(directory);
+		index.afterPropertiesSet();
+		index.put(2, "report.txt", "annual results");
+		index.putBody(2, "audited accounts");
+		index.flush();
+		index.put(4, "summary.txt", "annual summary");
+		index.putBody(4, "unaudited figures");
+		index.remove(2);
+		index.destroy();
+
+		DocumentIndex reopened = new DocumentIndex(directory);
+		reopened.afterPropertiesSet();
+		assertThat(reopened.size()).isEqualTo(1);
+		assertThat(reopened.search("annual")).containsExactly(4L);
+		assertThat(reopened.search("results")).isEmpty();
+		assertThat(reopened.search("accounts")).isEmpty();
+		reopened.put(4, "summary.txt", "revised summary");
+		assertThat(reopened.search("revised figures")).containsExactly(4L);
+	}
+
+	@Test
+	void testExportZip() throws IOException {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		File file = findHomeFiles("rod").get(0);
+		this.documentDao.writeContent(file,
+				new ByteArrayInputStream("exported body".getBytes(StandardCharsets.UTF_8)));
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		assertThat(this.documentDao.exportZip(findHomeDirectory("rod"), archive)).isEqualTo(30);
+
+		Map<String, String> entries = readZip(archive.toByteArray());
+		assertThat(entries).hasSize(32).containsKeys("confidential/", "shared/", "shared/file_9.txt");
+		assertThat(entries).containsEntry(file.getName(), "exported body");
+	}
+
+	/**
+	 * Reads an archive into a map from entry name to entry content, in archive order.
+	 */
+	protected Map<String, String> readZip(byte[] archive) throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				entries.put(entry.getName(), StreamUtils.copyToString(zip, StandardCharsets.UTF_8));
+			}
+		}
+		return entries;
+	}
+
+	protected Directory findHomeSubdirectory(String username, String name) {
+		for (AbstractElement homeElement : this.documentDao.findElements(findHomeDirectory(username))) {
+			if (homeElement instanceof Directory && homeElement.getName().equals(name)) {
+				return (Directory) homeElement;
+			}
+		}
+		throw new IllegalStateException("No " + name + " directory found for " + username);
+	}
+
+	protected List<File> findHomeFiles(String username) {
+		List<File> files = new ArrayList<>();
+		for (AbstractElement homeElement : this.documentDao.findElements(findHomeDirectory(username))) {
+			if (homeElement instanceof File) {
+				files.add((File) homeElement);
+			}
+		}
+		assertThat(files).withFailMessage("No file found in home directory of " + username).isNotEmpty();
+		return files;
+	}
+
 	protected void process(String username, String password, boolean shouldBeFiltered) {
 		SecurityContextHolder.getContext()
 				.setAuthentication(new UsernamePasswordAuthenticationToken(username, password));
@@ -16,11 +16,39 @@
 
 package sample;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import sample.dms.AbstractElement;
+import sample.dms.Directory;
+import sample.dms.File;
+import sample.dms.ImportNode;
+import sample.dms.secured.ListingCache;
+import sample.dms.secured.PinningAclCache;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.acls.domain.BasePermission;
+import org.springframework.security.acls.domain.GrantedAuthoritySid;
+import org.springframework.security.acls.domain.ObjectIdentityImpl;
+import org.springframework.security.acls.model.AclCache;
+import org.springframework.security.acls.model.MutableAcl;
+import org.springframework.security.acls.model.MutableAclService;
+import org.springframework.security.acls.model.ObjectIdentity;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.test.context.ContextConfiguration;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 
 /**
  * Basic integration test for DMS sample when security has been added.
@@ -32,6 +60,24 @@ import static org.assertj.core.api.Assertions.assertThat;
 		locations = { "classpath:applicationContext-dms-shared.xml", "classpath:applicationContext-dms-secure.xml" })
 public class SecureDmsIntegrationTests extends DmsIntegrationTests {
 
+	@Autowired
+	protected MutableAclService aclService;
+
+	@Autowired
+	protected AclCache aclCache;
+
+	@Autowired
+	protected ListingCache listingCache;
+
+	@Autowired
+	protected PinningAclCache pinningAclCache;
+
+	@AfterEach
+	void clearAclCache() {
+		// ACLs changed by a test are cached, but their rows are rolled back with it
+		this.aclCache.clearCache();
+	}
+
 	@Override
 	@Test
 	void testBasePopulation() {
@@ -68,4 +114,207 @@ public class SecureDmsIntegrationTests extends DmsIntegrationTests {
 		process("dianne", "emu", true);
 	}
 
+	@Test
+	void testImportTreeCreatesInheritingOwnerAcls() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		this.documentDao.importTree(findHomeDirectory("rod"), Arrays.asList(ImportNode.directory("imported",
+				ImportNode.file("a.txt", "A"), ImportNode.directory("nested", ImportNode.file("b.txt", "B")))));
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from ACL_OBJECT_IDENTITY", Integer.class))
+				.isEqualTo(104);
+		assertThat(this.jdbcTemplate.queryForObject("select count(id) from ACL_ENTRY", Integer.class)).isEqualTo(119);
+		assertThat(this.jdbcTemplate.queryForObject(
+				"select count(id) from ACL_OBJECT_IDENTITY where PARENT_OBJECT is null", Integer.class)).isEqualTo(1);
+
+		// Other users see the imported directory through the home directory's ACL
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		assertThat(this.documentDao.findElements(findHomeDirectory("rod"))).hasSize(12);
+	}
+
+	@Test
+	void testParentAclChangeAppliesToInheritedDecisions() {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodHome = findHomeDirectory("rod");
+		assertThat(this.documentDao.findElements(rodHome)).hasSize(11);
+
+		// Deny ROLE_USER read access on the home directory, ahead of the existing grant
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		MutableAcl acl = (MutableAcl) this.aclService.readAclById(new ObjectIdentityImpl(rodHome));
+		acl.insertAce(0, BasePermission.READ, new GrantedAuthoritySid("ROLE_USER"), false);
+		this.aclService.updateAcl(acl);
+
+		// The files inherit the denial, while "shared" has its own grant
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		assertThat(this.documentDao.findElements(rodHome)).extracting(AbstractElement::getName)
+				.containsExactly("shared");
+	}
+
+	@Test
+	void testFirstMatchingAceDecides() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory rodHome = findHomeDirectory("rod");
+		// A denial behind the existing grant changes nothing
+		MutableAcl acl = (MutableAcl) this.aclService.readAclById(new ObjectIdentityImpl(rodHome));
+		acl.insertAce(acl.getEntries().size(), BasePermission.READ, new GrantedAuthoritySid("ROLE_USER"), false);
+		this.aclService.updateAcl(acl);
+
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		assertThat(this.documentDao.findElements(rodHome)).hasSize(11);
+	}
+
+	@Test
+	void testMoveRequiresWriteAccessToNewParent() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory rodConfidential = findHomeSubdirectory("rod", "confidential");
+		// Without this, ROLE_USER inherits write access from the root directory
+		MutableAcl acl = (MutableAcl) this.aclService.readAclById(new ObjectIdentityImpl(rodConfidential));
+		acl.insertAce(0, BasePermission.WRITE, new GrantedAuthoritySid("ROLE_USER"), false);
+		this.aclService.updateAcl(acl);
+
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory scottShared = findHomeSubdirectory("scott", "shared");
+		assertThatExceptionOfType(AccessDeniedException.class)
+				.isThrownBy(() -> this.documentDao.move(scottShared, rodConfidential));
+	}
+
+	@Test
+	void testMoveRequiresWriteAccessToCurrentParent() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory rodHome = findHomeDirectory("rod");
+		// Without this, ROLE_USER inherits write access from the root directory
+		MutableAcl acl = (MutableAcl) this.aclService.readAclById(new ObjectIdentityImpl(rodHome));
+		acl.insertAce(0, BasePermission.WRITE, new GrantedAuthoritySid("ROLE_USER"), false);
+		this.aclService.updateAcl(acl);
+
+		// Scott can write to "shared" and to his own home, but only read its parent
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodShared = findHomeSubdirectory("rod", "shared");
+		Directory scottHome = findHomeDirectory("scott");
+		assertThatExceptionOfType(AccessDeniedException.class)
+				.isThrownBy(() -> this.documentDao.move(rodShared, scottHome));
+		assertThat(this.documentDao.findElements(rodHome)).extracting(AbstractElement::getName).contains("shared");
+	}
+
+	@Test
+	void testListingCacheIsInvalidatedByChildCreation() {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodHome = findHomeDirectory("rod");
+		Authentication scott = SecurityContextHolder.getContext().getAuthentication();
+		long hits = this.listingCache.getHitCount();
+		assertThat(this.documentDao.findElements(rodHome)).hasSize(11);
+		assertThat(this.documentDao.findElements(rodHome)).hasSize(11);
+		assertThat(this.listingCache.getHitCount()).isEqualTo(hits + 1);
+
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		this.documentDao.create(new File("new.txt", rodHome));
+
+		SecurityContextHolder.getContext().setAuthentication(scott);
+		assertThat(this.documentDao.findElements(rodHome)).hasSize(12);
+	}
+
+	@Test
+	void testListingCacheReturnsCopiesOfFiles() {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		Directory rodHome = findHomeDirectory("rod");
+		File file = findFile(this.documentDao.findElements(rodHome));
+		file.setContent("changed by the caller");
+		assertThat(findFile(this.documentDao.findElements(rodHome)).getContent()).isNotEqualTo(file.getContent());
+	}
+
+	@Test
+	void testListingCacheSeparatesAuthorities() {
+		Directory rodHome = findHomeDirectory("rod");
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("scott",
+				"wombat", AuthorityUtils.createAuthorityList("ROLE_USER")));
+		this.documentDao.findElements(rodHome);
+		long hits = this.listingCache.getHitCount();
+
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("scott",
+				"wombat", AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_SUPERVISOR")));
+		this.documentDao.findElements(rodHome);
+		assertThat(this.listingCache.getHitCount()).isEqualTo(hits);
+	}
+
+	@Test
+	void testBulkUploadIsServedFromPinnedParentAcl() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		Directory rodHome = findHomeDirectory("rod");
+		for (int i = 0; i < 5; i++) {
+			this.documentDao.create(new File("upload_" + i + ".txt", rodHome));
+		}
+		long hits = this.pinningAclCache.getPinnedHitCount();
+		for (int i = 5; i < 10; i++) {
+			this.documentDao.create(new File("upload_" + i + ".txt", rodHome));
+		}
+		assertThat(this.pinningAclCache.getPinnedHitCount()).isGreaterThanOrEqualTo(hits + 5);
+	}
+
+	@Test
+	void testAclEvictedWhileBeingReadIsNotPinned() {
+		SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rod", "koala"));
+		ObjectIdentity rodHome = new ObjectIdentityImpl(Directory.class, findHomeDirectory("rod").getId());
+		MutableAcl stale = (MutableAcl) this.aclService.readAclById(rodHome);
+		PinningAclCache[] cache = new PinningAclCache[1];
+		cache[0] = new PinningAclCache(new AclCache() {
+
+			public MutableAcl getFromCache(ObjectIdentity objectIdentity) {
+				// The ACL is changed by another thread as soon as this one has read it
+				cache[0].evictFromCache(objectIdentity);
+				return stale;
+			}
+
+			public MutableAcl getFromCache(Serializable pk) {
+				return null;
+			}
+
+			public void putInCache(MutableAcl acl) {
+			}
+
+			public void evictFromCache(Serializable pk) {
+			}
+
+			public void evictFromCache(ObjectIdentity objectIdentity) {
+			}
+
+			public void clearCache() {
+			}
+
+		});
+		cache[0].setAdmissionThreshold(1);
+		assertThat(cache[0].getFromCache(rodHome)).isSameAs(stale);
+		assertThat(cache[0].getPinnedCount()).isZero();
+	}
+
+	@Test
+	void testSearchSkipsUnreadableMatchesBeforeTruncating() {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		// Every user has a confidential directory, but only its owner may read it
+		List<AbstractElement> results = this.documentDao.search("confidential", 1);
+		assertThat(results).extracting(AbstractElement::getFullName).containsExactly("/scott/confidential");
+	}
+
+	@Test
+	void testExportZipSkipsUnreadableElements() throws IOException {
+		SecurityContextHolder.getContext()
+				.setAuthentication(new UsernamePasswordAuthenticationToken("scott", "wombat"));
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		assertThat(this.documentDao.exportZip(findHomeDirectory("rod"), archive)).isEqualTo(20);
+
+		Map<String, String> entries = readZip(archive.toByteArray());
+		assertThat(entries).containsKey("shared/file_0.txt");
+		assertThat(entries.keySet()).noneMatch((name) -> name.startsWith("confidential"));
+	}
+
+	private File findFile(AbstractElement[] elements) {
+		return Arrays.stream(elements).filter(File.class::isInstance).map(File.class::cast).findFirst().get();
+	}
+
 }